@@ -5,7 +5,14 @@
  */
 package com.twizted.Cache;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
@@ -16,16 +23,41 @@ import java.util.concurrent.LinkedBlockingQueue;
  *         Stores the last 5000 actions when networking
  *         is turned on.  This is used to provide a
  *         history to new peers.
+ *         <p>
+ *         Also keeps a bounded record of this peer's own sent
+ *         actions by sequence number so lost packets can be
+ *         sent again when another peer asks for them.
+ *         <p>
+ *         Each action is stored with its originator's sequence number.
+ *         The highest number seen from each originator is kept as a
+ *         high-water mark so a reconnecting peer only needs the actions
+ *         it has not already got.  Sequenced actions are only stored once.
  *         This is a singleton class.
  */
 public class ActionCache implements Iterable<int[]>
 {
     private static ActionCache instance;
-    private volatile BlockingQueue<int[]> queue;
+    //How many sent actions are kept for retransmission.
+    private static final int RETAIN_LIMIT = 4096;
+    private volatile BlockingQueue<Entry> queue;
+    private final Map<Integer, int[]> sent;
+    private final Map<Integer, Integer> highWaterMarks;
+    private final Set<Long> keys;
 
     private ActionCache()
     {
         queue = new LinkedBlockingQueue<>();
+        highWaterMarks = new HashMap<>();
+        keys = new HashSet<>();
+        //Insertion ordered so the oldest action is dropped first.
+        sent = new LinkedHashMap<Integer, int[]>()
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, int[]> eldest)
+            {
+                return size() > RETAIN_LIMIT;
+            }
+        };
     }
 
     /**
@@ -45,18 +77,85 @@ public class ActionCache implements Iterable<int[]>
     /**
      * Add an action to the cache.
      *
-     * @param data Action to be added.
+     * @param data     Action to be added.
+     * @param sequence The originator's sequence number for the action.  0 if it has none.
+     * @return True if added.  False if the action is already in the cache.
      * @throws InterruptedException If interrupted while blocking.
      */
-    public synchronized void put(int[] data) throws InterruptedException
+    public synchronized boolean put(int[] data, int sequence) throws InterruptedException
     {
+        if (sequence != 0)
+        {
+            if (!keys.add(key(data[0], sequence)))
+            {
+                return false;
+            }
+            Integer mark = highWaterMarks.get(data[0]);
+            if (mark == null || sequence > mark)
+            {
+                highWaterMarks.put(data[0], sequence);
+            }
+        }
+
         //Keep the size of the history to a given limit.
         //I chose 10000 but have tested up to 100000.
         if (queue.size() >= 10000)
         {
-            queue.take();
+            Entry oldest = queue.take();
+            keys.remove(key(oldest.data[0], oldest.sequence));
+        }
+        queue.put(new Entry(data, sequence));
+        return true;
+    }
+
+    /**
+     * Get the highest sequence number held from each originator.
+     * Kept through a clear so cleared actions are not fetched again.
+     *
+     * @return A copy of the marks keyed by originator id.
+     */
+    public synchronized Map<Integer, Integer> getHighWaterMarks()
+    {
+        return new HashMap<>(highWaterMarks);
+    }
+
+    /**
+     * Get a copy of the stored actions along with their sequence numbers.
+     * The copy does not change as new actions arrive so positions in it are stable.
+     *
+     * @return The stored entries, oldest first.
+     */
+    public List<Entry> snapshot()
+    {
+        return new ArrayList<>(queue);
+    }
+
+    /**
+     * Keep a sent action so it can be sent again.
+     *
+     * @param sequence The sequence number the action was sent with.
+     * @param data     The action.
+     */
+    public void retain(int sequence, int[] data)
+    {
+        synchronized (sent)
+        {
+            sent.put(sequence, data);
+        }
+    }
+
+    /**
+     * Get a previously sent action.
+     *
+     * @param sequence The sequence number the action was sent with.
+     * @return The action or null if it is no longer retained.
+     */
+    public int[] getRetained(int sequence)
+    {
+        synchronized (sent)
+        {
+            return sent.get(sequence);
         }
-        queue.put(data);
     }
 
     /**
@@ -72,9 +171,10 @@ public class ActionCache implements Iterable<int[]>
     /**
      * Clear this cache.
      */
-    public void clear()
+    public synchronized void clear()
     {
         queue.clear();
+        keys.clear();
     }
 
     /**
@@ -85,6 +185,72 @@ public class ActionCache implements Iterable<int[]>
     @Override
     public Iterator<int[]> iterator()
     {
-        return queue.iterator();
+        final Iterator<Entry> it = queue.iterator();
+        return new Iterator<int[]>()
+        {
+            @Override
+            public boolean hasNext()
+            {
+                return it.hasNext();
+            }
+
+            @Override
+            public int[] next()
+            {
+                return it.next().data;
+            }
+
+            @Override
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private static long key(int id, int sequence)
+    {
+        return ((long) id << 32) | (sequence & 0xFFFFFFFFL);
+    }
+
+    /**
+     * A single stored action and its sequence number.
+     */
+    public static class Entry
+    {
+        private final int[] data;
+        private final int sequence;
+
+        /**
+         * Entry constructor.
+         *
+         * @param data     The action.
+         * @param sequence The originator's sequence number.  0 if the action has none.
+         */
+        public Entry(int[] data, int sequence)
+        {
+            this.data = data;
+            this.sequence = sequence;
+        }
+
+        /**
+         * Get the action.
+         *
+         * @return The action.
+         */
+        public int[] getData()
+        {
+            return data;
+        }
+
+        /**
+         * Get the originator's sequence number.
+         *
+         * @return The sequence number.  0 if the action has none.
+         */
+        public int getSequence()
+        {
+            return sequence;
+        }
     }
 }
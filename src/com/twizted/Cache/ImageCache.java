@@ -6,12 +6,31 @@
 
 package com.twizted.Cache;
 
-import com.twizted.Display.Frame;
-import com.twizted.Network.TcpServer;
-import com.twizted.Network.UdpReceiver;
+import com.twizted.Network.TcpClient;
+import com.twizted.Utility.Tasks;
 
+import javax.imageio.ImageIO;
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
-import java.util.HashMap;
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author Ian Weeks 6204848
@@ -19,69 +38,463 @@ import java.util.HashMap;
  *         ImageCache class.
  *         <p>
  *         Handles storage of images
+ *         <p>
+ *         Each image is also held in its encoded form on disk.  For an
+ *         image dropped here that is a copy of the original file, so it is
+ *         still sent as dropped if the user changes or deletes the file.
+ *         Images are sent
+ *         to other peers as a {@link TiledImage}, made once the first time
+ *         they are asked for, and a received image keeps what arrived.
+ *         An image held as its original file is sent as slices of that
+ *         file, so it arrives exactly as dropped and is checked against
+ *         its content key before it is kept.  Only an image that had to be
+ *         scaled to fit is encoded again, into tiles that are drawn as
+ *         they arrive.  They are jpeg if the original was a jpeg and png
+ *         otherwise so nothing lossless is made lossy.  Every tile and
+ *         slice is checked against its own digest as it arrives.
+ *         <p>
+ *         Decoded images are kept in memory up to a byte budget, counted
+ *         from the size of each image's pixel data.  When the budget is
+ *         passed the least recently used images are dropped from memory,
+ *         and are decoded again from disk the next time they are asked
+ *         for.  An image with no encoded form is written to a temp file
+ *         first.  The budget is 128 MB unless set in MB with the
+ *         whiteboard.imagecache property.  Temp files are deleted once
+ *         they are finished with and any left over are removed with their
+ *         directory on exit.
+ *         <p>
+ *         Images are keyed by a hash of their original file so the same
+ *         image is only held and fetched once, whoever dropped it and
+ *         however many times.
+ *         <p>
+ *         Images not held here are fetched from the originating peer's
+ *         image server in the background so the caller never waits on
+ *         the network.  Each tile is drawn into the partly fetched image
+ *         as it arrives and listeners are told so it can be shown
+ *         straight away.  A failed fetch is tried again after a short
+ *         pause, carrying on from the last tile received, and the whole
+ *         fetch is given up on after a time limit.  Callers asking for an
+ *         image already on its way share the same fetch.
+ *         <p>
+ *         An image already arriving some other way, such as by multicast,
+ *         is waited for instead and only the tiles that did not arrive
+ *         are fetched.
  */
 public class ImageCache
 {
-    private Frame frame;
-    //HashMap for constant time access.
-    private HashMap<Integer, BufferedImage> hashMap;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MS = 500;
+    private static final long FETCH_TIMEOUT_MS = 20000;
+    private final long maxBytes = Long.getLong("whiteboard.imagecache", 128) << 20;
+    //Access ordered so the least recently used image is first.
+    private final LinkedHashMap<Long, BufferedImage> images;
+    private final ConcurrentHashMap<Long, Encoded> encoded;
+    private final AtomicLong hits, misses, evictions, reloads;
+    private long bytesUsed;
+    private ConcurrentHashMap<Long, Fetch> fetching;
+    private Tasks.Group fetches;
+    //Holds every temp file.  Removed on exit along with anything left in it.
+    private static File tempDirectory;
 
     /**
-     * ImageCache constructor.
+     * Default constructor.
+     */
+    public ImageCache()
+    {
+        images = new LinkedHashMap<>(16, 0.75f, true);
+        encoded = new ConcurrentHashMap<>();
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+        evictions = new AtomicLong();
+        reloads = new AtomicLong();
+        fetching = new ConcurrentHashMap<>();
+        fetches = Tasks.getInstance().newGroup("image fetch", 4);
+    }
+
+    /**
+     * Add an image record to the cache along with the contents of the
+     * file it was read from.  They are copied to disk so the image is
+     * sent exactly as it was dropped.
      *
-     * @param frame A reference to the parent frame.
+     * @param key      The key to be added.  The hash of the original.
+     * @param image    The image to be added.
+     * @param original The contents of the file the image was read from.
+     * @param source   The file the image was read from.
      */
-    public ImageCache(Frame frame)
+    public void put(Long key, BufferedImage image, byte[] original, File source)
     {
-        this.frame = frame;
-        hashMap = new HashMap<>();
+        setEncoded(key, Encoded.copyOf(original, image, Encoded.formatOf(source)));
+        put(key, image);
     }
 
     /**
-     * Add an image record to the cache.
+     * Add an image record to the cache that was read from a file at a
+     * smaller size.  The file is not kept but the image is still sent in
+     * the file's format.
+     *
+     * @param key    The key to be added.
+     * @param image  The image to be added.
+     * @param source The file the image was read from.
+     */
+    public void putScaled(Long key, BufferedImage image, File source)
+    {
+        setEncoded(key, new Encoded(image, Encoded.formatOf(source)));
+        put(key, image);
+    }
+
+    /**
+     * Add an image record to the cache.  Least recently used images
+     * are dropped from memory if this takes the cache over its budget.
      *
      * @param key   The key to be added.
      * @param image The image to be added.
      */
-    public void put(Integer key, BufferedImage image)
+    public void put(Long key, BufferedImage image)
+    {
+        List<Encoded> toWrite = new ArrayList<>();
+        synchronized (images)
+        {
+            BufferedImage old = images.put(key, image);
+            if (old != null)
+            {
+                bytesUsed -= sizeOf(old);
+            }
+            bytesUsed += sizeOf(image);
+
+            //The new image is last so it is always kept, even if it is over budget on its own.
+            Iterator<Map.Entry<Long, BufferedImage>> it = images.entrySet().iterator();
+            while (bytesUsed > maxBytes && images.size() > 1)
+            {
+                Map.Entry<Long, BufferedImage> eldest = it.next();
+                bytesUsed -= sizeOf(eldest.getValue());
+                Encoded spill = encoded.get(eldest.getKey());
+                if (spill == null)
+                {
+                    spill = new Encoded(eldest.getValue());
+                    encoded.put(eldest.getKey(), spill);
+                }
+                //Nothing to write if it is already on disk.
+                toWrite.add(spill);
+                it.remove();
+                evictions.incrementAndGet();
+            }
+        }
+
+        //Disk writes are done outside the lock.  Readers wait on the spill itself.
+        for (Encoded spill : toWrite)
+        {
+            spill.getFile();
+        }
+    }
+
+    private void setEncoded(Long key, Encoded source)
     {
-        hashMap.put(key, image);
+        Encoded old = encoded.put(key, source);
+        if (old != null)
+        {
+            old.delete();
+        }
     }
 
     /**
      * Get an image from the cache.  If the image requested is not found,
-     * it will be requested from the originating peer.
+     * it will be fetched from the originating peer in the background.
      *
      * @param key      The required image key.
-     * @param targetID The originator's id.
-     * @return The requested image.
-     * @throws InterruptedException If the thread is interrupted before finishing.
+     * @param address  The originator's ip address.
+     * @param listener Told about each tile as it arrives.  May be null.
+     * @return A future completed with the image, or completed exceptionally
+     * if it could not be fetched in time.
      */
-    public BufferedImage get(Integer key, int targetID) throws InterruptedException
+    public CompletableFuture<BufferedImage> fetch(final Long key, String address, TileListener listener)
     {
         //First try to fetch the image from the local cache.
-        BufferedImage result = hashMap.get(key);
+        BufferedImage result = getCached(key);
         if (result != null)
         {
             //If found then return it.
-            return result;
+            return CompletableFuture.completedFuture(result);
+        }
+
+        //Share a fetch that is already on its way.
+        final Fetch fetch = new Fetch(key, address);
+        Fetch existing = fetching.putIfAbsent(key, fetch);
+        if (existing != null)
+        {
+            existing.addListener(listener);
+            return existing.future;
+        }
+        fetch.addListener(listener);
+
+        //If not found then read it back from disk or fetch it from the original peer.
+        misses.incrementAndGet();
+        attempt(fetch, 1);
+        scheduleTimeout(fetch);
+        return fetch.future;
+    }
+
+    /**
+     * Start expecting an image that is arriving some other way.  Anyone
+     * asking for it waits for it to be handed over with {@link #receive}
+     * rather than fetching it themselves.
+     *
+     * @param key     The image key.
+     * @param address The originator's ip address, to fetch anything not handed over from.
+     * @return True if the image is wanted.  False if it is already held or on its way.
+     */
+    public boolean expect(Long key, String address)
+    {
+        synchronized (images)
+        {
+            if (images.containsKey(key) || encoded.containsKey(key))
+            {
+                return false;
+            }
+        }
+        Fetch fetch = new Fetch(key, address);
+        fetch.awaiting = true;
+        if (fetching.putIfAbsent(key, fetch) != null)
+        {
+            return false;
+        }
+        misses.incrementAndGet();
+        scheduleTimeout(fetch);
+        return true;
+    }
+
+    /**
+     * Hand over an expected image received some other way.  Whatever did
+     * not arrive is fetched from the originator, carrying on from the last
+     * whole tile handed over.
+     *
+     * @param key      The image key.
+     * @param width    The image width.
+     * @param height   The image height.
+     * @param tileSize The width and height of a tile, or {@link TiledImage#ORIGINAL}.
+     * @param tiles    The number of tiles.
+     * @param data     The start of the image's tile file.
+     * @param length   How many bytes of it arrived.
+     */
+    public void receive(Long key, final int width, final int height, final int tileSize, final int tiles,
+                        final byte[] data, final int length)
+    {
+        final Fetch fetch = fetching.get(key);
+        if (fetch == null || !fetch.awaiting)
+        {
+            return;
+        }
+        fetch.awaiting = false;
+        fetches.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    fetch.seed(TiledImage.read(width, height, tileSize, tiles, data, length));
+                    if (fetch.tiles.isComplete())
+                    {
+                        BufferedImage image = fetch.finish();
+                        fetching.remove(fetch.key, fetch);
+                        fetch.future.complete(image);
+                        return;
+                    }
+                } catch (IOException e)
+                {
+                    System.out.println("Error reading received tiles.");
+                    System.out.println(e.getMessage());
+                }
+                attempt(fetch, 1);
+            }
+        });
+    }
+
+    /**
+     * Give up on a fetch that takes too long.
+     *
+     * @param fetch The fetch.
+     */
+    private void scheduleTimeout(final Fetch fetch)
+    {
+        fetches.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                String message = "Timed out fetching image " + Long.toHexString(fetch.key);
+                if (fetch.future.completeExceptionally(new TimeoutException(message)))
+                {
+                    fetching.remove(fetch.key, fetch);
+                }
+            }
+        }, FETCH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Make a single attempt at fetching an image, scheduling another if it fails.
+     *
+     * @param fetch   The fetch.
+     * @param attempt The number of this attempt.
+     */
+    private void attempt(final Fetch fetch, final int attempt)
+    {
+        fetches.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (fetch.future.isDone())
+                {
+                    //Timed out while waiting to try again.
+                    fetch.discard();
+                    return;
+                }
+                Exception error;
+                int resumeFrom = fetch.getTilesReceived();
+                try
+                {
+                    BufferedImage image = reload(fetch.key);
+                    if (image == null && new TcpClient(fetch.address, fetch.key, resumeFrom, fetch).call())
+                    {
+                        image = fetch.finish();
+                    }
+                    if (image != null)
+                    {
+                        fetching.remove(fetch.key, fetch);
+                        fetch.future.complete(image);
+                        return;
+                    }
+                    error = new IOException("Image " + Long.toHexString(fetch.key) + " is not held by "
+                                            + fetch.address);
+                } catch (IOException e)
+                {
+                    error = e;
+                }
+
+                System.out.println("Attempt " + attempt + " at fetching image " + Long.toHexString(fetch.key)
+                                   + " from " + fetch.address + " failed after tile " + fetch.getTilesReceived()
+                                   + " (started at " + resumeFrom + ").");
+                System.out.println(error.getMessage());
+                if (attempt < MAX_ATTEMPTS)
+                {
+                    fetches.schedule(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            attempt(fetch, attempt + 1);
+                        }
+                    }, RETRY_DELAY_MS * attempt, TimeUnit.MILLISECONDS);
+                } else
+                {
+                    fetching.remove(fetch.key, fetch);
+                    fetch.discard();
+                    fetch.future.completeExceptionally(error);
+                }
+            }
+        });
+    }
+
+    /**
+     * Get the partly fetched image while it is still on its way.
+     * Tiles that have arrived are drawn into it.
+     *
+     * @param key The required image key.
+     * @return The partly fetched image or null if it is not being fetched.
+     */
+    public BufferedImage getPartial(Long key)
+    {
+        Fetch fetch = fetching.get(key);
+        return fetch == null ? null : fetch.canvas;
+    }
+
+    /**
+     * Get an image only if it is already in memory.  Not finding it is
+     * not counted as a miss, as the same image may be looked for many
+     * times while it is on its way.
+     *
+     * @param key The required image key.
+     * @return The image or null if it is not in memory.
+     */
+    public BufferedImage getCached(Long key)
+    {
+        BufferedImage image;
+        synchronized (images)
+        {
+            image = images.get(key);
+        }
+        if (image != null)
+        {
+            hits.incrementAndGet();
         }
+        return image;
+    }
 
-        //If not found then initialise the listener
-        TcpServer tcpServer = new TcpServer(this, key);
-        Thread tcpThread = new Thread(tcpServer);
-        tcpThread.start();
+    /**
+     * Get an image held here, decoding it again from disk if it is not in memory.
+     * This may block on the disk so it is not for the draw thread.
+     *
+     * @param key The required image key.
+     * @return The image or null if it is not held.
+     */
+    public BufferedImage get(Long key)
+    {
+        BufferedImage image = getCached(key);
+        if (image != null || !encoded.containsKey(key))
+        {
+            return image;
+        }
+        misses.incrementAndGet();
+        return reload(key);
+    }
 
-        //Send image request to original peer.
-        int[] myIp = frame.getMyIp();
-        int[] req = {frame.getId(), UdpReceiver.IMAGE_REQ, targetID, key, myIp[0], myIp[1], myIp[2], myIp[3]};
-        frame.getBroadcaster().put(req);
-        //Wait for the image to be received.
-        tcpThread.join();
-        System.out.println("image cache thread complete");
+    /**
+     * Get an image held here cut into tiles ready to send, tiling it once if needed.
+     *
+     * @param key The required image key.
+     * @return The tiled image or null if the image is not held.
+     */
+    public TiledImage getTiles(Long key)
+    {
+        BufferedImage image;
+        synchronized (images)
+        {
+            image = images.get(key);
+        }
+        Encoded source = encoded.get(key);
+        if (source == null)
+        {
+            if (image == null)
+            {
+                return null;
+            }
+            source = new Encoded(image);
+            Encoded existing = encoded.putIfAbsent(key, source);
+            source = existing != null ? existing : source;
+        }
+        return source.getTiles(key, image);
+    }
 
-        //Return the image.
-        return hashMap.get(key);
+    /**
+     * Decode an image back into memory from its encoded form.
+     *
+     * @param key The required image key.
+     * @return The image or null if it has no encoded form or it could not be read.
+     */
+    private BufferedImage reload(Long key)
+    {
+        Encoded source = encoded.get(key);
+        if (source == null)
+        {
+            return null;
+        }
+        BufferedImage image = source.read();
+        if (image != null)
+        {
+            reloads.incrementAndGet();
+            put(key, image);
+        }
+        return image;
     }
 
     /**
@@ -89,6 +502,469 @@ public class ImageCache
      */
     public void clear()
     {
-        hashMap.clear();
+        synchronized (images)
+        {
+            images.clear();
+            bytesUsed = 0;
+        }
+        for (Encoded source : encoded.values())
+        {
+            source.delete();
+        }
+        encoded.clear();
+    }
+
+    /**
+     * Work out the content key of an image file.
+     *
+     * @param bytes The image file's bytes.
+     * @return The first 64 bits of the image's SHA-256 hash.
+     */
+    public static long hash(byte[] bytes)
+    {
+        try
+        {
+            return ByteBuffer.wrap(MessageDigest.getInstance("SHA-256").digest(bytes)).getLong();
+        } catch (NoSuchAlgorithmException e)
+        {
+            //Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Get the number of lookups that found the image in memory.
+     *
+     * @return The hit count.
+     */
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of images that were not in memory and had to be
+     * fetched, waited for or read back from disk.  Each fetch counts
+     * once however many times the image is asked for.
+     *
+     * @return The miss count.
+     */
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * Get the number of images dropped from memory to stay within budget.
+     *
+     * @return The eviction count.
+     */
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+
+    /**
+     * Get the number of images decoded again from disk.
+     *
+     * @return The reload count.
+     */
+    public long getReloads()
+    {
+        return reloads.get();
+    }
+
+    /**
+     * Get the memory used by the images held in memory.
+     *
+     * @return The size of their pixel data in bytes.
+     */
+    public long getBytesUsed()
+    {
+        synchronized (images)
+        {
+            return bytesUsed;
+        }
+    }
+
+    /**
+     * Create a temp file in the cache's own directory.  Files are deleted
+     * as soon as they are finished with, so only the directory is
+     * remembered until exit rather than every file ever made.
+     *
+     * @param suffix The file name's suffix.
+     * @return The new empty file.
+     * @throws IOException If the file could not be created.
+     */
+    static synchronized File createTempFile(String suffix) throws IOException
+    {
+        if (tempDirectory == null)
+        {
+            final File directory = Files.createTempDirectory("whiteboard").toFile();
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    File[] left = directory.listFiles();
+                    for (File file : left == null ? new File[0] : left)
+                    {
+                        if (!file.delete())
+                        {
+                            System.out.println("Could not delete " + file + ".");
+                        }
+                    }
+                    if (!directory.delete())
+                    {
+                        System.out.println("Could not delete " + directory + ".");
+                    }
+                }
+            }, "image cache cleanup"));
+            tempDirectory = directory;
+        }
+        return File.createTempFile("image", suffix, tempDirectory);
+    }
+
+    private static long sizeOf(BufferedImage image)
+    {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+
+    /**
+     * Told about each tile of an image as it arrives.
+     */
+    public interface TileListener
+    {
+        /**
+         * Called once a tile has been drawn into the partly fetched image.
+         *
+         * @param x      The tile's left edge in the image.
+         * @param y      The tile's top edge in the image.
+         * @param width  The tile width.
+         * @param height The tile height.
+         */
+        void tileArrived(int x, int y, int width, int height);
+    }
+
+    /**
+     * A single image on its way from another peer.  Progress is kept
+     * between attempts so a new attempt carries on where the last one
+     * stopped.  Attempts are made one at a time.
+     */
+    private class Fetch implements TcpClient.Receiver
+    {
+        private final Long key;
+        private final String address;
+        private final CompletableFuture<BufferedImage> future = new CompletableFuture<>();
+        private final List<TileListener> listeners = new CopyOnWriteArrayList<>();
+        private volatile BufferedImage canvas;
+        private TiledImage tiles;
+        //Waiting to be handed the image rather than fetching it.
+        private volatile boolean awaiting;
+
+        private Fetch(Long key, String address)
+        {
+            this.key = key;
+            this.address = address;
+        }
+
+        private void addListener(TileListener listener)
+        {
+            if (listener != null)
+            {
+                listeners.add(listener);
+            }
+        }
+
+        private int getTilesReceived()
+        {
+            return tiles == null ? 0 : tiles.getAdded();
+        }
+
+        /**
+         * Start from tiles received some other way.
+         *
+         * @param received The tiles received.
+         * @throws IOException If the tiles could not be read.
+         */
+        private void seed(TiledImage received) throws IOException
+        {
+            tiles = received;
+            if (tiles.isOriginal())
+            {
+                //Nothing to show until every slice is here.
+                return;
+            }
+            canvas = new BufferedImage(tiles.getWidth(), tiles.getHeight(), BufferedImage.TYPE_INT_ARGB);
+            tiles.drawTo(canvas);
+            for (int i = 0; i < tiles.getAdded(); i++)
+            {
+                for (TileListener listener : listeners)
+                {
+                    listener.tileArrived(tiles.tileX(i), tiles.tileY(i), tiles.tileWidth(i), tiles.tileHeight(i));
+                }
+            }
+        }
+
+        @Override
+        public void header(int width, int height, int tileSize, int count) throws IOException
+        {
+            if (tiles == null)
+            {
+                tiles = new TiledImage(width, height, tileSize, count);
+                if (!tiles.isOriginal())
+                {
+                    canvas = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+                }
+            } else if (tiles.getWidth() != width || tiles.getHeight() != height || tiles.getTileSize() != tileSize
+                       || tiles.getTileCount() != count)
+            {
+                throw new IOException("Image changed shape between attempts");
+            }
+        }
+
+        @Override
+        public void tile(int index, byte[] tile) throws IOException
+        {
+            if (index != tiles.getAdded())
+            {
+                throw new IOException("Expected tile " + tiles.getAdded() + " but got " + index);
+            }
+            if (tiles.isOriginal())
+            {
+                tiles.append(tile);
+                return;
+            }
+            BufferedImage decoded = TiledImage.decodeTile(tile);
+            tiles.append(tile);
+            int x = tiles.tileX(index), y = tiles.tileY(index);
+            Graphics2D g2d = canvas.createGraphics();
+            g2d.setComposite(AlphaComposite.Src);
+            g2d.drawImage(decoded, x, y, null);
+            g2d.dispose();
+            for (TileListener listener : listeners)
+            {
+                listener.tileArrived(x, y, tiles.tileWidth(index), tiles.tileHeight(index));
+            }
+        }
+
+        /**
+         * Keep the fetched image and its tiles.  An original file is first
+         * checked against the key it was asked for by, and thrown away so
+         * the next attempt starts again if it does not match.
+         *
+         * @return The whole image.
+         * @throws IOException If the original file does not match its key or can't be read.
+         */
+        private BufferedImage finish() throws IOException
+        {
+            if (tiles.isOriginal())
+            {
+                byte[] original = tiles.readOriginal();
+                if (hash(original) != key)
+                {
+                    tiles.delete();
+                    tiles = null;
+                    throw new IOException("Image " + Long.toHexString(key) + " does not match its key");
+                }
+                canvas = TiledImage.decodeTile(original);
+            }
+            setEncoded(key, new Encoded(tiles));
+            put(key, canvas);
+            return canvas;
+        }
+
+        /**
+         * Throw away a fetch that did not finish.
+         */
+        private void discard()
+        {
+            if (tiles != null)
+            {
+                tiles.delete();
+            }
+        }
+    }
+
+    /**
+     * An image in its encoded form on disk.  An image that has to be
+     * encoded here is held until its temp file has been written so it
+     * can still be read in the meantime.  A dropped file is copied and
+     * the copy is sent as it is.  Every file here is the cache's own.
+     */
+    private static class Encoded
+    {
+        //Format the tiles are encoded in.
+        private final String format;
+        //The file holds exactly the bytes the image's key was made from.
+        private final boolean original;
+        private BufferedImage image;
+        private File file;
+        private TiledImage tiles;
+
+        private Encoded(File copy, String format)
+        {
+            file = copy;
+            this.format = format;
+            original = true;
+        }
+
+        private Encoded(BufferedImage image)
+        {
+            this(image, "png");
+        }
+
+        private Encoded(BufferedImage image, String format)
+        {
+            this.image = image;
+            this.format = format;
+            original = false;
+        }
+
+        private Encoded(TiledImage tiles)
+        {
+            this.tiles = tiles;
+            format = "png";
+            original = false;
+        }
+
+        /**
+         * Copy a dropped file's contents to a temp file.  If that fails the
+         * decoded image is kept instead, and is encoded again to be sent.
+         *
+         * @param bytes  The file's contents.
+         * @param image  The decoded image.
+         * @param format The file's format.
+         * @return The encoded form.
+         */
+        private static Encoded copyOf(byte[] bytes, BufferedImage image, String format)
+        {
+            File copy = null;
+            try
+            {
+                copy = createTempFile("." + format);
+                Files.write(copy.toPath(), bytes);
+                return new Encoded(copy, format);
+            } catch (IOException e)
+            {
+                System.out.println("Error copying image to disk.");
+                System.out.println(e.getMessage());
+                if (copy != null && !copy.delete())
+                {
+                    System.out.println("Could not delete " + copy + ".");
+                }
+                return new Encoded(image, format);
+            }
+        }
+
+        /**
+         * Pick the tile format for an image file.  Jpeg stays jpeg and
+         * everything else is png so nothing lossless is made lossy.
+         *
+         * @param file The image file.
+         * @return The ImageIO format name.
+         */
+        private static String formatOf(File file)
+        {
+            String name = file.getName().toLowerCase();
+            return name.endsWith(".jpg") || name.endsWith(".jpeg") ? "jpg" : "png";
+        }
+
+        private synchronized File getFile()
+        {
+            if (file == null && image != null)
+            {
+                try
+                {
+                    file = createTempFile(".png");
+                    //Png so nothing is lost.
+                    ImageIO.write(image, "png", file);
+                    image = null;
+                } catch (IOException e)
+                {
+                    //Keep the image in memory rather than lose it.
+                    System.out.println("Error writing image to disk.");
+                    System.out.println(e.getMessage());
+                    if (file != null && !file.delete())
+                    {
+                        System.out.println("Could not delete " + file + ".");
+                    }
+                    file = null;
+                }
+            }
+            return file;
+        }
+
+        /**
+         * Get the image ready to send, slicing the original file or cutting
+         * the image into tiles the first time.
+         *
+         * @param key     The image key.
+         * @param decoded The decoded image if it is to hand, to save decoding it again.
+         * @return The tiles or null if the image could not be read or tiled.
+         */
+        private synchronized TiledImage getTiles(long key, BufferedImage decoded)
+        {
+            if (tiles == null)
+            {
+                BufferedImage source = decoded != null ? decoded : read();
+                if (source == null)
+                {
+                    return null;
+                }
+                try
+                {
+                    byte[] bytes = original ? Files.readAllBytes(file.toPath()) : null;
+                    //Checked anyway, as a peer throws away an original that does not match its key.
+                    if (bytes != null && hash(bytes) == key)
+                    {
+                        tiles = TiledImage.slice(bytes, source.getWidth(), source.getHeight());
+                    } else
+                    {
+                        tiles = TiledImage.encode(source, format);
+                    }
+                } catch (IOException e)
+                {
+                    System.out.println("Error cutting image into tiles.");
+                    System.out.println(e.getMessage());
+                }
+            }
+            return tiles;
+        }
+
+        private synchronized BufferedImage read()
+        {
+            if (image != null)
+            {
+                return image;
+            }
+            try
+            {
+                if (file != null && file.isFile())
+                {
+                    return ImageIO.read(file);
+                }
+                return tiles == null ? null : tiles.decode();
+            } catch (IOException e)
+            {
+                System.out.println("Error reading image from disk.");
+                System.out.println(e.getMessage());
+                return null;
+            }
+        }
+
+        private synchronized void delete()
+        {
+            image = null;
+            if (file != null && !file.delete())
+            {
+                System.out.println("Could not delete " + file + ".");
+            }
+            if (tiles != null)
+            {
+                tiles.delete();
+            }
+        }
     }
 }
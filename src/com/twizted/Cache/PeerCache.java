@@ -10,6 +10,7 @@ import com.twizted.Utility.Triple;
 
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 
 /**
  * @author Ian Weeks 6204848
@@ -37,7 +38,7 @@ public class PeerCache implements Iterable<Triple<Integer, String, Integer>>
      *
      * @param peerIP Peer to be added.
      */
-    public void addPeer(Triple<Integer, String, Integer> peerIP)
+    public synchronized void addPeer(Triple<Integer, String, Integer> peerIP)
     {
         //Check if a record of the peer exists and if not then add it.
         if (!peerIPs.contains(peerIP))
@@ -59,7 +60,7 @@ public class PeerCache implements Iterable<Triple<Integer, String, Integer>>
      *
      * @param peerIP The ip of the peer to be removed.
      */
-    public void removePeer(String peerIP)
+    public synchronized void removePeer(String peerIP)
     {
         //If the peer exists then remove it.
         Triple temp = null;
@@ -82,13 +83,24 @@ public class PeerCache implements Iterable<Triple<Integer, String, Integer>>
      * <p>
      * Resetting empties the list and clears the longest history.
      */
-    public void resetPeers()
+    public synchronized void resetPeers()
     {
         peerIPs.clear();
         longestHistory = null;
+        longest = 0;
         System.out.println("PeerCache cleared");
     }
 
+    /**
+     * Get a copy of the peer list that is safe to use while peers come and go.
+     *
+     * @return A copy of the peer list.
+     */
+    public synchronized List<Triple<Integer, String, Integer>> getPeers()
+    {
+        return new ArrayList<>(peerIPs);
+    }
+
     /**
      * Get the size of this cache.
      *
@@ -105,7 +117,7 @@ public class PeerCache implements Iterable<Triple<Integer, String, Integer>>
      * @return The peer with the longest history.
      * @see Triple
      */
-    public Triple<Integer, String, Integer> getLongestHistory()
+    public synchronized Triple<Integer, String, Integer> getLongestHistory()
     {
         return longestHistory;
     }
@@ -0,0 +1,581 @@
+/**
+ * Peer to peer whiteboard
+ * Distributed computing.
+ * CMPSMC34
+ */
+
+package com.twizted.Cache;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * @author Ian Weeks 6204848
+ *         <p>
+ *         TiledImage class.
+ *         <p>
+ *         An image cut into square tiles, each encoded on its own so it
+ *         can be sent and drawn as soon as it arrives.  Tiles run left to
+ *         right, top to bottom.
+ *         <p>
+ *         The tiles are kept in a temp file, each one written as its
+ *         length, a digest of its bytes and then its bytes, so any run of
+ *         tiles can be sent straight from the file.  Tiles are added in
+ *         order and the image is complete once every tile has been added.
+ *         The file is kept open for adding until then.  A tile that does
+ *         not match its digest is never added.
+ *         <p>
+ *         An image that does not need encoding again is sent as its
+ *         original file instead, cut into slices of {@link #SLICE_SIZE}
+ *         bytes with a tile size of {@link #ORIGINAL}.  Nothing can be
+ *         drawn until every slice is here, but the whole file can then be
+ *         checked against the image's content key and nothing is lost to
+ *         encoding it again.
+ */
+public class TiledImage
+{
+    public static final int TILE_SIZE = 256;
+    //Tile size of an image sent as slices of its original file.
+    public static final int ORIGINAL = 0;
+    public static final int SLICE_SIZE = 64 << 10;
+    //Quality of jpeg tiles, for images that had to be scaled.
+    private static final float JPEG_QUALITY = 0.9f;
+    //Most slices in an original file.  Anything bigger is not an image we sent.
+    private static final int MAX_SLICES = 4096;
+    private final int width, height, tileSize, columns, count;
+    //Start of each tile in the file.  The last entry is the end of the file.
+    private final long[] offsets;
+    private final File file;
+    //Open while tiles are still being added.
+    private FileChannel out;
+    private int added;
+
+    /**
+     * TiledImage constructor.  Creates an empty image ready for its tiles.
+     *
+     * @param width    The image width.
+     * @param height   The image height.
+     * @param tileSize The width and height of a tile.
+     * @throws IOException If the temp file could not be created.
+     */
+    public TiledImage(int width, int height, int tileSize) throws IOException
+    {
+        this(width, height, tileSize, tileCount(width, height, tileSize));
+    }
+
+    /**
+     * TiledImage constructor.  Creates an empty image ready for its tiles.
+     *
+     * @param width    The image width.
+     * @param height   The image height.
+     * @param tileSize The width and height of a tile, or {@link #ORIGINAL}.
+     * @param count    The number of tiles, or slices of the original file.
+     * @throws IOException If the temp file could not be created.
+     */
+    public TiledImage(int width, int height, int tileSize, int count) throws IOException
+    {
+        if (!isValid(width, height, tileSize, count))
+        {
+            throw new IOException("Bad image " + width + "x" + height + " " + tileSize + " " + count);
+        }
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        columns = tileSize == ORIGINAL ? 1 : (width + tileSize - 1) / tileSize;
+        this.count = count;
+        offsets = new long[count + 1];
+        file = ImageCache.createTempFile(".tiles");
+    }
+
+    /**
+     * Cut an image into tiles and encode each one.
+     *
+     * @param image  The image to be tiled.
+     * @param format The ImageIO format name to encode each tile with.
+     * @return The tiled image.
+     * @throws IOException If a tile could not be encoded or written.
+     */
+    public static TiledImage encode(BufferedImage image, String format) throws IOException
+    {
+        TiledImage tiled = new TiledImage(image.getWidth(), image.getHeight(), TILE_SIZE);
+        try
+        {
+            for (int i = 0; i < tiled.count; i++)
+            {
+                BufferedImage tile = image.getSubimage(tiled.tileX(i), tiled.tileY(i), tiled.tileWidth(i),
+                                                       tiled.tileHeight(i));
+                if (format.equals("jpg") && tile.getColorModel().hasAlpha())
+                {
+                    //Jpeg can't hold alpha so flatten the tile first.
+                    BufferedImage flat = new BufferedImage(tile.getWidth(), tile.getHeight(),
+                                                           BufferedImage.TYPE_INT_RGB);
+                    Graphics2D g2d = flat.createGraphics();
+                    g2d.drawImage(tile, 0, 0, null);
+                    g2d.dispose();
+                    tile = flat;
+                }
+                tiled.append(encodeTile(tile, format));
+            }
+        } catch (IOException | RuntimeException e)
+        {
+            tiled.delete();
+            throw e;
+        }
+        return tiled;
+    }
+
+    private static byte[] encodeTile(BufferedImage tile, String format) throws IOException
+    {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+        if (!writers.hasNext())
+        {
+            throw new IOException("No writer for " + format);
+        }
+        ImageWriter writer = writers.next();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(bytes))
+        {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (format.equals("jpg"))
+            {
+                //The default quality visibly blurs a scaled photo.
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(JPEG_QUALITY);
+            }
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(tile, null, null), param);
+        } finally
+        {
+            writer.dispose();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Cut an image's original file into slices so it can be sent as it is.
+     *
+     * @param original The image file's bytes.
+     * @param width    The image width.
+     * @param height   The image height.
+     * @return The sliced image.
+     * @throws IOException If the file is too big or a slice could not be written.
+     */
+    public static TiledImage slice(byte[] original, int width, int height) throws IOException
+    {
+        TiledImage sliced = new TiledImage(width, height, ORIGINAL, (original.length + SLICE_SIZE - 1) / SLICE_SIZE);
+        try
+        {
+            for (int offset = 0; offset < original.length; offset += SLICE_SIZE)
+            {
+                sliced.append(Arrays.copyOfRange(original, offset, Math.min(original.length, offset + SLICE_SIZE)));
+            }
+        } catch (IOException e)
+        {
+            sliced.delete();
+            throw e;
+        }
+        return sliced;
+    }
+
+    /**
+     * Rebuild a tiled image from the start of its tile file received some
+     * other way.  Only the tiles wholly inside the bytes given and that
+     * match their digests are added, up to the first that is not.
+     *
+     * @param width    The image width.
+     * @param height   The image height.
+     * @param tileSize The width and height of a tile, or {@link #ORIGINAL}.
+     * @param count    The number of tiles.
+     * @param data     The start of the tile file.
+     * @param length   How many bytes of it are usable.
+     * @return The tiled image with as many tiles as could be read.
+     * @throws IOException If the temp file could not be created or written.
+     */
+    public static TiledImage read(int width, int height, int tileSize, int count, byte[] data, int length)
+            throws IOException
+    {
+        TiledImage tiled = new TiledImage(width, height, tileSize, count);
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        while (!tiled.isComplete() && buffer.remaining() >= 12)
+        {
+            int tileLength = buffer.getInt();
+            long digest = buffer.getLong();
+            if (tileLength <= 0 || tileLength > buffer.remaining())
+            {
+                break;
+            }
+            byte[] tile = new byte[tileLength];
+            buffer.get(tile);
+            if (digest(tile) != digest)
+            {
+                System.out.println("Tile " + tiled.getAdded() + " does not match its digest.");
+                break;
+            }
+            tiled.append(tile);
+        }
+        return tiled;
+    }
+
+    /**
+     * Work out the digest a tile is sent with.
+     *
+     * @param tile The encoded tile.
+     * @return The first 64 bits of the tile's SHA-256 hash.
+     */
+    public static long digest(byte[] tile)
+    {
+        return ImageCache.hash(tile);
+    }
+
+    /**
+     * Check an image's size and tile count are ones we could have sent.
+     *
+     * @param width     The image width.
+     * @param height    The image height.
+     * @param tileSize  The width and height of a tile, or {@link #ORIGINAL}.
+     * @param count     The number of tiles.
+     * @param maxPixels Most pixels in an image.
+     * @return True if they are.
+     */
+    public static boolean isValid(int width, int height, int tileSize, int count, long maxPixels)
+    {
+        if (width <= 0 || height <= 0 || tileSize < 0 || (long) width * height > maxPixels)
+        {
+            return false;
+        }
+        return tileSize == ORIGINAL ? count > 0 && count <= MAX_SLICES : count == tileCount(width, height, tileSize);
+    }
+
+    private static boolean isValid(int width, int height, int tileSize, int count)
+    {
+        return isValid(width, height, tileSize, count, Long.MAX_VALUE);
+    }
+
+    /**
+     * Work out how many tiles an image is cut into.
+     *
+     * @param width    The image width.
+     * @param height   The image height.
+     * @param tileSize The width and height of a tile.
+     * @return The number of tiles.
+     */
+    public static int tileCount(int width, int height, int tileSize)
+    {
+        return ((width + tileSize - 1) / tileSize) * ((height + tileSize - 1) / tileSize);
+    }
+
+    /**
+     * Add the next tile.  The file is closed once the last tile is added.
+     *
+     * @param tile The encoded tile.
+     * @throws IOException If the tile could not be written.
+     */
+    public synchronized void append(byte[] tile) throws IOException
+    {
+        if (added == count)
+        {
+            throw new IOException("Image already has all of its tiles");
+        }
+        if (out == null)
+        {
+            out = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        ByteBuffer record = ByteBuffer.allocate(12 + tile.length);
+        record.putInt(tile.length).putLong(digest(tile)).put(tile).flip();
+        while (record.hasRemaining())
+        {
+            out.write(record);
+        }
+        offsets[added + 1] = offsets[added] + record.limit();
+        added++;
+        if (added == count)
+        {
+            close();
+        }
+    }
+
+    private synchronized void close() throws IOException
+    {
+        if (out != null)
+        {
+            out.close();
+            out = null;
+        }
+    }
+
+    /**
+     * Decode every tile back into a single image.
+     *
+     * @return The whole image.
+     * @throws IOException If the image is not complete or a tile could not be read.
+     */
+    public BufferedImage decode() throws IOException
+    {
+        if (!isComplete())
+        {
+            throw new IOException("Image is missing tiles");
+        }
+        if (isOriginal())
+        {
+            return decodeTile(readOriginal());
+        }
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        drawTo(image);
+        return image;
+    }
+
+    /**
+     * Put the slices of an original file back together.
+     *
+     * @return The original file's bytes.
+     * @throws IOException If the image is not complete or not sent as its original file.
+     */
+    public byte[] readOriginal() throws IOException
+    {
+        if (!isOriginal() || !isComplete())
+        {
+            throw new IOException("Image is not a whole original file");
+        }
+        ByteArrayOutputStream original = new ByteArrayOutputStream((int) getOffset(count));
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+        {
+            for (int i = 0; i < count; i++)
+            {
+                byte[] bytes = new byte[in.readInt()];
+                in.readLong();
+                in.readFully(bytes);
+                original.write(bytes);
+            }
+        }
+        return original.toByteArray();
+    }
+
+    /**
+     * Decode the tiles added so far into an image the size of this one.
+     * Nothing is drawn for an original file until it is complete.
+     *
+     * @param image The image to draw the tiles into.
+     * @throws IOException If a tile could not be read.
+     */
+    public void drawTo(BufferedImage image) throws IOException
+    {
+        if (isOriginal())
+        {
+            if (isComplete())
+            {
+                Graphics2D g2d = image.createGraphics();
+                g2d.setComposite(AlphaComposite.Src);
+                g2d.drawImage(decode(), 0, 0, null);
+                g2d.dispose();
+            }
+            return;
+        }
+        int tiles = getAdded();
+        Graphics2D g2d = image.createGraphics();
+        //Copy tiles in as they are.  Blending them onto the empty image would round translucent pixels.
+        g2d.setComposite(AlphaComposite.Src);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+        {
+            for (int i = 0; i < tiles; i++)
+            {
+                byte[] bytes = new byte[in.readInt()];
+                in.readLong();
+                in.readFully(bytes);
+                g2d.drawImage(decodeTile(bytes), tileX(i), tileY(i), null);
+            }
+        } finally
+        {
+            g2d.dispose();
+        }
+    }
+
+    /**
+     * Decode a single encoded tile.
+     *
+     * @param bytes The encoded tile.
+     * @return The tile.
+     * @throws IOException If the tile could not be read.
+     */
+    public static BufferedImage decodeTile(byte[] bytes) throws IOException
+    {
+        BufferedImage tile = ImageIO.read(new ByteArrayInputStream(bytes));
+        if (tile == null)
+        {
+            throw new IOException("Unreadable tile");
+        }
+        return tile;
+    }
+
+    /**
+     * Check if every tile has been added.
+     *
+     * @return True if complete.
+     */
+    public synchronized boolean isComplete()
+    {
+        return added == count;
+    }
+
+    /**
+     * Check if this is an original file cut into slices rather than tiles.
+     *
+     * @return True for an original file.
+     */
+    public boolean isOriginal()
+    {
+        return tileSize == ORIGINAL;
+    }
+
+    /**
+     * Get the number of tiles added so far.
+     *
+     * @return The number of tiles added.
+     */
+    public synchronized int getAdded()
+    {
+        return added;
+    }
+
+    /**
+     * Get where a tile starts in the file.
+     *
+     * @param index The tile index.  The tile count gives the end of the file.
+     * @return The offset of the tile in bytes.
+     */
+    public synchronized long getOffset(int index)
+    {
+        return offsets[index];
+    }
+
+    /**
+     * Get the file holding the tiles.
+     *
+     * @return The tile file.
+     */
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Get the image width.
+     *
+     * @return The width in pixels.
+     */
+    public int getWidth()
+    {
+        return width;
+    }
+
+    /**
+     * Get the image height.
+     *
+     * @return The height in pixels.
+     */
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * Get the width and height of a full tile.
+     *
+     * @return The tile size in pixels, or {@link #ORIGINAL}.
+     */
+    public int getTileSize()
+    {
+        return tileSize;
+    }
+
+    /**
+     * Get the number of tiles.
+     *
+     * @return The number of tiles.
+     */
+    public int getTileCount()
+    {
+        return count;
+    }
+
+    /**
+     * Get the left edge of a tile.
+     *
+     * @param index The tile index.
+     * @return The x coordinate in the image.
+     */
+    public int tileX(int index)
+    {
+        return (index % columns) * tileSize;
+    }
+
+    /**
+     * Get the top edge of a tile.
+     *
+     * @param index The tile index.
+     * @return The y coordinate in the image.
+     */
+    public int tileY(int index)
+    {
+        return (index / columns) * tileSize;
+    }
+
+    /**
+     * Get the width of a tile.  Tiles on the right edge may be narrower.
+     *
+     * @param index The tile index.
+     * @return The tile width.
+     */
+    public int tileWidth(int index)
+    {
+        return Math.min(tileSize, width - tileX(index));
+    }
+
+    /**
+     * Get the height of a tile.  Tiles on the bottom edge may be shorter.
+     *
+     * @param index The tile index.
+     * @return The tile height.
+     */
+    public int tileHeight(int index)
+    {
+        return Math.min(tileSize, height - tileY(index));
+    }
+
+    /**
+     * Close and delete the tile file.  A file that can't be deleted now is
+     * removed with the rest of the cache's temp files on exit.
+     */
+    public void delete()
+    {
+        try
+        {
+            close();
+        } catch (IOException e)
+        {
+            System.out.println("Error closing " + file + ".");
+            System.out.println(e.getMessage());
+        }
+        if (!file.delete())
+        {
+            System.out.println("Could not delete " + file + ".");
+        }
+    }
+}
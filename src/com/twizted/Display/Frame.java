@@ -10,17 +10,22 @@ import com.twizted.Cache.ActionCache;
 import com.twizted.Cache.ImageCache;
 import com.twizted.Cache.PeerCache;
 import com.twizted.FileDrop;
+import com.twizted.Network.HistoryServer;
+import com.twizted.Network.ImageMulticaster;
+import com.twizted.Network.TcpServer;
 import com.twizted.Network.UdpBroadcaster;
 import com.twizted.Network.UdpReceiver;
 import com.twizted.Utility.Draw;
 import com.twizted.Utility.DrawRobot;
+import com.twizted.Utility.ImageLoader;
+import com.twizted.Utility.OpQueue;
+import com.twizted.Utility.OpRing;
+import com.twizted.Utility.Tasks;
 
-import javax.imageio.ImageIO;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.awt.image.BufferStrategy;
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
@@ -40,8 +45,9 @@ import static com.twizted.Network.UdpReceiver.*;
 public class Frame extends Canvas implements KeyListener, MouseListener, MouseMotionListener, MouseWheelListener
 {
     public final static Color ERASE = Color.WHITE;
-    private static int imageCount = 0;
     private final PeerCache peerCache = new PeerCache();
+    //Local ops are published here once and read by both draw and broadcast.
+    private final OpRing opRing = OpRing.fromProperties(8192);
     private final SelectPanel selectPanel;
     private final Draw draw;
     private final ActionCache actionCache;
@@ -49,11 +55,14 @@ public class Frame extends Canvas implements KeyListener, MouseListener, MouseMo
     private volatile BufferStrategy bs;
     private Point start, end;
     private UdpBroadcaster broadcaster;
+    private UdpReceiver receiver;
     private ColourPanel colourPanel;
-    private volatile JLabel peerCount, historySize;
+    private volatile JLabel peerCount, historySize, sendRate, sendLimit, queueDepth, receiverCpu, imageStats;
+    private volatile JLabel frameRate, frameLoad;
     private boolean exiting;
     private int width = 1000, height = 800, canvasHeight = (int) (height * 0.714);
-    private ImageCache imageCache;
+    //Created up front as the stats timer and the network threads use it from the start.
+    private final ImageCache imageCache = new ImageCache();
 
 
     /**
@@ -145,7 +154,7 @@ public class Frame extends Canvas implements KeyListener, MouseListener, MouseMo
          */
         draw = Draw.getInstance(this, width, canvasHeight);
         broadcaster = new UdpBroadcaster(this);
-        UdpReceiver receiver = new UdpReceiver(this);
+        receiver = new UdpReceiver(this);
         DrawRobot drawRobot = new DrawRobot(this);
 
         //Initialise and add the bottom panels.
@@ -170,6 +179,77 @@ public class Frame extends Canvas implements KeyListener, MouseListener, MouseMo
         historySize.setBounds(580, 35, 100, 30);
         palletPanel.add(historySize);
 
+        frameRate = new JLabel("Frames: 0/s");
+        frameRate.setBounds(690, 5, 100, 30);
+        palletPanel.add(frameRate);
+
+        frameLoad = new JLabel("0.0 op 0.0 ms");
+        frameLoad.setToolTipText("Ops drawn and time taken per frame");
+        frameLoad.setBounds(690, 35, 100, 30);
+        palletPanel.add(frameLoad);
+
+        sendRate = new JLabel("Sent: 0 op/s 0 pkt/s 0 B/s");
+        sendRate.setBounds(580, 65, 200, 30);
+        palletPanel.add(sendRate);
+
+        receiverCpu = new JLabel("Receiver CPU: 0.0%");
+        receiverCpu.setBounds(580, 95, 200, 30);
+        palletPanel.add(receiverCpu);
+
+        imageStats = new JLabel("Images: 0 MB 0 hit 0 miss 0 spilled");
+        imageStats.setBounds(580, 125, 250, 30);
+        palletPanel.add(imageStats);
+
+        sendLimit = new JLabel("Send limit: 0 KB/s 0 loss/s");
+        sendLimit.setBounds(580, 155, 200, 30);
+        palletPanel.add(sendLimit);
+
+        queueDepth = new JLabel("Queues: draw 0/0 send 0/0 tasks 0/0");
+        queueDepth.setBounds(580, 180, 250, 25);
+        palletPanel.add(queueDepth);
+
+        //Refresh the send and receive counters once a second.
+        new Timer(1000, new ActionListener()
+        {
+            @Override
+            public void actionPerformed(ActionEvent e)
+            {
+                sendRate.setText(String.format("Sent: %d op/s %d pkt/s %d B/s", broadcaster.getOpsPerSecond(),
+                                               broadcaster.getPacketsPerSecond(), broadcaster.getBytesPerSecond()));
+                sendLimit.setText(String.format("Send limit: %d KB/s %d loss/s", broadcaster.getRateLimit() >> 10,
+                                                broadcaster.getLossReportsPerSecond()));
+                OpQueue drawQueue = draw.getQueue(), sendQueue = broadcaster.getQueue();
+                Tasks tasks = Tasks.getInstance();
+                queueDepth.setText(String.format("Queues: draw %d/%d send %d/%d tasks %d/%d", drawQueue.size(),
+                                                 drawQueue.getHighWater(), sendQueue.size(),
+                                                 sendQueue.getHighWater(), tasks.getActive(), tasks.getQueued()));
+                //Running and queued tasks in each group and the state of each service.
+                StringBuilder groups = new StringBuilder("<html>");
+                groups.append(String.format("Local ops: %d overflowed %d waiting %d dropped<br>",
+                                            opRing.getOverflowed(), opRing.getOverflowSize(), opRing.getDropped()));
+                groups.append(tasks.isVirtual() ? "Virtual threads" : "Thread pool");
+                for (Tasks.Group group : tasks.getGroups())
+                {
+                    groups.append(String.format("<br>%s: %d/%d running, %d/%d queued, %d rejected", group.getName(),
+                                                group.getActive(), group.getLimit(), group.getQueued(),
+                                                group.getMaxQueued(), group.getRejected()));
+                }
+                //Services run for the life of the program so any that ended has failed.
+                for (Thread service : tasks.getServices())
+                {
+                    groups.append(String.format("<br>%s: %s", service.getName(),
+                                                service.isAlive() ? "running" : "stopped"));
+                }
+                queueDepth.setToolTipText(groups.toString());
+                receiverCpu.setText(String.format("Receiver CPU: %.1f%%", receiver.getCpuUsage()));
+                frameRate.setText(String.format("Frames: %d/s", draw.getFramesPerSecond()));
+                frameLoad.setText(String.format("%.1f op %.1f ms", draw.getOpsPerFrame(), draw.getFrameTime()));
+                imageStats.setText(String.format("Images: %d MB %d hit %d miss %d spilled",
+                                                 imageCache.getBytesUsed() >> 20, imageCache.getHits(),
+                                                 imageCache.getMisses(), imageCache.getEvictions()));
+            }
+        }).start();
+
         frame.getContentPane().add(palletPanel, BorderLayout.SOUTH);
 
         frame.pack();
@@ -186,17 +266,18 @@ public class Frame extends Canvas implements KeyListener, MouseListener, MouseMo
         bs = this.getBufferStrategy();
 
         //Create and start all required threads.
-        final Thread broadcastThread = new Thread(broadcaster);
-        Thread receiveThread = new Thread(receiver);
-        Thread drawThread = new Thread(draw);
-        Thread robotThread = new Thread(drawRobot);
-        drawThread.start();
-        receiveThread.start();
-        broadcastThread.start();
-        robotThread.start();
+        Tasks tasks = Tasks.getInstance();
+        tasks.startService("draw", draw);
+        tasks.startService("receive", receiver);
+        tasks.startService("broadcast", broadcaster);
+        tasks.startService("robot", drawRobot);
+        tasks.startService("history server", new HistoryServer(this));
 
         final String allowedExtensions = "png jpeg jpg bmp";
-        imageCache = new ImageCache(this);
+        tasks.startService("image server", new TcpServer(imageCache));
+        ImageMulticaster imageMulticaster = new ImageMulticaster(this);
+        tasks.startService("image multicast", imageMulticaster);
+        final ImageLoader imageLoader = new ImageLoader(this, imageMulticaster);
         new FileDrop(this, new FileDrop.Listener()
         {
 
@@ -213,23 +294,13 @@ public class Frame extends Canvas implements KeyListener, MouseListener, MouseMo
                 {
                     if (allowedExtensions.contains(file.getName().split("\\.")[1]))
                     {
-                        try
+                        //Read in the background.  The image is drawn and sent once it is ready.
+                        Point p = Frame.this.getMousePosition();
+                        if (p == null)
                         {
-                            BufferedImage image = ImageIO.read(file);
-                            imageCount++;
-                            imageCache.put(imageCount, image);
-
-                            Point p = Frame.this.getMousePosition();
-                            int x = p.x - image.getWidth(null) / 2;
-                            int y = p.y - image.getHeight(null) / 2;
-                            int[] ip = getMyIp();
-                            int[] imageData = {getId(), Draw.IMAGE, x, y, imageCount, ip[0], ip[1], ip[2], ip[3]};
-                            draw.put(imageData);
-                            broadcaster.put(imageData);
-                        } catch (IOException | InterruptedException e)
-                        {
-                            e.printStackTrace();
+                            p = new Point(width / 2, canvasHeight / 2);
                         }
+                        imageLoader.load(file, p);
                     } else
                     {
                         System.out.println("Extension " + file.getName().split("\\.")[1] + " failed");
@@ -275,7 +346,7 @@ public class Frame extends Canvas implements KeyListener, MouseListener, MouseMo
                     {
                         // No need for the rest of the fields when doing a clear...
                         int[] data = {getId(), Draw.CLEAR};
-                        draw.put(data);
+                        offer(data);
 
                         //Send a clear request to peers.
                         int[] req = {getId(), CLEAR_REQ};
@@ -300,28 +371,34 @@ public class Frame extends Canvas implements KeyListener, MouseListener, MouseMo
             //text options.
             if (start != null)
             {
-                try
-                {
-                    //These assignments are only to shorten the data line.
-                    char c = e.getKeyChar();
-                    int x = start.x + draw.getTextOffset();
-                    int colour = colourPanel.getDrawColour().getRGB();
-                    int[] data = {getId(), Draw.TEXT, x, start.y, (int) c, colour, selectPanel.getThickValue()};
-                    draw.put(data);
-                    broadcaster.put(data);
-                } catch (InterruptedException e1)
-                {
-                    e1.printStackTrace();
-                }
+                //These assignments are only to shorten the data line.
+                char c = e.getKeyChar();
+                int x = start.x + draw.getTextOffset();
+                int colour = colourPanel.getDrawColour().getRGB();
+                int[] data = {getId(), Draw.TEXT, x, start.y, (int) c, colour, selectPanel.getThickValue()};
+                offer(data);
             }
         }
     }
 
+    /**
+     * Add a networked action to the history and update the history size label.
+     *
+     * @param data     The action.
+     * @param sequence The originator's sequence number.  0 if it has none.
+     * @return True if the action is new.  False if it was already in the history.
+     * @throws InterruptedException If interrupted while blocking.
+     */
+    public boolean record(int[] data, int sequence) throws InterruptedException
+    {
+        boolean added = actionCache.put(data, sequence);
+        historySize.setText(String.format("History size: %d", actionCache.getSize()));
+        return added;
+    }
+
     public void clearAll()
     {
         actionCache.clear();
-        imageCount = 0;
-        imageCache.clear();
         historySize.setText("History size: 0");
     }
 
@@ -411,20 +488,39 @@ public class Frame extends Canvas implements KeyListener, MouseListener, MouseMo
              */
             int[] data = {getId(), Draw.DRAW, start.x, start.y, end.x, end.y, myColour.getRGB(), selectPanel.getThickValue()};
 
-            try
-            {
-                broadcaster.put(data);
-                draw.put(data);
-            } catch (InterruptedException intEx)
-            {
-                System.out.println("Exception in broadcast/draw put.\n" + intEx.getMessage());
-            }
+            offer(data);
 
             //The end point becomes the next start point.
             start = end;
         }
     }
 
+    /**
+     * Draw a local op and send it to peers.  The op is published to the
+     * ring once and both draw and broadcast read it from there.  Waits
+     * for room so must not be called on the event dispatch thread.
+     *
+     * @param data The op.
+     * @throws InterruptedException If interrupted while waiting for room in the ring.
+     */
+    public void publish(int[] data) throws InterruptedException
+    {
+        opRing.publish(data);
+    }
+
+    /**
+     * Draw a local op and send it to peers without waiting.  For the event
+     * dispatch thread.  Ops that find the ring full are overflowed as set
+     * by {@code whiteboard.localpolicy}.
+     *
+     * @param data The op.
+     * @return False if the op was turned away.
+     */
+    public boolean offer(int[] data)
+    {
+        return opRing.offer(data);
+    }
+
     //<editor-fold desc="Accessor methods.">
 
     /**
@@ -460,6 +556,17 @@ public class Frame extends Canvas implements KeyListener, MouseListener, MouseMo
         return draw;
     }
 
+    /**
+     * Get the ring local ops are published to.
+     *
+     * @return This frame's OpRing.
+     * @see OpRing
+     */
+    public OpRing getOpRing()
+    {
+        return opRing;
+    }
+
     /**
      * Get the ImageCache object.
      *
@@ -502,6 +609,17 @@ public class Frame extends Canvas implements KeyListener, MouseListener, MouseMo
         return broadcaster;
     }
 
+    /**
+     * Get the UdpReceiver object.
+     *
+     * @return This frame's UdpReceiver.
+     * @see UdpReceiver
+     */
+    public UdpReceiver getReceiver()
+    {
+        return receiver;
+    }
+
     /**
      * Get the ActionCache object.
      *
@@ -6,10 +6,10 @@
 
 package com.twizted.Display;
 
-import com.twizted.Cache.PeerCache;
+import com.twizted.Network.HistoryDownloader;
 import com.twizted.Network.UdpReceiver;
-import com.twizted.Network.UdpServer;
 import com.twizted.Utility.Draw;
+import com.twizted.Utility.Tasks;
 
 import javax.swing.*;
 import java.awt.*;
@@ -17,11 +17,8 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
-import java.net.SocketException;
 import java.util.Hashtable;
 
-import static com.twizted.Network.UdpReceiver.REQ_HISTORY;
-
 /**
  * @author Ian Weeks 6204848
  *
@@ -41,6 +38,9 @@ public class SelectPanel extends JPanel
     private volatile boolean networkOn;
     private JLabel thickLabel;
     private boolean robot, replaying;
+    //One download or replay at a time.  Further clicks wait for it to finish.
+    private final Tasks.Group downloads = Tasks.getInstance().newGroup("history download", 1);
+    private final Tasks.Group replays = Tasks.getInstance().newGroup("replay", 1);
 
     /**
      * Creates a new <code>JPanel</code> with a double buffer
@@ -67,34 +67,17 @@ public class SelectPanel extends JPanel
                 {
                     try
                     {
-                        //Set network flag true.
+                        //Set network flag true and wake the receiver.
                         networkOn = true;
+                        frame.getReceiver().networkChanged();
                         disconnect.setSelected(false);
                         //Check for peers.
                         frame.findPeers();
-                        frame.getImageCache().clear();
                         //Small pause to ensure peer search is complete.
                         Thread.sleep(500);
-                        //Get the peer cache and longest history.
-                        PeerCache pc = frame.getPeerCache();
-                        if (pc.getLongestHistory() != null)
-                        {
-                            int[] myIp = frame.getMyIp();
-                            int targetID = pc.getLongestHistory().getKey();
-                            int[] data = {frame.getId(), REQ_HISTORY, targetID, myIp[0], myIp[1], myIp[2], myIp[3]};
-
-                            //Initialise the history listener.
-                            UdpServer historyServer = new UdpServer(frame, pc.getLongestHistory().getValueTwo());
-                            Thread historyThread = new Thread(historyServer);
-                            historyThread.start();
-
-                            //Send the history request.
-                            frame.getBroadcaster().put(data);
-
-                            //Wait for this thread to finish.
-                            historyThread.join();
-                        }
-                    } catch (InterruptedException | SocketException e1)
+                        //Fetch the history in chunks from every peer found.
+                        downloads.execute(new HistoryDownloader(frame));
+                    } catch (InterruptedException e1)
                     {
                         e1.printStackTrace();
                     }
@@ -119,12 +102,10 @@ public class SelectPanel extends JPanel
                 {
                     try
                     {
-                        //Send disconnecting message and reset peer size label.
+                        //Send disconnecting message.
+                        //The history is kept so reconnecting only fetches what was missed.
                         int[] myIp = frame.getMyIp();
                         int[] leaveData = {frame.getId(), UdpReceiver.LEAVE_NOTE, myIp[0], myIp[1], myIp[2], myIp[3]};
-                        frame.getActionCache().clear();
-                        frame.getHistorySize().setText(
-                                String.format("History size: %d", frame.getActionCache().getSize()));
                         frame.getBroadcaster().put(leaveData);
                         //Small pause to ensure disconnect message is sent.
                         Thread.sleep(200);
@@ -132,8 +113,9 @@ public class SelectPanel extends JPanel
                     {
                         ex.printStackTrace();
                     }
-                    //Set network flag false.
+                    //Set network flag false and let the receiver go to sleep.
                     networkOn = false;
+                    frame.getReceiver().networkChanged();
                     connect.setSelected(false);
                     frame.getPeerCache().resetPeers();
                     frame.getPeerCount().setText("Peer count: 0");
@@ -209,7 +191,7 @@ public class SelectPanel extends JPanel
             {
                 System.out.println("Clicked");
                 replaying = true;
-                Thread t = new Thread(new Runnable()
+                replays.execute(new Runnable()
                 {
                     @Override
                     public void run()
@@ -232,7 +214,6 @@ public class SelectPanel extends JPanel
                         replaying = false;
                     }
                 });
-                t.start();
             }
         });
         this.add(replay);
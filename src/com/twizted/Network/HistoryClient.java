@@ -0,0 +1,278 @@
+/**
+ * Peer to peer whiteboard
+ * Distributed computing.
+ * CMPSMC34
+ */
+
+package com.twizted.Network;
+
+import com.twizted.Cache.ActionCache;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * @author Ian Weeks 6204848
+ *         <p>
+ *         HistoryClient class.
+ *         <p>
+ *         Fetches one originator's actions in a range of sequence numbers
+ *         from a single peer's {@link HistoryServer}.  The actions are
+ *         returned rather than drawn so the {@link HistoryDownloader} can
+ *         check each one off and put ranges from several peers back in
+ *         order.  {@link Summary} asks a peer which actions it holds.
+ */
+public class HistoryClient implements Callable<List<HistoryClient.Received>>
+{
+    //Anything bigger than this is not a frame we sent.
+    private static final int MAX_FRAME = 1 << 20;
+    //More runs than this is not a summary we sent.
+    private static final int MAX_RUNS = 1 << 16;
+    private String address;
+    private int origin, first, last;
+
+    /**
+     * HistoryClient constructor.
+     *
+     * @param address The ip address of the peer to fetch from.
+     * @param origin  The id of the originator whose actions are wanted.
+     * @param first   The first sequence number wanted.
+     * @param last    The last sequence number wanted.
+     */
+    public HistoryClient(String address, int origin, int first, int last)
+    {
+        this.address = address;
+        this.origin = origin;
+        this.first = first;
+        this.last = last;
+    }
+
+    /**
+     * Fetch the range.
+     *
+     * @return The fetched actions in the order the peer holds them.
+     * @throws IOException If the range could not be fetched.
+     */
+    @Override
+    public List<Received> call() throws IOException
+    {
+        long start = System.nanoTime();
+        List<Received> received = new ArrayList<>();
+        Inflater inflater = new Inflater();
+        //Try with resources to auto close socket and streams.
+        try (Socket socket = connect(address))
+        {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeInt(HistoryServer.RANGE);
+            out.writeInt(origin);
+            out.writeInt(first);
+            out.writeInt(last);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new InflaterInputStream(socket.getInputStream(), inflater, HistoryServer.FRAME_SIZE)));
+            readRange(in, origin, first, last, received);
+            long micros = Math.max(1, (System.nanoTime() - start) / 1000);
+            System.out.printf("History range %d:%d-%d from %s complete. %d ops, %d bytes inflated to %d in %d ms.\n",
+                              origin, first, last, address, received.size(), inflater.getBytesRead(),
+                              inflater.getBytesWritten(), micros / 1000);
+        } catch (BufferUnderflowException | IllegalArgumentException e)
+        {
+            throw new IOException("Invalid history from " + address + " after " + received.size() + " ops.", e);
+        } finally
+        {
+            inflater.end();
+        }
+        return received;
+    }
+
+    /**
+     * Read frames of ages and ops up to the empty frame that ends them.
+     *
+     * @param in       The stream to read from.
+     * @param origin   The originator asked for.
+     * @param first    The first sequence number asked for.
+     * @param last     The last sequence number asked for.
+     * @param received Where to add each action read.
+     * @throws IOException If a frame can't be read or holds an action not asked for.
+     */
+    static void readRange(DataInputStream in, int origin, int first, int last, List<Received> received)
+            throws IOException
+    {
+        int[] sequence = new int[1];
+        byte[] frameData = new byte[HistoryServer.FRAME_SIZE];
+        int length;
+        while ((length = in.readInt()) > 0)
+        {
+            if (length > MAX_FRAME)
+            {
+                throw new IOException("Bad history frame length " + length);
+            }
+            if (length > frameData.length)
+            {
+                frameData = new byte[length];
+            }
+            in.readFully(frameData, 0, length);
+
+            ByteBuffer buffer = ByteBuffer.wrap(frameData, 0, length);
+            PacketCodec.readHeader(buffer);
+            while (buffer.hasRemaining())
+            {
+                int age = PacketCodec.readVarInt(buffer);
+                int[] data = PacketCodec.decode(buffer, sequence);
+                if (data[0] != origin || sequence[0] < first || sequence[0] > last)
+                {
+                    throw new IOException("Action " + data[0] + ":" + sequence[0] + " was not asked for.");
+                }
+                received.add(new Received(new ActionCache.Entry(data, sequence[0]), age));
+            }
+        }
+    }
+
+    private static Socket connect(String address) throws IOException
+    {
+        Socket socket = new Socket();
+        try
+        {
+            socket.connect(new InetSocketAddress(address, HistoryServer.PORT), 2000);
+            //Five second timeout.
+            socket.setSoTimeout(5000);
+            return socket;
+        } catch (IOException e)
+        {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * A fetched action and its age in the peer's history.
+     */
+    public static class Received
+    {
+        private final ActionCache.Entry entry;
+        private final int age;
+
+        /**
+         * Received constructor.
+         *
+         * @param entry The action and its sequence number.
+         * @param age   The number of actions the peer holds that are newer.
+         */
+        public Received(ActionCache.Entry entry, int age)
+        {
+            this.entry = entry;
+            this.age = age;
+        }
+
+        /**
+         * Get the action and its sequence number.
+         *
+         * @return The entry.
+         */
+        public ActionCache.Entry getEntry()
+        {
+            return entry;
+        }
+
+        /**
+         * Get the number of actions the peer holds that are newer than this one.
+         *
+         * @return The age.
+         */
+        public int getAge()
+        {
+            return age;
+        }
+    }
+
+    /**
+     * Asks a single peer which actions newer than our high-water marks
+     * it holds.  The answer maps each originator's id to the runs of
+     * sequence numbers held, each as its first and last number.
+     */
+    public static class Summary implements Callable<Map<Integer, List<int[]>>>
+    {
+        private String address;
+        private Map<Integer, Integer> marks;
+
+        /**
+         * Summary constructor.
+         *
+         * @param address The ip address of the peer to ask.
+         * @param marks   Our high-water marks.
+         */
+        public Summary(String address, Map<Integer, Integer> marks)
+        {
+            this.address = address;
+            this.marks = marks;
+        }
+
+        /**
+         * Ask for the summary.
+         *
+         * @return The runs held from each originator.
+         * @throws IOException If the summary could not be fetched.
+         */
+        @Override
+        public Map<Integer, List<int[]>> call() throws IOException
+        {
+            Inflater inflater = new Inflater();
+            //Try with resources to auto close socket and streams.
+            try (Socket socket = connect(address))
+            {
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                out.writeInt(HistoryServer.SUMMARY);
+                out.writeInt(marks.size());
+                for (Map.Entry<Integer, Integer> mark : marks.entrySet())
+                {
+                    out.writeInt(mark.getKey());
+                    out.writeInt(mark.getValue());
+                }
+                out.flush();
+
+                DataInputStream in = new DataInputStream(new BufferedInputStream(
+                        new InflaterInputStream(socket.getInputStream(), inflater)));
+                Map<Integer, List<int[]>> held = new HashMap<>();
+                int origins = in.readInt(), total = 0;
+                for (int i = 0; i < origins; i++)
+                {
+                    int origin = in.readInt(), runs = in.readInt();
+                    total += runs;
+                    if (runs < 0 || total > MAX_RUNS)
+                    {
+                        throw new IOException("Bad history summary from " + address);
+                    }
+                    List<int[]> originRuns = new ArrayList<>();
+                    for (int r = 0; r < runs; r++)
+                    {
+                        int[] run = {in.readInt(), in.readInt()};
+                        if (run[0] > run[1])
+                        {
+                            throw new IOException("Bad history run from " + address);
+                        }
+                        originRuns.add(run);
+                    }
+                    held.put(origin, originRuns);
+                }
+                return held;
+            } finally
+            {
+                inflater.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,535 @@
+/**
+ * Peer to peer whiteboard
+ * Distributed computing.
+ * CMPSMC34
+ */
+
+package com.twizted.Network;
+
+import com.twizted.Cache.ActionCache;
+import com.twizted.Display.Frame;
+import com.twizted.Utility.Tasks;
+import com.twizted.Utility.Triple;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * @author Ian Weeks 6204848
+ *         <p>
+ *         HistoryDownloader class.
+ *         <p>
+ *         Fetches the history from several peers at once rather than
+ *         asking the one peer with the longest history for all of it.
+ *         <p>
+ *         Every peer is first asked which actions newer than our
+ *         high-water marks it holds, as runs of sequence numbers from each
+ *         originator.  The numbers any peer holds are cut into chunks of
+ *         one originator's sequence numbers, and each chunk is given to
+ *         the least loaded peer that holds most of it.
+ *         <p>
+ *         Every number a peer said it held is checked off as it arrives.
+ *         Whatever a chunk is still missing, because the peer failed or
+ *         no longer had it, is asked for from another peer that said it
+ *         held it.  Anything no peer can supply is reported.
+ *         <p>
+ *         Once every chunk is done the actions are drawn one originator
+ *         after another in sequence order, interleaved by how far back in
+ *         the serving peer's history each one was.
+ */
+public class HistoryDownloader implements Runnable
+{
+    //Sequence numbers per chunk.  Small enough to spread out, big enough to be worth a connection.
+    static final int CHUNK_SIZE = 2000;
+    //Most peers fetched from at once.
+    private static final int MAX_SOURCES = 4;
+    private static final Tasks.Group SOURCES = Tasks.getInstance().newGroup("history fetch", MAX_SOURCES);
+    private Frame frame;
+    private List<Triple<Integer, String, Integer>> peers;
+    private List<Map<Integer, List<int[]>>> held;
+    private CompletionService<List<HistoryClient.Received>> completion;
+    private Map<Future<List<HistoryClient.Received>>, Chunk> chunkOf;
+    private Map<Future<List<HistoryClient.Received>>, Integer> peerOf;
+    private int[] load, served;
+
+    /**
+     * HistoryDownloader constructor.
+     *
+     * @param frame A reference to the parent frame.
+     */
+    public HistoryDownloader(Frame frame)
+    {
+        this.frame = frame;
+    }
+
+    /**
+     * When an object implementing interface <code>Runnable</code> is used
+     * to create a thread, starting the thread causes the object's
+     * <code>run</code> method to be called in that separately executing
+     * thread.
+     * <p>
+     * The general contract of the method <code>run</code> is that it may
+     * take any action whatsoever.
+     *
+     * @see Thread#run()
+     */
+    @Override
+    public void run()
+    {
+        long start = System.nanoTime();
+        peers = frame.getPeerCache().getPeers();
+        if (peers.isEmpty())
+        {
+            return;
+        }
+        load = new int[peers.size()];
+        served = new int[peers.size()];
+        chunkOf = new HashMap<>();
+        peerOf = new HashMap<>();
+        completion = new ExecutorCompletionService<>(SOURCES);
+
+        List<Chunk> chunks = new ArrayList<>();
+        int outstanding = 0, drawn = 0, lost = 0;
+        try
+        {
+            held = fetchSummaries(frame.getActionCache().getHighWaterMarks());
+            chunks = plan(held, peers.size());
+            for (Chunk chunk : chunks)
+            {
+                if (submit(chunk))
+                {
+                    outstanding++;
+                } else
+                {
+                    lost += chunk.getMissing();
+                }
+            }
+
+            while (outstanding > 0)
+            {
+                Future<List<HistoryClient.Received>> future = completion.take();
+                Chunk chunk = chunkOf.remove(future);
+                int peer = peerOf.remove(future);
+                load[peer]--;
+                outstanding--;
+                try
+                {
+                    served[peer] += chunk.receive(future.get());
+                } catch (ExecutionException e)
+                {
+                    System.out.println("History chunk " + chunk + " from " + peers.get(peer).getValueOne()
+                                       + " failed.");
+                    System.out.println(e.getCause().getMessage());
+                }
+                if (chunk.getMissing() > 0)
+                {
+                    if (submit(chunk))
+                    {
+                        outstanding++;
+                    } else
+                    {
+                        System.out.println("No peer left to fetch " + chunk.getMissing() + " ops of history chunk "
+                                           + chunk + " from.");
+                        lost += chunk.getMissing();
+                    }
+                }
+            }
+
+            drawn = draw(chunks);
+        } catch (InterruptedException e)
+        {
+            e.printStackTrace();
+        } finally
+        {
+            //Stop any fetches still running if interrupted.
+            for (Future<List<HistoryClient.Received>> future : chunkOf.keySet())
+            {
+                future.cancel(true);
+            }
+        }
+
+        System.out.printf("History download complete. %d new ops in %d chunks, %d missing, in %d ms.\n", drawn,
+                          chunks.size(), lost, (System.nanoTime() - start) / 1_000_000);
+        for (int i = 0; i < peers.size(); i++)
+        {
+            System.out.printf("  %s sent %d ops.\n", peers.get(i).getValueOne(), served[i]);
+        }
+    }
+
+    /**
+     * Ask every peer at once which actions it holds.  A peer that fails
+     * to answer is taken to hold nothing.
+     *
+     * @param marks Our high-water marks.
+     * @return The runs each peer holds from each originator, in peer order.
+     * @throws InterruptedException If interrupted while waiting for the answers.
+     */
+    private List<Map<Integer, List<int[]>>> fetchSummaries(Map<Integer, Integer> marks)
+            throws InterruptedException
+    {
+        List<FutureTask<Map<Integer, List<int[]>>>> tasks = new ArrayList<>();
+        for (Triple<Integer, String, Integer> peer : peers)
+        {
+            FutureTask<Map<Integer, List<int[]>>> task = new FutureTask<>(
+                    new HistoryClient.Summary(peer.getValueOne(), marks));
+            SOURCES.execute(task);
+            tasks.add(task);
+        }
+        List<Map<Integer, List<int[]>>> summaries = new ArrayList<>();
+        for (int i = 0; i < tasks.size(); i++)
+        {
+            try
+            {
+                summaries.add(tasks.get(i).get());
+            } catch (ExecutionException e)
+            {
+                System.out.println("History summary from " + peers.get(i).getValueOne() + " failed.");
+                System.out.println(e.getCause().getMessage());
+                summaries.add(Collections.<Integer, List<int[]>>emptyMap());
+            }
+        }
+        return summaries;
+    }
+
+    /**
+     * Cut every sequence number held by any peer into chunks of one
+     * originator's numbers no more than {@link #CHUNK_SIZE} apart.
+     *
+     * @param held  The runs each peer holds from each originator.
+     * @param peers The number of peers.
+     * @return The chunks.
+     */
+    static List<Chunk> plan(List<Map<Integer, List<int[]>>> held, int peers)
+    {
+        //Every run from every peer, by originator and then by first number.
+        Map<Integer, TreeMap<Integer, Integer>> union = new TreeMap<>();
+        for (Map<Integer, List<int[]>> summary : held)
+        {
+            for (Map.Entry<Integer, List<int[]>> origin : summary.entrySet())
+            {
+                TreeMap<Integer, Integer> runs = union.get(origin.getKey());
+                if (runs == null)
+                {
+                    runs = new TreeMap<>();
+                    union.put(origin.getKey(), runs);
+                }
+                for (int[] run : origin.getValue())
+                {
+                    Integer last = runs.get(run[0]);
+                    runs.put(run[0], last == null ? run[1] : Math.max(last, run[1]));
+                }
+            }
+        }
+
+        List<Chunk> chunks = new ArrayList<>();
+        for (Map.Entry<Integer, TreeMap<Integer, Integer>> origin : union.entrySet())
+        {
+            Chunk chunk = null;
+            for (Map.Entry<Integer, Integer> run : origin.getValue().entrySet())
+            {
+                //Runs from different peers may overlap, so only the part past the current chunk is new.
+                long first = run.getKey(), last = run.getValue();
+                if (chunk != null)
+                {
+                    first = Math.max(first, chunk.last + 1L);
+                }
+                while (first <= last)
+                {
+                    if (chunk == null || first - chunk.first >= CHUNK_SIZE)
+                    {
+                        chunk = new Chunk(origin.getKey(), (int) first, peers);
+                        chunks.add(chunk);
+                    }
+                    int end = (int) Math.min(last, (long) chunk.first + CHUNK_SIZE - 1);
+                    chunk.last = Math.max(chunk.last, end);
+                    first = end + 1L;
+                }
+            }
+        }
+
+        //Mark which numbers in each chunk some peer said it holds.
+        for (Chunk chunk : chunks)
+        {
+            for (Map<Integer, List<int[]>> summary : held)
+            {
+                List<int[]> runs = summary.get(chunk.origin);
+                if (runs != null)
+                {
+                    for (int[] run : runs)
+                    {
+                        chunk.expect(run[0], run[1]);
+                    }
+                }
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Ask the least loaded untried peer that holds most of what the chunk
+     * is missing for the missing part.
+     *
+     * @param chunk The chunk to fetch.
+     * @return True if a peer was found.
+     */
+    private boolean submit(Chunk chunk)
+    {
+        int[] span = chunk.getMissingSpan();
+        if (span == null)
+        {
+            return false;
+        }
+        int best = -1, bestCovered = 0;
+        for (int i = 0; i < peers.size(); i++)
+        {
+            if (chunk.tried[i])
+            {
+                continue;
+            }
+            int covered = chunk.countHeld(held.get(i).get(chunk.origin));
+            if (covered > bestCovered || (covered == bestCovered && covered > 0 && load[i] < load[best]))
+            {
+                best = i;
+                bestCovered = covered;
+            }
+        }
+        if (best == -1)
+        {
+            return false;
+        }
+        chunk.tried[best] = true;
+        load[best]++;
+        Future<List<HistoryClient.Received>> future = completion.submit(
+                new HistoryClient(peers.get(best).getValueOne(), chunk.origin, span[0], span[1]));
+        chunkOf.put(future, chunk);
+        peerOf.put(future, best);
+        return true;
+    }
+
+    /**
+     * Draw every fetched action, skipping anything already in the history.
+     * Each originator's actions are drawn in sequence order.  Between
+     * originators the action furthest back in its peer's history goes first.
+     *
+     * @param chunks The finished chunks.
+     * @return How many actions were new.
+     * @throws InterruptedException If interrupted while waiting on the draw queue.
+     */
+    private int draw(List<Chunk> chunks) throws InterruptedException
+    {
+        int drawn = 0;
+        for (HistoryClient.Received received : order(chunks))
+        {
+            ActionCache.Entry entry = received.getEntry();
+            if (frame.record(entry.getData(), entry.getSequence()))
+            {
+                //Images start on their way now rather than when draw gets to them.
+                frame.getDraw().prefetch(entry.getData());
+                frame.getDraw().put(entry.getData());
+                drawn++;
+            }
+        }
+        return drawn;
+    }
+
+    /**
+     * Put the fetched actions in drawing order.
+     *
+     * @param chunks The finished chunks.
+     * @return Every fetched action in the order to draw it.
+     */
+    static List<HistoryClient.Received> order(List<Chunk> chunks)
+    {
+        Map<Integer, List<HistoryClient.Received>> byOrigin = new HashMap<>();
+        int total = 0;
+        for (Chunk chunk : chunks)
+        {
+            List<HistoryClient.Received> actions = byOrigin.get(chunk.origin);
+            if (actions == null)
+            {
+                actions = new ArrayList<>();
+                byOrigin.put(chunk.origin, actions);
+            }
+            actions.addAll(chunk.received);
+            total += chunk.received.size();
+        }
+
+        List<List<HistoryClient.Received>> origins = new ArrayList<>(byOrigin.values());
+        for (List<HistoryClient.Received> actions : origins)
+        {
+            Collections.sort(actions, new Comparator<HistoryClient.Received>()
+            {
+                @Override
+                public int compare(HistoryClient.Received a, HistoryClient.Received b)
+                {
+                    return Integer.compare(a.getEntry().getSequence(), b.getEntry().getSequence());
+                }
+            });
+        }
+
+        //Merge the originators, oldest head first.  There are only ever a handful so a scan will do.
+        List<HistoryClient.Received> ordered = new ArrayList<>(total);
+        int[] next = new int[origins.size()];
+        while (ordered.size() < total)
+        {
+            int oldest = -1;
+            for (int i = 0; i < origins.size(); i++)
+            {
+                if (next[i] < origins.get(i).size() && (oldest == -1
+                        || origins.get(i).get(next[i]).getAge() > origins.get(oldest).get(next[oldest]).getAge()))
+                {
+                    oldest = i;
+                }
+            }
+            ordered.add(origins.get(oldest).get(next[oldest]++));
+        }
+        return ordered;
+    }
+
+    /**
+     * A range of one originator's sequence numbers fetched as a unit,
+     * and which of them have been checked off.
+     */
+    static class Chunk
+    {
+        private final int origin, first;
+        private int last;
+        //Numbers some peer said it holds and numbers received, counted from first.
+        private final BitSet expected = new BitSet(), got = new BitSet();
+        private final List<HistoryClient.Received> received = new ArrayList<>();
+        private final boolean[] tried;
+
+        /**
+         * Chunk constructor.
+         *
+         * @param origin The originator's id.
+         * @param first  The first sequence number.
+         * @param peers  The number of peers that could be asked.
+         */
+        Chunk(int origin, int first, int peers)
+        {
+            this.origin = origin;
+            this.first = first;
+            last = first;
+            tried = new boolean[peers];
+        }
+
+        /**
+         * Note that a peer holds a run of numbers.  Only the part inside the chunk is kept.
+         *
+         * @param runFirst The run's first number.
+         * @param runLast  The run's last number.
+         */
+        void expect(int runFirst, int runLast)
+        {
+            int from = Math.max(runFirst, first), to = Math.min(runLast, last);
+            if (from <= to)
+            {
+                expected.set(from - first, to - first + 1);
+            }
+        }
+
+        /**
+         * Check off fetched actions.  Duplicates and numbers outside the chunk are ignored.
+         *
+         * @param actions The fetched actions.
+         * @return How many were new.
+         */
+        int receive(List<HistoryClient.Received> actions)
+        {
+            int added = 0;
+            for (HistoryClient.Received action : actions)
+            {
+                int sequence = action.getEntry().getSequence();
+                if (sequence >= first && sequence <= last && !got.get(sequence - first))
+                {
+                    got.set(sequence - first);
+                    received.add(action);
+                    added++;
+                }
+            }
+            return added;
+        }
+
+        /**
+         * Get how many numbers some peer holds that have not arrived yet.
+         *
+         * @return Missing actions.
+         */
+        int getMissing()
+        {
+            BitSet missing = (BitSet) expected.clone();
+            missing.andNot(got);
+            return missing.cardinality();
+        }
+
+        /**
+         * Get the smallest range holding every missing number.
+         *
+         * @return The first and last missing number, or null if none are missing.
+         */
+        int[] getMissingSpan()
+        {
+            BitSet missing = (BitSet) expected.clone();
+            missing.andNot(got);
+            if (missing.isEmpty())
+            {
+                return null;
+            }
+            return new int[]{first + missing.nextSetBit(0), first + missing.length() - 1};
+        }
+
+        /**
+         * Count the missing numbers a peer holds.
+         *
+         * @param runs The runs the peer holds from this chunk's originator.  May be null.
+         * @return Missing numbers in the runs.
+         */
+        int countHeld(List<int[]> runs)
+        {
+            if (runs == null)
+            {
+                return 0;
+            }
+            BitSet covered = new BitSet();
+            for (int[] run : runs)
+            {
+                int from = Math.max(run[0], first), to = Math.min(run[1], last);
+                if (from <= to)
+                {
+                    covered.set(from - first, to - first + 1);
+                }
+            }
+            covered.and(expected);
+            covered.andNot(got);
+            return covered.cardinality();
+        }
+
+        /**
+         * Get the actions checked off so far.
+         *
+         * @return The received actions.
+         */
+        List<HistoryClient.Received> getReceived()
+        {
+            return received;
+        }
+
+        @Override
+        public String toString()
+        {
+            return origin + ":" + first + "-" + last;
+        }
+    }
+}
@@ -0,0 +1,358 @@
+/**
+ * Peer to peer whiteboard
+ * Distributed computing.
+ * CMPSMC34
+ */
+
+package com.twizted.Network;
+
+import com.twizted.Cache.ActionCache;
+import com.twizted.Display.Frame;
+import com.twizted.Utility.Tasks;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * @author Ian Weeks 6204848
+ *         <p>
+ *         HistoryServer class.
+ *         <p>
+ *         Handles sending of history to newly connected peers.
+ *         <p>
+ *         Listens for the whole life of the program.  Each connection
+ *         starts with a request type.
+ *         <p>
+ *         A summary request carries the peer's high-water marks: a count
+ *         followed by that many id and sequence number pairs.  It is
+ *         answered with the runs of sequence numbers held from each
+ *         originator newer than the peer's mark: a count of originators,
+ *         then for each its id, a count of runs and each run's first and
+ *         last sequence number.
+ *         <p>
+ *         A range request carries an originator id and a first and last
+ *         sequence number.  It is answered with every action held from
+ *         that originator in the range as a stream of length framed
+ *         packets in the usual wire format, ended by a zero length.  Each
+ *         op is preceded by a varint of its age, the number of actions
+ *         held after it, so ranges fetched from different originators can
+ *         be put back in about the order they were drawn.
+ *         <p>
+ *         The stream is deflated.  History is full of repeated colours,
+ *         sizes and small coordinates so it shrinks to around half.  Frames
+ *         are not flushed one at a time, as the {@link HistoryDownloader}
+ *         only draws once every range it asked for has arrived.
+ *         HistoryCompressionBenchmark in the test sources measures the
+ *         saving against the time spent deflating.
+ */
+public class HistoryServer implements Runnable
+{
+    static final int PORT = 55557;
+    //Request types.
+    static final int SUMMARY = 0, RANGE = 1;
+    //Size of a single frame.  Bigger than a datagram as there is no MTU to fit.
+    static final int FRAME_SIZE = 8192;
+    //More originators than this is not a request we sent.
+    private static final int MAX_MARKS = 4096;
+    //Most peers served at once.  Others wait their turn.
+    private static final int MAX_SERVES = 4;
+    //Most peers waiting their turn.  Any more are turned away.
+    private static final int MAX_WAITING = 16;
+    private final Tasks.Group serves = Tasks.getInstance().newGroup("history serve", MAX_SERVES, MAX_WAITING);
+    private Frame frame;
+    private volatile boolean serverOn;
+
+    /**
+     * HistoryServer constructor.
+     *
+     * @param frame A reference to the parent frame.
+     */
+    public HistoryServer(Frame frame)
+    {
+        this.frame = frame;
+        serverOn = true;
+    }
+
+    /**
+     * When an object implementing interface <code>Runnable</code> is used
+     * to create a thread, starting the thread causes the object's
+     * <code>run</code> method to be called in that separately executing
+     * thread.
+     * <p>
+     * The general contract of the method <code>run</code> is that it may
+     * take any action whatsoever.
+     *
+     * @see Thread#run()
+     */
+    @Override
+    public void run()
+    {
+        try (ServerSocket serverSocket = new ServerSocket(PORT))
+        {
+            while (serverOn)
+            {
+                final Socket socket = serverSocket.accept();
+                try
+                {
+                    serves.execute(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            serve(socket);
+                        }
+                    });
+                } catch (RejectedExecutionException e)
+                {
+                    //Closed straight away so the peer sees the failure rather than waiting on it.
+                    System.out.println("Turned away history request from "
+                                       + socket.getInetAddress().getHostAddress() + ".");
+                    socket.close();
+                }
+            }
+        } catch (IOException e)
+        {
+            System.out.println("Error in history server.");
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Stream the history to a single peer.
+     *
+     * @param socket The peer's connection.
+     */
+    private void serve(Socket socket)
+    {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        long start = System.nanoTime();
+        //Try with resources to auto close socket and streams.
+        try (Socket s = socket;
+             DeflaterOutputStream zip = new DeflaterOutputStream(new BufferedOutputStream(s.getOutputStream()),
+                                                                 deflater, FRAME_SIZE, true);
+             DataOutputStream out = new DataOutputStream(zip))
+        {
+            DataInputStream in = new DataInputStream(s.getInputStream());
+            int type = in.readInt();
+            String sent;
+            if (type == SUMMARY)
+            {
+                sent = sendSummary(readMarks(in), out);
+            } else if (type == RANGE)
+            {
+                int origin = in.readInt(), first = in.readInt(), last = in.readInt();
+                if (first > last)
+                {
+                    throw new IOException("Bad history range " + first + " " + last);
+                }
+                sent = sendRange(origin, first, last, out);
+            } else
+            {
+                throw new IOException("Bad history request type " + type);
+            }
+            zip.finish();
+            out.flush();
+
+            long raw = deflater.getBytesRead(), compressed = deflater.getBytesWritten();
+            long micros = Math.max(1, (System.nanoTime() - start) / 1000);
+            System.out.printf("Sent %s to %s. %d bytes deflated to %d (%.1fx) at %.1f MB/s.\n", sent,
+                              s.getInetAddress().getHostAddress(), raw, compressed,
+                              compressed == 0 ? 0 : (double) raw / compressed, (double) raw / micros);
+        } catch (IOException e)
+        {
+            System.out.println("Error in history send");
+            System.out.println(e.getMessage());
+        } finally
+        {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Read the requesting peer's high-water marks.
+     *
+     * @param in The peer's input stream.
+     * @return The marks keyed by originator id.
+     * @throws IOException If the marks cannot be read.
+     */
+    private static Map<Integer, Integer> readMarks(DataInputStream in) throws IOException
+    {
+        int count = in.readInt();
+        if (count < 0 || count > MAX_MARKS)
+        {
+            throw new IOException("Bad history request " + count);
+        }
+        Map<Integer, Integer> marks = new HashMap<>();
+        for (int i = 0; i < count; i++)
+        {
+            marks.put(in.readInt(), in.readInt());
+        }
+        return marks;
+    }
+
+    /**
+     * Send the runs of sequence numbers held from each originator that are
+     * newer than the peer's marks.
+     *
+     * @param marks The peer's high-water marks.
+     * @param out   The stream to the peer.
+     * @return What was sent, for the log.
+     * @throws IOException If the summary cannot be sent.
+     */
+    private String sendSummary(Map<Integer, Integer> marks, DataOutputStream out) throws IOException
+    {
+        Map<Integer, List<Integer>> held = new HashMap<>();
+        if (frame.getSelectPanel().network())
+        {
+            for (ActionCache.Entry entry : frame.getActionCache().snapshot())
+            {
+                int origin = entry.getData()[0];
+                Integer mark = marks.get(origin);
+                if (entry.getSequence() != 0 && (mark == null || entry.getSequence() > mark))
+                {
+                    List<Integer> sequences = held.get(origin);
+                    if (sequences == null)
+                    {
+                        sequences = new ArrayList<>();
+                        held.put(origin, sequences);
+                    }
+                    sequences.add(entry.getSequence());
+                }
+            }
+        }
+
+        int runs = 0;
+        out.writeInt(held.size());
+        for (Map.Entry<Integer, List<Integer>> origin : held.entrySet())
+        {
+            List<int[]> originRuns = toRuns(origin.getValue());
+            out.writeInt(origin.getKey());
+            out.writeInt(originRuns.size());
+            for (int[] run : originRuns)
+            {
+                out.writeInt(run[0]);
+                out.writeInt(run[1]);
+            }
+            runs += originRuns.size();
+        }
+        return String.format("a summary of %d runs from %d originators", runs, held.size());
+    }
+
+    /**
+     * Collapse sequence numbers into runs of consecutive numbers.
+     *
+     * @param sequences The sequence numbers in any order.  Sorted in place.
+     * @return Each run's first and last number, lowest first.
+     */
+    static List<int[]> toRuns(List<Integer> sequences)
+    {
+        Collections.sort(sequences);
+        List<int[]> runs = new ArrayList<>();
+        int[] run = null;
+        for (int sequence : sequences)
+        {
+            if (run != null && sequence <= run[1] + 1)
+            {
+                run[1] = Math.max(run[1], sequence);
+            } else
+            {
+                run = new int[]{sequence, sequence};
+                runs.add(run);
+            }
+        }
+        return runs;
+    }
+
+    /**
+     * Send every action held from an originator in a range of sequence numbers.
+     *
+     * @param origin The originator's id.
+     * @param first  The first sequence number wanted.
+     * @param last   The last sequence number wanted.
+     * @param out    The stream to the peer.
+     * @return What was sent, for the log.
+     * @throws IOException If the actions cannot be sent.
+     */
+    private String sendRange(int origin, int first, int last, DataOutputStream out) throws IOException
+    {
+        List<ActionCache.Entry> history = Collections.emptyList();
+        if (frame.getSelectPanel().network())
+        {
+            history = frame.getActionCache().snapshot();
+        }
+        int sent = writeRange(history, origin, first, last, out);
+        return String.format("%d history ops from %d in %d-%d", sent, origin, first, last);
+    }
+
+    /**
+     * Write the actions from an originator in a range of sequence numbers as
+     * frames of ages and ops, followed by an empty frame.
+     *
+     * @param history The history, oldest first.
+     * @param origin  The originator's id.
+     * @param first   The first sequence number wanted.
+     * @param last    The last sequence number wanted.
+     * @param out     The stream to write to.
+     * @return The number of actions written.
+     * @throws IOException If the actions cannot be written.
+     */
+    static int writeRange(List<ActionCache.Entry> history, int origin, int first, int last, DataOutputStream out)
+            throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(FRAME_SIZE);
+        PacketCodec.writeHeader(buffer);
+        int sent = 0;
+        for (int i = 0; i < history.size(); i++)
+        {
+            ActionCache.Entry entry = history.get(i);
+            int sequence = entry.getSequence();
+            if (entry.getData()[0] != origin || sequence == 0 || sequence < first || sequence > last)
+            {
+                continue;
+            }
+            int age = history.size() - 1 - i;
+            buffer.mark();
+            try
+            {
+                PacketCodec.writeVarInt(buffer, age);
+                PacketCodec.encode(entry.getData(), sequence, buffer);
+            } catch (BufferOverflowException e)
+            {
+                //Frame full.  Send it and start the next one with this op.
+                buffer.reset();
+                writeFrame(out, buffer);
+                buffer.clear();
+                PacketCodec.writeHeader(buffer);
+                PacketCodec.writeVarInt(buffer, age);
+                PacketCodec.encode(entry.getData(), sequence, buffer);
+            }
+            sent++;
+        }
+        if (buffer.position() > 1)
+        {
+            writeFrame(out, buffer);
+        }
+        out.writeInt(0);
+        return sent;
+    }
+
+    private static void writeFrame(DataOutputStream out, ByteBuffer buffer) throws IOException
+    {
+        out.writeInt(buffer.position());
+        out.write(buffer.array(), 0, buffer.position());
+    }
+}
@@ -0,0 +1,401 @@
+/**
+ * Peer to peer whiteboard
+ * Distributed computing.
+ * CMPSMC34
+ */
+
+package com.twizted.Network;
+
+import com.twizted.Cache.TiledImage;
+import com.twizted.Display.Frame;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * @author Ian Weeks 6204848
+ *         <p>
+ *         ImageAssembler class.
+ *         <p>
+ *         Puts multicast images back together from the chunks sent by an
+ *         {@link ImageMulticaster}.  The channel is read by the
+ *         {@link UdpReceiver} selector thread.
+ *         <p>
+ *         A lost chunk is rebuilt from its group's parity chunk as soon as
+ *         the rest of the group has arrived.  Once an image stops arriving
+ *         it is handed to the {@link com.twizted.Cache.ImageCache} as it
+ *         is, complete or not, and the cache fetches any tiles still
+ *         missing from the sender over tcp.
+ */
+class ImageAssembler implements Closeable
+{
+    //How long an image can go quiet before whatever has arrived is handed over.
+    private static final long STALE_MS = 300;
+    //Anything bigger is left to tcp.
+    private static final int MAX_LENGTH = 64 << 20;
+    private final Map<Long, Image> images = new HashMap<>();
+    private final double simulatedLoss;
+    private DatagramChannel channel;
+    private Frame frame;
+    private long rebuilt, fallbacks;
+
+    /**
+     * ImageAssembler constructor.
+     *
+     * @param frame         A reference to the parent frame.
+     * @param simulatedLoss The share of chunks to drop on purpose for testing.
+     * @throws IOException If the channel could not be opened or the group could not be joined.
+     */
+    ImageAssembler(Frame frame, double simulatedLoss) throws IOException
+    {
+        this.frame = frame;
+        this.simulatedLoss = simulatedLoss;
+        channel = UdpReceiver.openMulticastChannel(ImageMulticaster.PORT);
+        //Room for a burst of chunks while the receiver thread is busy.
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, 4 << 20);
+    }
+
+    /**
+     * Register this assembler's channel for reading.
+     *
+     * @param selector The selector to register with.
+     * @throws ClosedChannelException If the channel has been closed.
+     */
+    void register(Selector selector) throws ClosedChannelException
+    {
+        channel.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    /**
+     * Read every waiting chunk.
+     *
+     * @param buffer The buffer to receive into.
+     * @throws IOException If the channel cannot be read.
+     */
+    void receive(ByteBuffer buffer) throws IOException
+    {
+        buffer.clear();
+        SocketAddress source;
+        while ((source = channel.receive(buffer)) != null)
+        {
+            if (simulatedLoss > 0 && ThreadLocalRandom.current().nextDouble() < simulatedLoss)
+            {
+                buffer.clear();
+                continue;
+            }
+            buffer.flip();
+            try
+            {
+                receive(buffer, ((InetSocketAddress) source).getAddress().getHostAddress());
+            } catch (BufferUnderflowException | IllegalArgumentException e)
+            {
+                System.out.println("Received invalid image chunk.");
+            }
+            buffer.clear();
+        }
+    }
+
+    private void receive(ByteBuffer buffer, String address)
+    {
+        byte kind = buffer.get();
+        int id = buffer.getInt();
+        long key = buffer.getLong();
+        int width = buffer.getInt(), height = buffer.getInt(), tileSize = buffer.getInt(), tiles = buffer.getInt();
+        int length = buffer.getInt(), index = buffer.getInt();
+        if (id == frame.getId())
+        {
+            return;
+        }
+
+        Image image = images.get(key);
+        if (image == null)
+        {
+            if (!TiledImage.isValid(width, height, tileSize, tiles, TcpClient.MAX_PIXELS) || length <= 0
+                || length > MAX_LENGTH)
+            {
+                throw new IllegalArgumentException("Bad image header");
+            }
+            //Chunks of an image already held are still tracked so they are not taken for a new image.
+            boolean wanted = frame.getImageCache().expect(key, address);
+            image = new Image(key, width, height, tileSize, tiles, wanted ? length : 0);
+            images.put(key, image);
+        }
+        image.lastHeard = System.nanoTime();
+        if (image.chunks == 0)
+        {
+            return;
+        }
+
+        int group;
+        if (kind == ImageMulticaster.DATA)
+        {
+            if (index < 0 || index >= image.chunks)
+            {
+                throw new IllegalArgumentException("Bad chunk " + index);
+            }
+            image.putChunk(index, buffer);
+            group = index / ImageMulticaster.GROUP_SIZE;
+        } else if (kind == ImageMulticaster.PARITY)
+        {
+            if (index < 0 || index >= image.parity.length || buffer.remaining() != ImageMulticaster.CHUNK_SIZE)
+            {
+                throw new IllegalArgumentException("Bad parity " + index);
+            }
+            image.putParity(index, buffer);
+            group = index;
+        } else
+        {
+            throw new IllegalArgumentException("Bad chunk kind " + kind);
+        }
+        if (image.rebuild(group))
+        {
+            rebuilt++;
+        }
+
+        if (image.missing == 0)
+        {
+            handOver(image);
+            //Keep an empty entry so any stray chunks are ignored until it goes stale.
+            images.put(key, new Image(key, width, height, tileSize, tiles, 0));
+        }
+    }
+
+    /**
+     * Check if any image is part way through arriving.
+     *
+     * @return True if an image is being received.
+     */
+    boolean isReceiving()
+    {
+        return !images.isEmpty();
+    }
+
+    /**
+     * Hand over every image that has gone quiet.
+     */
+    void expire()
+    {
+        long now = System.nanoTime();
+        Iterator<Image> it = images.values().iterator();
+        while (it.hasNext())
+        {
+            Image image = it.next();
+            if ((now - image.lastHeard) / 1_000_000 > STALE_MS)
+            {
+                if (image.chunks > 0)
+                {
+                    handOver(image);
+                }
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Throw away every chunk waiting on the channel and hand over what has arrived.
+     *
+     * @param buffer A buffer to receive into.
+     * @throws IOException If the channel cannot be read.
+     */
+    void discard(ByteBuffer buffer) throws IOException
+    {
+        buffer.clear();
+        while (channel.receive(buffer) != null)
+        {
+            buffer.clear();
+        }
+        for (Image image : images.values())
+        {
+            if (image.chunks > 0)
+            {
+                handOver(image);
+            }
+        }
+        images.clear();
+    }
+
+    /**
+     * Hand an image to the cache with as much of it as arrived in order.
+     *
+     * @param image The image.
+     */
+    private void handOver(Image image)
+    {
+        int usable = 0;
+        while (usable < image.chunks && image.have[usable])
+        {
+            usable++;
+        }
+        int length = Math.min(image.length, usable * ImageMulticaster.CHUNK_SIZE);
+        if (usable < image.chunks)
+        {
+            fallbacks++;
+            System.out.printf("Image %s only partly arrived by multicast. %d of %d chunks. %d rebuilt, %d "
+                              + "fallbacks so far.\n", Long.toHexString(image.key), image.chunks - image.missing,
+                              image.chunks, rebuilt, fallbacks);
+        }
+        frame.getImageCache().receive(image.key, image.width, image.height, image.tileSize, image.tiles, image.data,
+                                      length);
+    }
+
+    /**
+     * Close the channel.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+
+    /**
+     * A single image as it arrives.
+     */
+    static class Image
+    {
+        private final long key;
+        private final int width, height, tileSize, tiles, length, chunks;
+        private final byte[] data;
+        private final boolean[] have;
+        private final byte[][] parity;
+        private int missing;
+        private long lastHeard;
+
+        /**
+         * @param length The tile file length.  0 for an image that is not wanted.
+         */
+        Image(long key, int width, int height, int tileSize, int tiles, int length)
+        {
+            this.key = key;
+            this.width = width;
+            this.height = height;
+            this.tileSize = tileSize;
+            this.tiles = tiles;
+            this.length = length;
+            chunks = (length + ImageMulticaster.CHUNK_SIZE - 1) / ImageMulticaster.CHUNK_SIZE;
+            data = new byte[length];
+            have = new boolean[chunks];
+            parity = new byte[(chunks + ImageMulticaster.GROUP_SIZE - 1) / ImageMulticaster.GROUP_SIZE][];
+            missing = chunks;
+            lastHeard = System.nanoTime();
+        }
+
+        /**
+         * Store a data chunk unless it has already arrived or been rebuilt.
+         *
+         * @param index  The chunk number.
+         * @param buffer The chunk, read from its position.
+         */
+        void putChunk(int index, ByteBuffer buffer)
+        {
+            if (!have[index])
+            {
+                buffer.get(data, index * ImageMulticaster.CHUNK_SIZE, chunkLength(index));
+                have[index] = true;
+                missing--;
+            }
+        }
+
+        /**
+         * Store a group's parity chunk.
+         *
+         * @param group  The group number.
+         * @param buffer The parity, read from its position.
+         */
+        void putParity(int group, ByteBuffer buffer)
+        {
+            parity[group] = new byte[ImageMulticaster.CHUNK_SIZE];
+            buffer.get(parity[group]);
+        }
+
+        /**
+         * Rebuild the one missing chunk of a group from the group's parity.
+         *
+         * @param group The group.
+         * @return True if a chunk was rebuilt.
+         */
+        boolean rebuild(int group)
+        {
+            if (parity[group] == null)
+            {
+                return false;
+            }
+            int first = group * ImageMulticaster.GROUP_SIZE;
+            int last = Math.min(chunks, first + ImageMulticaster.GROUP_SIZE);
+            int lost = -1;
+            for (int chunk = first; chunk < last; chunk++)
+            {
+                if (!have[chunk])
+                {
+                    if (lost != -1)
+                    {
+                        //More than one chunk lost.  Nothing can be done yet.
+                        return false;
+                    }
+                    lost = chunk;
+                }
+            }
+            if (lost == -1)
+            {
+                return false;
+            }
+
+            //XOR of the parity and every other chunk in the group leaves the lost chunk.
+            byte[] rebuilt = parity[group].clone();
+            for (int chunk = first; chunk < last; chunk++)
+            {
+                if (chunk != lost)
+                {
+                    int offset = chunk * ImageMulticaster.CHUNK_SIZE;
+                    for (int i = 0, size = chunkLength(chunk); i < size; i++)
+                    {
+                        rebuilt[i] ^= data[offset + i];
+                    }
+                }
+            }
+            System.arraycopy(rebuilt, 0, data, lost * ImageMulticaster.CHUNK_SIZE, chunkLength(lost));
+            have[lost] = true;
+            missing--;
+            return true;
+        }
+
+        /**
+         * Get the number of chunks still to arrive.
+         *
+         * @return The number of chunks missing.
+         */
+        int getMissing()
+        {
+            return missing;
+        }
+
+        /**
+         * Get the tile file as far as it has arrived.
+         *
+         * @return The tile file.  Chunks still missing are zeros.
+         */
+        byte[] getData()
+        {
+            return data;
+        }
+
+        private int chunkLength(int chunk)
+        {
+            return Math.min(ImageMulticaster.CHUNK_SIZE, length - chunk * ImageMulticaster.CHUNK_SIZE);
+        }
+    }
+}
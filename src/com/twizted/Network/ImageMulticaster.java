@@ -0,0 +1,212 @@
+/**
+ * Peer to peer whiteboard
+ * Distributed computing.
+ * CMPSMC34
+ */
+
+package com.twizted.Network;
+
+import com.twizted.Cache.TiledImage;
+import com.twizted.Display.Frame;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Ian Weeks 6204848
+ *         <p>
+ *         ImageMulticaster class.
+ *         <p>
+ *         Sends a dropped image to every peer at once on the multicast
+ *         group rather than each peer fetching it over its own tcp
+ *         connection, so sending an image costs the same however many
+ *         peers there are.
+ *         <p>
+ *         The image's tile file (see {@link TiledImage}) is cut into
+ *         fixed size chunks.  After every {@link #GROUP_SIZE} chunks a
+ *         parity chunk holding the XOR of the group is sent, so a peer
+ *         that loses any one chunk of a group can rebuild it without
+ *         asking for it again.  Anything a peer still cannot rebuild is
+ *         fetched over tcp as usual, starting at the first missing tile
+ *         (see {@link ImageAssembler}).
+ *         <p>
+ *         Each chunk is a single datagram laid out as:
+ *         <pre>
+ *         byte     Kind                DATA or PARITY
+ *         int      Sender id
+ *         long     Image key
+ *         int      Image width, height, tile size and tile count
+ *         int      Tile file length
+ *         int      Index               Chunk number, or group number for parity
+ *         ...      Payload             Up to CHUNK_SIZE bytes
+ *         </pre>
+ *         Chunks are paced to {@link #RATE} so a large image does not
+ *         overrun the peers' receive buffers.  The image op is only
+ *         broadcast once its chunks have been sent.
+ *         <p>
+ *         Setting the system property {@code whiteboard.imagemulticast}
+ *         to false turns this off and image ops are broadcast straight
+ *         away.
+ */
+public class ImageMulticaster implements Runnable
+{
+    static final int PORT = 55556;
+    static final byte DATA = 0, PARITY = 1;
+    static final int HEADER_SIZE = 37;
+    static final int CHUNK_SIZE = 1024;
+    static final int GROUP_SIZE = 8;
+    //Bytes per second.  Well inside a lan and the peers' receive buffers.
+    private static final long RATE = 8 << 20;
+    private final boolean enabled = Boolean.parseBoolean(System.getProperty("whiteboard.imagemulticast", "true"));
+    private volatile BlockingQueue<int[]> queue;
+    private boolean multicastOn;
+    private InetSocketAddress groupAddress;
+    private Frame frame;
+    private DatagramChannel channel;
+    private ByteBuffer sendBuffer;
+    private byte[] parity;
+
+    /**
+     * ImageMulticaster constructor.
+     *
+     * @param frame A reference to the parent frame.
+     * @throws IOException If the send channel could not be opened.
+     */
+    public ImageMulticaster(Frame frame) throws IOException
+    {
+        this.frame = frame;
+        queue = new LinkedBlockingQueue<>();
+        multicastOn = true;
+        groupAddress = new InetSocketAddress("224.0.159.82", PORT);
+        channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        channel.setOption(StandardSocketOptions.SO_SNDBUF, 1 << 20);
+        sendBuffer = ByteBuffer.allocateDirect(HEADER_SIZE + CHUNK_SIZE);
+        parity = new byte[CHUNK_SIZE];
+    }
+
+    /**
+     * When an object implementing interface <code>Runnable</code> is used
+     * to create a thread, starting the thread causes the object's
+     * <code>run</code> method to be called in that separately executing
+     * thread.
+     * <p>
+     * The general contract of the method <code>run</code> is that it may
+     * take any action whatsoever.
+     *
+     * @see Thread#run()
+     */
+    @Override
+    public void run()
+    {
+        while (multicastOn)
+        {
+            try
+            {
+                int[] data = queue.take();
+                if (frame.getSelectPanel().network())
+                {
+                    try
+                    {
+                        send(((long) data[4] << 32) | (data[5] & 0xFFFFFFFFL), data);
+                    } catch (IOException e)
+                    {
+                        //Peers will fetch it over tcp instead.
+                        System.out.println("Error multicasting image.");
+                        System.out.println(e.getMessage());
+                    }
+                }
+                frame.publish(data);
+            } catch (InterruptedException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Multicast every chunk of an image followed by the parity of each group.
+     *
+     * @param key  The image key.
+     * @param data The image op, for the sender's id.
+     * @throws IOException          If the image could not be read or sent.
+     * @throws InterruptedException If interrupted while pacing.
+     */
+    private void send(long key, int[] data) throws IOException, InterruptedException
+    {
+        TiledImage tiles = frame.getImageCache().getTiles(key);
+        if (tiles == null)
+        {
+            return;
+        }
+        byte[] file = Files.readAllBytes(tiles.getFile().toPath());
+        int length = (int) tiles.getOffset(tiles.getTileCount());
+        int chunks = (length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        long start = System.nanoTime();
+        long sent = 0;
+        for (int group = 0; group * GROUP_SIZE < chunks; group++)
+        {
+            Arrays.fill(parity, (byte) 0);
+            int last = Math.min(chunks, (group + 1) * GROUP_SIZE);
+            for (int chunk = group * GROUP_SIZE; chunk < last; chunk++)
+            {
+                int offset = chunk * CHUNK_SIZE;
+                int size = Math.min(CHUNK_SIZE, length - offset);
+                for (int i = 0; i < size; i++)
+                {
+                    parity[i] ^= file[offset + i];
+                }
+                sent += sendChunk(DATA, data[0], key, tiles, length, chunk, file, offset, size);
+            }
+            sent += sendChunk(PARITY, data[0], key, tiles, length, group, parity, 0, CHUNK_SIZE);
+
+            //Hold back until the send rate is back under the limit.
+            long ahead = sent * 1000 / RATE - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (ahead > 0)
+            {
+                Thread.sleep(ahead);
+            }
+        }
+        System.out.printf("Multicast image %s. %d bytes in %d chunks in %d ms.\n", Long.toHexString(key), length,
+                          chunks, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private int sendChunk(byte kind, int id, long key, TiledImage tiles, int length, int index, byte[] payload,
+                          int offset, int size) throws IOException
+    {
+        sendBuffer.clear();
+        sendBuffer.put(kind).putInt(id).putLong(key);
+        sendBuffer.putInt(tiles.getWidth()).putInt(tiles.getHeight()).putInt(tiles.getTileSize());
+        sendBuffer.putInt(tiles.getTileCount()).putInt(length).putInt(index);
+        sendBuffer.put(payload, offset, size);
+        sendBuffer.flip();
+        return channel.send(sendBuffer, groupAddress);
+    }
+
+    /**
+     * Draw and send an image op, multicasting its image first.  The op is
+     * only published to the ring of local ops once the image is out, so
+     * it is drawn and sent in the same place among our other ops.
+     *
+     * @param data The image op.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void put(int[] data) throws InterruptedException
+    {
+        if (enabled)
+        {
+            queue.put(data);
+        } else
+        {
+            frame.publish(data);
+        }
+    }
+}
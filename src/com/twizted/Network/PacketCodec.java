@@ -0,0 +1,255 @@
+/**
+ * Peer to peer whiteboard
+ * Distributed computing.
+ * CMPSMC34
+ */
+
+package com.twizted.Network;
+
+import com.twizted.Utility.Draw;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author Ian Weeks 6204848
+ *         <p>
+ *         PacketCodec class.
+ *         <p>
+ *         Converts instruction arrays to and from the compact binary
+ *         wire format used by every udp packet.
+ *         <p>
+ *         A packet is a single version byte followed by one or more ops.
+ *         Each op is laid out as:
+ *         <pre>
+ *         varint   Instruction type    data[1]
+ *         zigzag   Machine id          data[0]
+ *         varint   Sequence number     0 if the op is not sequenced
+ *         varint   Field count         data.length - 2
+ *         ...      Fields              data[2] onwards
+ *         </pre>
+ *         Colour fields are written as four fixed bytes as they are almost
+ *         always negative (alpha is set).  The end point of a line is written
+ *         as a delta from its start point, and each point of a polyline as a
+ *         delta from the point before.  Everything else is a zigzag varint
+ *         so small coordinates only take one or two bytes.
+ */
+public final class PacketCodec
+{
+    public static final int VERSION = 2;
+    //Comfortably inside a single ethernet frame.
+    public static final int MAX_PACKET_SIZE = 1400;
+
+    private PacketCodec()
+    {
+    }
+
+    /**
+     * Clear the buffer and encode a single op into it as a complete packet.
+     * The buffer is flipped and ready to send on return.
+     *
+     * @param data   The op to be encoded.
+     * @param buffer The buffer to encode into.
+     */
+    public static void encodePacket(int[] data, ByteBuffer buffer)
+    {
+        buffer.clear();
+        writeHeader(buffer);
+        encode(data, 0, buffer);
+        buffer.flip();
+    }
+
+    /**
+     * Write the packet header.
+     *
+     * @param buffer The buffer to write to.
+     */
+    public static void writeHeader(ByteBuffer buffer)
+    {
+        buffer.put((byte) VERSION);
+    }
+
+    /**
+     * Read and check the packet header.
+     *
+     * @param buffer The buffer to read from.
+     * @throws IllegalArgumentException If the packet was written by an unknown version.
+     */
+    public static void readHeader(ByteBuffer buffer)
+    {
+        int version = buffer.get() & 0xFF;
+        if (version != VERSION)
+        {
+            throw new IllegalArgumentException("Unknown packet version " + version);
+        }
+    }
+
+    /**
+     * Append a single unsequenced op to the buffer.
+     *
+     * @param data   The op to be encoded.  Must hold at least an id and a type.
+     * @param buffer The buffer to write to.
+     * @throws java.nio.BufferOverflowException If the op does not fit in the buffer.
+     */
+    public static void encode(int[] data, ByteBuffer buffer)
+    {
+        encode(data, 0, buffer);
+    }
+
+    /**
+     * Append a single op to the buffer.
+     *
+     * @param data     The op to be encoded.  Must hold at least an id and a type.
+     * @param sequence The originator's sequence number for the op, or 0 for none.
+     * @param buffer   The buffer to write to.
+     * @throws java.nio.BufferOverflowException If the op does not fit in the buffer.
+     */
+    public static void encode(int[] data, int sequence, ByteBuffer buffer)
+    {
+        int type = data[1];
+        writeVarInt(buffer, type);
+        writeVarInt(buffer, zigzag(data[0]));
+        writeVarInt(buffer, sequence);
+        writeVarInt(buffer, data.length - 2);
+        for (int i = 2; i < data.length; i++)
+        {
+            if (isColour(type, i))
+            {
+                buffer.putInt(data[i]);
+            } else if (isDelta(type, i))
+            {
+                writeVarInt(buffer, zigzag(data[i] - data[i - 2]));
+            } else
+            {
+                writeVarInt(buffer, zigzag(data[i]));
+            }
+        }
+    }
+
+    /**
+     * Read the next op from the buffer, ignoring its sequence number.
+     *
+     * @param buffer The buffer to read from.
+     * @return The decoded op.
+     * @throws IllegalArgumentException          If the op is malformed.
+     * @throws java.nio.BufferUnderflowException If the op is truncated.
+     */
+    public static int[] decode(ByteBuffer buffer)
+    {
+        return decode(buffer, null);
+    }
+
+    /**
+     * Read the next op from the buffer.
+     *
+     * @param buffer   The buffer to read from.
+     * @param sequence If not null, element 0 is set to the op's sequence number.
+     * @return The decoded op.
+     * @throws IllegalArgumentException          If the op is malformed.
+     * @throws java.nio.BufferUnderflowException If the op is truncated.
+     */
+    public static int[] decode(ByteBuffer buffer, int[] sequence)
+    {
+        int type = readVarInt(buffer);
+        int id = unzigzag(readVarInt(buffer));
+        int seq = readVarInt(buffer);
+        if (sequence != null)
+        {
+            sequence[0] = seq;
+        }
+        int count = readVarInt(buffer);
+        //Every field takes at least one byte so anything bigger is rubbish.
+        if (count < 0 || count > buffer.remaining())
+        {
+            throw new IllegalArgumentException("Bad field count " + count);
+        }
+
+        int[] data = new int[count + 2];
+        data[0] = id;
+        data[1] = type;
+        for (int i = 2; i < data.length; i++)
+        {
+            if (isColour(type, i))
+            {
+                data[i] = buffer.getInt();
+            } else if (isDelta(type, i))
+            {
+                data[i] = data[i - 2] + unzigzag(readVarInt(buffer));
+            } else
+            {
+                data[i] = unzigzag(readVarInt(buffer));
+            }
+        }
+        return data;
+    }
+
+    private static boolean isColour(int type, int index)
+    {
+        switch (type)
+        {
+            case Draw.DRAW:
+                return index == 6;
+            case Draw.TEXT:
+            case Draw.CIRCLE:
+                return index == 5;
+            case Draw.POLYLINE:
+                return index == 2;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isDelta(int type, int index)
+    {
+        //Line end points are usually only a few pixels from the start.
+        //Each point of a polyline is written as a delta from the one before.
+        return (type == Draw.DRAW && (index == 4 || index == 5)) || (type == Draw.POLYLINE && index >= 6);
+    }
+
+    /**
+     * Write an unsigned varint.
+     *
+     * @param buffer The buffer to write to.
+     * @param value  The value.
+     */
+    static void writeVarInt(ByteBuffer buffer, int value)
+    {
+        while ((value & ~0x7F) != 0)
+        {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Read an unsigned varint.
+     *
+     * @param buffer The buffer to read from.
+     * @return The value.
+     * @throws IllegalArgumentException If the varint is too long.
+     */
+    static int readVarInt(ByteBuffer buffer)
+    {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7)
+        {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+            {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private static int zigzag(int value)
+    {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value)
+    {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Peer to peer whiteboard
+ * Distributed computing.
+ * CMPSMC34
+ */
+
+package com.twizted.Network;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * @author Ian Weeks 6204848
+ *         <p>
+ *         SequenceBlock class.
+ *         <p>
+ *         Hands out this peer's sequence numbers so they carry on from
+ *         where the last run stopped.  Peers tell ops apart by id and
+ *         sequence number, so a restart that began again at 1 would have
+ *         its new ops taken for ones already seen.
+ *         <p>
+ *         Numbers are reserved a block at a time and the end of the block
+ *         is saved to a file before any of it is used, so a crash only
+ *         skips the rest of a block.  If the file can't be read the first
+ *         number is picked at random, far enough up that it is unlikely to
+ *         meet a number from an earlier run.  The file is set by
+ *         {@code whiteboard.sequencefile}.
+ */
+class SequenceBlock
+{
+    private static final int BLOCK_SIZE = 4096;
+    //Random starts stay under this so a sequence number still fits a four byte varint.
+    private static final int RANDOM_LIMIT = 1 << 27;
+    private final File file;
+    private int next, limit;
+
+    /**
+     * SequenceBlock constructor.  Reads where the last run stopped.
+     */
+    SequenceBlock()
+    {
+        this(new File(System.getProperty("whiteboard.sequencefile",
+                                         new File(System.getProperty("user.home"), ".whiteboard-sequence").getPath())));
+    }
+
+    /**
+     * SequenceBlock constructor.  Reads where the last run stopped.
+     *
+     * @param file The file the reserved block is saved in.
+     */
+    SequenceBlock(File file)
+    {
+        this.file = file;
+        next = read();
+        limit = next;
+    }
+
+    private int read()
+    {
+        try
+        {
+            String saved = new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII);
+            int start = Integer.parseInt(saved.trim());
+            if (start > 0)
+            {
+                return start;
+            }
+        } catch (IOException | NumberFormatException e)
+        {
+            System.out.println("No saved sequence number in " + file + ".  Starting from a random one.");
+        }
+        return ThreadLocalRandom.current().nextInt(RANDOM_LIMIT / 8, RANDOM_LIMIT);
+    }
+
+    /**
+     * Get the next sequence number without using it up.
+     *
+     * @return The next sequence number.
+     */
+    int peek()
+    {
+        return next;
+    }
+
+    /**
+     * Use up the next sequence number, reserving another block if this one is spent.
+     *
+     * @return The number used.
+     */
+    int advance()
+    {
+        if (next >= limit)
+        {
+            limit = next + BLOCK_SIZE;
+            try
+            {
+                Files.write(file.toPath(), Integer.toString(limit).getBytes(StandardCharsets.US_ASCII));
+            } catch (IOException e)
+            {
+                System.out.println("Could not save sequence number to " + file + ".");
+                System.out.println(e.getMessage());
+            }
+        }
+        return next++;
+    }
+}
@@ -0,0 +1,200 @@
+/**
+ * Peer to peer whiteboard
+ * Distributed computing.
+ * CMPSMC34
+ */
+
+package com.twizted.Network;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * @author Ian Weeks 6204848
+ *         <p>
+ *         SequenceTracker class.
+ *         <p>
+ *         Follows the sequence numbers of each originating peer and
+ *         keeps a record of any that went missing so they can be
+ *         requested again with a NACK.
+ *         <p>
+ *         Gaps that cannot be repaired after a few attempts are given up
+ *         on.  Very large jumps are treated as the peer having restarted.
+ */
+class SequenceTracker
+{
+    //Largest gap worth repairing.  Anything bigger is left to the history.
+    private static final int MAX_GAP = 1024;
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long RETRY_NANOS = 100_000_000L;
+    private final Map<Integer, Origin> origins;
+
+    /**
+     * Default constructor.
+     */
+    SequenceTracker()
+    {
+        origins = new HashMap<>();
+    }
+
+    /**
+     * Record the receipt of an op.
+     *
+     * @param id       The originating peer's id.
+     * @param sequence The op's sequence number.  0 if not sequenced.
+     * @return True if the op is new or fills a gap.  False if it is a duplicate.
+     */
+    boolean accept(int id, int sequence)
+    {
+        if (sequence == 0)
+        {
+            return true;
+        }
+
+        Origin origin = origins.get(id);
+        if (origin == null)
+        {
+            //First op seen from this peer.  Anything before it is covered by the history.
+            origins.put(id, new Origin(sequence + 1));
+            return true;
+        }
+
+        if (sequence == origin.expected)
+        {
+            origin.expected++;
+            return true;
+        }
+        if (sequence > origin.expected)
+        {
+            if (sequence - origin.expected > MAX_GAP)
+            {
+                origin.resync(sequence + 1);
+                return true;
+            }
+            if (origin.missing.isEmpty())
+            {
+                origin.attempts = 0;
+            }
+            for (int i = origin.expected; i < sequence; i++)
+            {
+                origin.missing.add(i);
+            }
+            origin.expected = sequence + 1;
+            origin.nextNack = System.nanoTime();
+            return true;
+        }
+        if (origin.missing.remove(sequence))
+        {
+            return true;
+        }
+        if (origin.expected - sequence > MAX_GAP)
+        {
+            origin.resync(sequence + 1);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Check if any gaps are waiting to be repaired.
+     *
+     * @return True if any sequence numbers are missing.
+     */
+    boolean hasMissing()
+    {
+        for (Origin origin : origins.values())
+        {
+            if (!origin.missing.isEmpty())
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the missing ranges that are due to be requested.
+     * Each range is {id, first, last}.
+     *
+     * @return The ranges to request.
+     */
+    List<int[]> dueRanges()
+    {
+        List<int[]> ranges = new ArrayList<>();
+        long now = System.nanoTime();
+        for (Map.Entry<Integer, Origin> entry : origins.entrySet())
+        {
+            Origin origin = entry.getValue();
+            if (origin.missing.isEmpty() || now - origin.nextNack < 0)
+            {
+                continue;
+            }
+            if (++origin.attempts > MAX_ATTEMPTS)
+            {
+                System.out.println("Giving up on " + origin.missing.size() + " ops from " + entry.getKey());
+                origin.missing.clear();
+                origin.attempts = 0;
+                continue;
+            }
+            origin.nextNack = now + RETRY_NANOS;
+
+            //Collapse the missing numbers into contiguous ranges.
+            Iterator<Integer> it = origin.missing.iterator();
+            int first = it.next(), last = first;
+            while (it.hasNext())
+            {
+                int next = it.next();
+                if (next != last + 1)
+                {
+                    ranges.add(new int[]{entry.getKey(), first, last});
+                    first = next;
+                }
+                last = next;
+            }
+            ranges.add(new int[]{entry.getKey(), first, last});
+        }
+        return ranges;
+    }
+
+    /**
+     * Forget everything known about a peer.
+     *
+     * @param id The peer's id.
+     */
+    void reset(int id)
+    {
+        origins.remove(id);
+    }
+
+    /**
+     * Forget everything known about all peers.
+     */
+    void clear()
+    {
+        origins.clear();
+    }
+
+    private static class Origin
+    {
+        private final TreeSet<Integer> missing = new TreeSet<>();
+        private int expected;
+        private int attempts;
+        private long nextNack;
+
+        private Origin(int expected)
+        {
+            this.expected = expected;
+        }
+
+        private void resync(int expected)
+        {
+            this.expected = expected;
+            missing.clear();
+            attempts = 0;
+        }
+    }
+}
@@ -6,70 +6,130 @@
 
 package com.twizted.Network;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
+import com.twizted.Cache.TiledImage;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
 
 /**
  * @author Ian Weeks 6204848
  *         <p>
  *         TcpClient class.
  *         <p>
- *         Handles sending of images using TCP packets.
+ *         Handles receipt of a single image from a peer's {@link TcpServer}.
+ *         The image arrives as tiles which are handed over one at a time
+ *         as they are read.  The fetch can start part way through so a
+ *         dropped connection only has to fetch the tiles it is missing.
+ *         Each tile is checked against its digest before it is handed over.
  */
-class TcpClient implements Runnable
+public class TcpClient implements Callable<Boolean>
 {
-    private String recipientIP;
-    private BufferedImage image;
+    //Anything bigger than these is not an image we sent.
+    private static final int MAX_TILE = 4 << 20;
+    static final long MAX_PIXELS = 100_000_000L;
+    private String address;
+    private long key;
+    private int firstTile;
+    private Receiver receiver;
 
     /**
      * TcpClient constructor.
      *
-     * @param recipientIP The recipient's ip address.
-     * @param image       The image to be sent.
+     * @param address   The ip address of the peer holding the image.
+     * @param key       The key of the image to fetch.
+     * @param firstTile The first tile wanted.  0 for the whole image.
+     * @param receiver  Where to hand the tiles.
      */
-    TcpClient(String recipientIP, BufferedImage image)
+    public TcpClient(String address, long key, int firstTile, Receiver receiver)
     {
-        this.recipientIP = recipientIP;
-        this.image = image;
+        this.address = address;
+        this.key = key;
+        this.firstTile = firstTile;
+        this.receiver = receiver;
     }
 
-
     /**
-     * When an object implementing interface <code>Runnable</code> is used
-     * to create a thread, starting the thread causes the object's
-     * <code>run</code> method to be called in that separately executing
-     * thread.
-     * <p>
-     * The general contract of the method <code>run</code> is that it may
-     * take any action whatsoever.
+     * Fetch the image.
      *
-     * @see Thread#run()
+     * @return True if fetched.  False if the peer does not hold the image.
+     * @throws IOException If the image could not be fetched.  Any tiles already
+     *                     handed over are kept.
      */
     @Override
-    public void run()
+    public Boolean call() throws IOException
     {
-        int port = 55550;
         //Try with resources to auto close socket and streams.
-        try (Socket socket = new Socket(recipientIP, port);
-             OutputStream outStream = socket.getOutputStream();
-             ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream())
-        {
-            //Write the image to a byte array and send the array size and the image bytes.
-            //Sending images as objects will not work.
-            ImageIO.write(image, "jpg", byteArrayOutputStream);
-            byte[] size = ByteBuffer.allocate(4).putInt(byteArrayOutputStream.size()).array();
-            outStream.write(size);
-            outStream.write(byteArrayOutputStream.toByteArray());
-            outStream.flush();
-            System.out.println("Sent image to " + recipientIP + " complete");
-        } catch (IOException e)
+        try (Socket socket = new Socket())
         {
-            e.printStackTrace();
+            socket.connect(new InetSocketAddress(address, TcpServer.PORT), 2000);
+            //Five second timeout.
+            socket.setSoTimeout(5000);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeLong(key);
+            out.writeInt(firstTile);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            int width = in.readInt(), height = in.readInt(), tileSize = in.readInt(), tiles = in.readInt();
+            if (width == 0)
+            {
+                return false;
+            }
+            if (!TiledImage.isValid(width, height, tileSize, tiles, MAX_PIXELS) || firstTile > tiles)
+            {
+                throw new IOException("Bad image header " + width + "x" + height + " " + tileSize + " " + tiles);
+            }
+            receiver.header(width, height, tileSize, tiles);
+
+            for (int i = firstTile; i < tiles; i++)
+            {
+                int length = in.readInt();
+                long digest = in.readLong();
+                if (length <= 0 || length > MAX_TILE)
+                {
+                    throw new IOException("Bad tile length " + length);
+                }
+                //Read the whole tile.  A single read may only return part of it.
+                byte[] tile = new byte[length];
+                in.readFully(tile);
+                if (TiledImage.digest(tile) != digest)
+                {
+                    throw new IOException("Tile " + i + " does not match its digest");
+                }
+                receiver.tile(i, tile);
+            }
+            return true;
         }
     }
+
+    /**
+     * Receives an image's tiles as they arrive.
+     */
+    public interface Receiver
+    {
+        /**
+         * Called before any tiles with the size of the image.
+         *
+         * @param width    The image width.
+         * @param height   The image height.
+         * @param tileSize The width and height of a tile, or {@link TiledImage#ORIGINAL}.
+         * @param tiles    The number of tiles.
+         * @throws IOException If the image can't be accepted.
+         */
+        void header(int width, int height, int tileSize, int tiles) throws IOException;
+
+        /**
+         * Called with each tile in order once it has matched its digest.
+         *
+         * @param index The tile index.
+         * @param tile  The encoded tile.
+         * @throws IOException If the tile can't be accepted.
+         */
+        void tile(int index, byte[] tile) throws IOException;
+    }
 }
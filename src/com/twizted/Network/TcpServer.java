@@ -8,38 +8,59 @@ package com.twizted.Network;
 
 
 import com.twizted.Cache.ImageCache;
+import com.twizted.Cache.TiledImage;
+import com.twizted.Utility.Tasks;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Ian Weeks 6204848
  * <p>
  * TcpServer class
  * <p>
- * Handles receipt of images using TCP.
+ * Handles sending of images using TCP.
+ * <p>
+ * Listens for the whole life of the program and serves each connection
+ * on a small pool of threads so several peers can fetch at once.  A peer
+ * sends the content key of the image it wants and the first tile it
+ * wants, and is sent back the image's width, height, tile size and tile
+ * count followed by the tiles from that one on.  A width of zero means
+ * the image is not held here.
+ * <p>
+ * Each image is cut into tiles once and the tiles are kept on disk.  They
+ * are sent straight from that file with transferTo so they are never
+ * copied through the heap or encoded again.  An image held as its
+ * original file is sent as slices of that file rather than tiles (see
+ * {@link TiledImage}).
  */
 public class TcpServer implements Runnable
 {
+    static final int PORT = 55550;
+    //Most images sent at once.  Further peers wait their turn.
+    private static final int MAX_TRANSFERS = 8;
+    //Most peers waiting their turn.  Any more are turned away.
+    private static final int MAX_WAITING = 32;
+    private final Tasks.Group transfers = Tasks.getInstance().newGroup("image serve", MAX_TRANSFERS, MAX_WAITING);
     private ImageCache imageCache;
-    private int key;
+    private volatile boolean serverOn;
 
     /**
      * TcpServer constructor.
      *
      * @param imageCache A reference to the image cache.
-     * @param key        The key to be used for this image.
      */
-    public TcpServer(ImageCache imageCache, int key)
+    public TcpServer(ImageCache imageCache)
     {
         this.imageCache = imageCache;
-        this.key = key;
+        serverOn = true;
     }
 
     /**
@@ -56,40 +77,95 @@ public class TcpServer implements Runnable
     @Override
     public void run()
     {
-        System.out.println("Image receiver waiting");
-        int port = 55550;
-        //Try with resources to auto close socket and streams.
-        try (ServerSocket serverSocket = new ServerSocket(port);
-             Socket socket = serverSocket.accept();
-             InputStream inputStream = socket.getInputStream())
+        //Try with resources to auto close the channel.
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open())
         {
-            //Init the array size array.
-            byte[] arraySize = new byte[4];
-
-
-            //Read the array size.
-            //noinspection ResultOfMethodCallIgnored
-            inputStream.read(arraySize);
-            //Get the size of the image.
-            int imageSize = ByteBuffer.wrap(arraySize).asIntBuffer().get();
-
-            //Create the exact sized image array.
-            byte[] imageArray = new byte[imageSize];
-
-            //Read the image bytes to the image array.
-            //noinspection ResultOfMethodCallIgnored
-            inputStream.read(imageArray);
+            serverChannel.bind(new InetSocketAddress(PORT));
+            while (serverOn)
+            {
+                final SocketChannel channel = serverChannel.accept();
+                try
+                {
+                    transfers.execute(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            serve(channel);
+                        }
+                    });
+                } catch (RejectedExecutionException e)
+                {
+                    //Closed straight away so the peer sees the failure rather than waiting on it.
+                    System.out.println("Turned away image request from "
+                                       + channel.socket().getInetAddress().getHostAddress() + ".");
+                    channel.close();
+                }
+            }
+        } catch (IOException e)
+        {
+            System.out.println("Error in image server.");
+            System.out.println(e.getMessage());
+        }
+    }
 
-            //Create the image from the image bytes.
-            BufferedImage image = ImageIO.read(new ByteArrayInputStream(imageArray));
+    /**
+     * Send a single requested image.
+     *
+     * @param channel The requesting peer's connection.
+     */
+    private void serve(SocketChannel channel)
+    {
+        String peer = channel.socket().getInetAddress().getHostAddress();
+        //Try with resources to auto close the channel.
+        try (SocketChannel c = channel)
+        {
+            //Five second timeout.  Only the socket's own streams honour it.
+            c.socket().setSoTimeout(5000);
+            DataInputStream in = new DataInputStream(c.socket().getInputStream());
+            long key = in.readLong();
+            int first = in.readInt();
+            TiledImage tiles = imageCache.getTiles(key);
+            if (tiles == null)
+            {
+                System.out.println("Image " + Long.toHexString(key) + " requested by " + peer
+                                   + " is not held here.");
+                writeHeader(c, 0, 0, 0, 0);
+                return;
+            }
+            if (first < 0 || first > tiles.getTileCount())
+            {
+                throw new IOException("Bad first tile " + first);
+            }
 
-            //Put the image into the cache.
-            imageCache.put(key, image);
-            System.out.println("Image receiver complete.");
+            writeHeader(c, tiles.getWidth(), tiles.getHeight(), tiles.getTileSize(), tiles.getTileCount());
+            try (FileChannel source = FileChannel.open(tiles.getFile().toPath(), StandardOpenOption.READ))
+            {
+                //transferTo may send less than asked so keep going until it is all sent.
+                long position = tiles.getOffset(first), end = tiles.getOffset(tiles.getTileCount());
+                while (position < end)
+                {
+                    position += source.transferTo(position, end - position, c);
+                }
+            }
+            System.out.println("Sent image " + Long.toHexString(key) + " from tile " + first + " to " + peer
+                               + " complete");
         } catch (IOException e)
         {
-            System.out.println("Error in image receiver.");
+            System.out.println("Error in image send.");
             System.out.println(e.getMessage());
         }
     }
+
+    private static void writeHeader(SocketChannel channel, int width, int height, int tileSize, int tiles)
+            throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.putInt(width).putInt(height).putInt(tileSize).putInt(tiles);
+        buffer.flip();
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer);
+        }
+    }
 }
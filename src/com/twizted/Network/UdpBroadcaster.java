@@ -7,16 +7,19 @@
 package com.twizted.Network;
 
 import com.twizted.Display.Frame;
+import com.twizted.Utility.Draw;
+import com.twizted.Utility.OpQueue;
+import com.twizted.Utility.RateMeter;
+import com.twizted.Utility.TokenBucket;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Ian Weeks 6204848
@@ -24,29 +27,72 @@ import java.util.concurrent.LinkedBlockingQueue;
  *         UdpBroadcaster
  *         <p>
  *         Handles all multicast broadcasting.
+ *         <p>
+ *         A single channel and send buffer are kept for the life of
+ *         the broadcaster so nothing is allocated per packet.
+ *         <p>
+ *         When batching is on, ops that arrive within the flush deadline
+ *         of the first are packed into the same datagram until it is full.
+ *         <p>
+ *         Control ops such as peer discovery and NACKs are queued in their
+ *         own lane (see {@link OpQueue}) and always sent before waiting
+ *         draw ops.
+ *         <p>
+ *         Draw ops that originate here are given a sequence number and kept
+ *         in the {@link com.twizted.Cache.ActionCache} so peers can ask for
+ *         them again if they are lost.  Numbers carry on across restarts
+ *         (see {@link SequenceBlock}).
+ *         <p>
+ *         Sending is limited by a {@link TokenBucket} so a burst of ops
+ *         cannot overrun the peers' receive buffers.  The limit backs off
+ *         by a quarter whenever peers report lost ops and creeps back up
+ *         while they do not, up to the most set by the system property
+ *         {@code whiteboard.sendrate} in bytes per second.
  */
 public class UdpBroadcaster implements Runnable
 {
-    private volatile BlockingQueue<int[]> queue;
+    //Slowest the limit backs off to, in bytes per second.
+    private static final long MIN_RATE = 16 << 10;
+    //Only back off once per interval however many peers report the same loss.
+    private static final long BACK_OFF_INTERVAL = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final long RAISE_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+    private final OpQueue queue = OpQueue.fromProperties("send", 8192, OpQueue.Policy.COALESCE);
     private boolean broadcastOn;
-    private InetAddress serverAddress;
+    private InetSocketAddress serverAddress;
     private Frame frame;
+    private DatagramChannel channel;
+    private ByteBuffer sendBuffer;
+    private final SequenceBlock sequences = new SequenceBlock();
+    private volatile boolean batching;
+    private volatile long flushDeadline;
+    private final RateMeter opsSent = new RateMeter();
+    private final RateMeter packetsSent = new RateMeter();
+    private final RateMeter bytesSent = new RateMeter();
+    private final RateMeter lossReports = new RateMeter();
+    private final long maxRate = Long.getLong("whiteboard.sendrate", 1 << 20);
+    private final TokenBucket bucket = new TokenBucket(maxRate, 16 * PacketCodec.MAX_PACKET_SIZE);
+    private volatile long lastBackOff;
+    private long lastRaise;
 
     /**
      * UdpBroadcaster constructor.
      *
      * @param frame Reference to parent frame.
-     * @throws UnknownHostException If no IP address for the
-     *                              {@code generalIP} could be found, or if a scope_id was specified
-     *                              for a global IPv6 address.
+     * @throws IOException If the multicast address could not be resolved
+     *                     or the send channel could not be opened.
      */
-    public UdpBroadcaster(Frame frame) throws UnknownHostException
+    public UdpBroadcaster(Frame frame) throws IOException
     {
         this.frame = frame;
-        queue = new LinkedBlockingQueue<>();
+        //Sequenced local ops are recorded for repair and history as they are sent.
+        queue.attach(frame.getOpRing().newCursor());
         broadcastOn = true;
         String generalIP = "224.0.159.82";
-        serverAddress = InetAddress.getByName(generalIP);
+        serverAddress = new InetSocketAddress(generalIP, 55559);
+        channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        sendBuffer = ByteBuffer.allocateDirect(PacketCodec.MAX_PACKET_SIZE);
+        batching = true;
+        flushDeadline = TimeUnit.MILLISECONDS.toNanos(4);
     }
 
     /**
@@ -68,7 +114,6 @@ public class UdpBroadcaster implements Runnable
         {
             try
             {
-                DatagramPacket packet;
                 /*
                  * Because this is a blocking queue,
                  * the program will wait here while
@@ -84,33 +129,206 @@ public class UdpBroadcaster implements Runnable
                  */
                 int[] data = queue.take();
 
+                if (isLocalClear(data))
+                {
+                    continue;
+                }
                 if (frame.getSelectPanel().network() || frame.isExiting())
                 {
-                    try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                         ObjectOutputStream oos = new ObjectOutputStream(baos);
-                         DatagramSocket udpSocket = new DatagramSocket())
+                    // Encode the data straight into the send buffer and send it.
+                    sendBuffer.clear();
+                    PacketCodec.writeHeader(sendBuffer);
+                    encode(data);
+                    int ops = 1;
+                    if (batching)
                     {
-                        // Create byte array of data.
-                        oos.writeObject(data);
-                        byte[] sendData = baos.toByteArray();
-                        System.out.println("Send: " + sendData.length);
-
-                        // Create the packet to be sent.
-                        packet = new DatagramPacket(sendData, sendData.length);
-                        packet.setAddress(serverAddress);
-                        packet.setPort(55559);
-
-                        // Send the packet.
-                        udpSocket.send(packet);
-                        System.out.println("Packet sent");
+                        ops += fillBatch();
                     }
+                    sendBuffer.flip();
+                    raiseRate();
+                    bucket.take(sendBuffer.remaining());
+                    int sent = channel.send(sendBuffer, serverAddress);
+                    opsSent.record(ops);
+                    packetsSent.record(1);
+                    bytesSent.record(sent);
                 }
             } catch (IOException | InterruptedException e)
             {
                 e.printStackTrace();
+            } catch (RuntimeException e)
+            {
+                //A bad op loses its packet rather than stopping every send after it.
+                System.out.println("Error sending packet.");
+                System.out.println(e.getMessage());
+            }
+        }
+
+    }
+
+    /**
+     * Pack any ops that arrive before the flush deadline into the send buffer.
+     * An op that does not fit is put back for the next datagram.
+     *
+     * @return The number of ops added.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    private int fillBatch() throws InterruptedException
+    {
+        int added = 0;
+        long deadline = System.nanoTime() + flushDeadline;
+        long remaining = flushDeadline;
+        while (remaining > 0)
+        {
+            int[] next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null)
+            {
+                break;
             }
+            if (isLocalClear(next))
+            {
+                remaining = deadline - System.nanoTime();
+                continue;
+            }
+            sendBuffer.mark();
+            try
+            {
+                encode(next);
+                added++;
+            } catch (BufferOverflowException e)
+            {
+                //Datagram is full.  Drop the partial op and send what we have.
+                sendBuffer.reset();
+                queue.putFirst(next);
+                break;
+            } catch (RuntimeException e)
+            {
+                //Leave out an op that can't be encoded and carry on with the rest.
+                sendBuffer.reset();
+                System.out.println("Error encoding " + Arrays.toString(next) + ".");
+                System.out.println(e.getMessage());
+            }
+            remaining = deadline - System.nanoTime();
+        }
+        return added;
+    }
+
+    /**
+     * Encode an op into the send buffer, giving it the next sequence number if it is
+     * one of our own draw ops.  The number is only used up if the op fits.
+     * Sequenced ops are added to the history here as this is where they get their number.
+     *
+     * @param data The op to be encoded.
+     * @throws InterruptedException If interrupted while adding to the history.
+     */
+    private void encode(int[] data) throws InterruptedException
+    {
+        boolean sequenced = isSequenced(data);
+        PacketCodec.encode(data, sequenced ? sequences.peek() : 0, sendBuffer);
+        if (sequenced)
+        {
+            int sequence = sequences.advance();
+            frame.getActionCache().retain(sequence, data);
+            frame.record(data, sequence);
+        }
+    }
+
+    /**
+     * Check if an op is one of our own clears.  They come from the ring of
+     * local ops but are never sent, as peers are asked with a CLEAR_REQ.
+     *
+     * @param data The op.
+     * @return True for a local clear.
+     */
+    private boolean isLocalClear(int[] data)
+    {
+        return data[0] == frame.getId() && data[1] == Draw.CLEAR;
+    }
+
+    private boolean isSequenced(int[] data)
+    {
+        if (data[0] != frame.getId())
+        {
+            return false;
+        }
+        switch (data[1])
+        {
+            case Draw.DRAW:
+            case Draw.POLYLINE:
+            case Draw.TEXT:
+            case Draw.CIRCLE:
+            case Draw.IMAGE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Raise the send limit a step if nobody has reported losses for a while.
+     */
+    private void raiseRate()
+    {
+        long now = System.nanoTime();
+        if (now - lastRaise >= RAISE_INTERVAL && now - lastBackOff >= BACK_OFF_INTERVAL)
+        {
+            bucket.setRate(Math.min(maxRate, bucket.getRate() + maxRate / 20));
+            lastRaise = now;
+        }
+    }
+
+    /**
+     * Tell the broadcaster a peer lost some of our ops.  The send limit
+     * is cut by a quarter, at most once per back off interval.
+     */
+    public void lossReported()
+    {
+        lossReports.record(1);
+        long now = System.nanoTime();
+        if (now - lastBackOff >= BACK_OFF_INTERVAL)
+        {
+            lastBackOff = now;
+            bucket.setRate(Math.max(MIN_RATE, bucket.getRate() * 3 / 4));
         }
+    }
+
+    /**
+     * Get the current send limit.
+     *
+     * @return The most bytes that may be sent per second.
+     */
+    public long getRateLimit()
+    {
+        return bucket.getRate();
+    }
+
+    /**
+     * Get the number of loss reports received over the last second.
+     *
+     * @return Loss reports per second.
+     */
+    public long getLossReportsPerSecond()
+    {
+        return lossReports.getRate();
+    }
+
+    /**
+     * Turn batching of ops into shared datagrams on or off.
+     *
+     * @param batching True to batch. False to send one op per datagram.
+     */
+    public void setBatching(boolean batching)
+    {
+        this.batching = batching;
+    }
 
+    /**
+     * Set how long a datagram may wait for more ops before it is sent.
+     *
+     * @param millis The flush deadline in milliseconds.
+     */
+    public void setFlushDeadline(long millis)
+    {
+        flushDeadline = TimeUnit.MILLISECONDS.toNanos(millis);
     }
 
     /**
@@ -119,8 +337,68 @@ public class UdpBroadcaster implements Runnable
      * @param data Data line to be added.
      * @throws InterruptedException If interrupted while waiting
      */
-    public synchronized void put(int[] data) throws InterruptedException
+    public void put(int[] data) throws InterruptedException
     {
         queue.put(data);
     }
+
+    /**
+     * Get the send queue, for its depth and overflow counts.
+     *
+     * @return The send queue.
+     */
+    public OpQueue getQueue()
+    {
+        return queue;
+    }
+
+    /**
+     * Get the number of ops sent over the last second.
+     *
+     * @return Ops sent per second.
+     */
+    public long getOpsPerSecond()
+    {
+        return opsSent.getRate();
+    }
+
+    /**
+     * Get the number of packets sent over the last second.
+     *
+     * @return Packets sent per second.
+     */
+    public long getPacketsPerSecond()
+    {
+        return packetsSent.getRate();
+    }
+
+    /**
+     * Get the number of bytes sent over the last second.
+     *
+     * @return Bytes sent per second.
+     */
+    public long getBytesPerSecond()
+    {
+        return bytesSent.getRate();
+    }
+
+    /**
+     * Get the total number of packets sent.
+     *
+     * @return Total packets sent.
+     */
+    public long getPacketsSent()
+    {
+        return packetsSent.getTotal();
+    }
+
+    /**
+     * Get the total number of bytes sent.
+     *
+     * @return Total bytes sent.
+     */
+    public long getBytesSent()
+    {
+        return bytesSent.getTotal();
+    }
 }
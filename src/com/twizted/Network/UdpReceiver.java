@@ -8,18 +8,31 @@ package com.twizted.Network;
 
 import com.twizted.Display.Frame;
 import com.twizted.Utility.Draw;
+import com.twizted.Utility.OpQueue;
 import com.twizted.Utility.Triple;
 
 import javax.swing.*;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.ObjectInput;
-import java.io.ObjectInputStream;
-import java.net.DatagramPacket;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.net.InetAddress;
-import java.net.MulticastSocket;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * @author Ian Weeks 6204848
@@ -27,14 +40,53 @@ import java.util.Arrays;
  *         UdpReceiver class
  *         <p>
  *         Handles reception of multicast packets.
+ *         <p>
+ *         A single selector thread owns both the multicast channel and
+ *         the direct history channel (see {@link UdpServer}).  Every
+ *         datagram is read into the same direct buffer and decoded in place.
+ *         <p>
+ *         While the network is off the thread waits on a monitor and is
+ *         woken by {@link #networkChanged()} so no CPU is used.
+ *         <p>
+ *         Control ops are acted on as soon as they are read.  Draw ops are
+ *         held back until every waiting datagram has been read, so a peer
+ *         joining or a NACK is never stuck behind a backlog of drawing.
+ *         <p>
+ *         Sequenced draw ops are checked for gaps.  Missing ranges are
+ *         requested from their originator with a NACK, and NACKs for our
+ *         own ops are answered directly to the requester from the
+ *         {@link com.twizted.Cache.ActionCache}.
+ *         Multicast image chunks are read on the same thread and put back
+ *         together by an {@link ImageAssembler}.
+ *         Setting the system property {@code whiteboard.loss} to a fraction
+ *         drops that share of incoming multicast packets and image chunks
+ *         to test this.
  */
 public class UdpReceiver implements Runnable
 {
     @SuppressWarnings("WeakerAccess")
-    public static final int REQ_IP = 5, ANS_IP = 6, LEAVE_NOTE = 7, REQ_HISTORY = 8, CLEAR_REQ = 9, IMAGE_REQ = 10;
-    private byte[] receiveData;
-    private boolean receiverOn;
+    public static final int REQ_IP = 5, ANS_IP = 6, LEAVE_NOTE = 7, CLEAR_REQ = 9, NACK = 11;
+    //Most ops sent back in answer to a single NACK.
+    private static final int MAX_REPAIR = 512;
+    //Most draw ops held back in one pass.
+    private static final int MAX_DEFERRED = 4096;
+    private final Object networkLock = new Object();
+    private final SequenceTracker tracker = new SequenceTracker();
+    private final int[] sequence = new int[1];
+    //Draw ops read in the current pass, held back until its control ops are handled.
+    //Kept in arrays rather than lists so sequence numbers are not boxed on every op.
+    private final int[][] deferred = new int[MAX_DEFERRED][];
+    private final int[] deferredSequences = new int[MAX_DEFERRED];
+    private int deferredCount;
+    private final double simulatedLoss = Double.parseDouble(System.getProperty("whiteboard.loss", "0"));
+    private ByteBuffer receiveBuffer, repairBuffer;
+    private UdpServer historyServer;
+    private ImageAssembler imageAssembler;
+    private volatile boolean receiverOn;
     private Frame frame;
+    private volatile Selector selector;
+    private volatile long threadId = -1;
+    private long lastCpuTime, lastWallTime;
 
     /**
      * UdpReceiver constructor.
@@ -43,7 +95,8 @@ public class UdpReceiver implements Runnable
      */
     public UdpReceiver(Frame frame)
     {
-        receiveData = new byte[1024];
+        receiveBuffer = ByteBuffer.allocateDirect(PacketCodec.MAX_PACKET_SIZE);
+        repairBuffer = ByteBuffer.allocateDirect(PacketCodec.MAX_PACKET_SIZE);
         receiverOn = true;
         this.frame = frame;
     }
@@ -62,133 +115,473 @@ public class UdpReceiver implements Runnable
     @Override
     public void run()
     {
-        try
+        threadId = Thread.currentThread().getId();
+        try (Selector selector = Selector.open();
+             DatagramChannel multicastChannel = openMulticastChannel(55559);
+             UdpServer historyServer = new UdpServer(frame, tracker);
+             ImageAssembler imageAssembler = new ImageAssembler(frame, simulatedLoss))
         {
-            MulticastSocket multicastSocket = new MulticastSocket(55559);
-            //My chosen multicast ip.
-            String multicastIP = "224.0.159.82";
-            multicastSocket.joinGroup(InetAddress.getByName(multicastIP));
+            this.selector = selector;
+            this.historyServer = historyServer;
+            this.imageAssembler = imageAssembler;
+            multicastChannel.register(selector, SelectionKey.OP_READ);
+            historyServer.register(selector);
+            imageAssembler.register(selector);
             //Receiver on continuous loop.
             while (receiverOn)
             {
                 //Check network flag.
-                if (frame.getSelectPanel().network())
+                if (!frame.getSelectPanel().network())
+                {
+                    //Sleep until connected then throw away anything sent while we were away.
+                    tracker.clear();
+                    waitForNetwork();
+                    discard(multicastChannel);
+                    imageAssembler.discard(receiveBuffer);
+                } else
                 {
-                    DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-                    multicastSocket.receive(receivePacket);
-                    byte[] b = receivePacket.getData();
-                    System.out.println("Receive: " + b.length);
-                    ByteArrayInputStream bis = new ByteArrayInputStream(b);
-                    ObjectInput in = new ObjectInputStream(bis);
-
                     try
                     {
-                        int[] data = (int[]) in.readObject();
-                        System.out.println("This: " + frame.getId() + "\tFrom: " + data[0]);
-                        //Exclude messages that originated at this peer.
-                        if (data[0] != frame.getId())
-                        {
-                            //Action based on int at data[1]
-                            switch (data[1])
-                            {
-                                case Draw.CLEAR:
-                                case Draw.DRAW:
-                                case Draw.TEXT:
-                                case Draw.CIRCLE:
-                                case Draw.IMAGE:
-                                    frame.getDraw().put(data);
-                                    break;
-                                case REQ_IP:
-                                    int key = data[0];
-                                    String ip = String.format("%d.%d.%d.%d", data[2], data[3], data[4], data[5]);
-                                    frame.getPeerCache().addPeer(new Triple<>(key, ip, data[6]));
-                                    int size = frame.getPeerCache().getSize();
-                                    frame.getPeerCount().setText(String.format("Peer count: %d", size));
-                                    int[] myIp = frame.getMyIp();
-                                    size = frame.getActionCache().getSize();
-                                    int[] ipAns = {frame.getId(), ANS_IP, myIp[0], myIp[1], myIp[2], myIp[3], size};
-                                    frame.getBroadcaster().put(ipAns);
-                                    break;
-                                case ANS_IP:
-                                    /*
-                                     * 0 = id
-                                     * 1 = data type
-                                     * 2,3,4,6 = IP
-                                     */
-                                    key = data[0];
-                                    ip = String.format("%d.%d.%d.%d", data[2], data[3], data[4], data[5]);
-                                    frame.getPeerCache().addPeer(new Triple<>(key, ip, data[6]));
-                                    frame.getPeerCount().setText(
-                                            String.format("Peer count: %d", frame.getPeerCache().getSize()));
-                                    break;
-                                case LEAVE_NOTE:
-                                    ip = String.format("%d.%d.%d.%d", data[2], data[3], data[4], data[5]);
-                                    frame.getPeerCache().removePeer(ip);
-                                    frame.getPeerCount().setText(
-                                            String.format("Peer count: %d", frame.getPeerCache().getSize()));
-                                    break;
-                                case REQ_HISTORY:
-                                    /*
-                                     * 0 = id
-                                     * 1 = data type
-                                     * 2 = tarID
-                                     * 3,4,5,6 = IP
-                                     */
-                                    if (data[2] == frame.getId())
-                                    {
-                                        ip = String.format("%d.%d.%d.%d", data[3], data[4], data[5], data[6]);
-                                        System.out.println("History request from " + ip);
-                                        UdpClient historyClient = new UdpClient(ip, frame.getActionCache());
-                                        Thread historyThread = new Thread(historyClient);
-                                        historyThread.start();
-                                    }
-                                    break;
-                                case CLEAR_REQ:
-                                    String reqTitle = String.format("Peer %d has requested a clear.", data[1]);
-                                    int dialogResult = JOptionPane.showConfirmDialog(frame, "Would you like to clear?",
-                                                                                     reqTitle,
-                                                                                     JOptionPane.YES_NO_OPTION);
-                                    if (dialogResult == JOptionPane.YES_OPTION)
-                                    {
-                                        int[] clear = {frame.getId(), Draw.CLEAR};
-                                        frame.getDraw().put(clear);
-                                        frame.clearAll();
-                                    }
-                                    break;
-                                case IMAGE_REQ:
-                                    System.out.print("IMAGE REQUEST:   ");
-                                    System.out.println(data[2] + " vs " +  frame.getId());
-                                    if (data[2] == frame.getId())
-                                    {
-                                        ip = String.format("%d.%d.%d.%d", data[4], data[5], data[6], data[7]);
-                                        System.out.println("Image request from " + ip);
-                                        BufferedImage image = frame.getImageCache().get(data[3], data[7]);
-
-                                        TcpClient tcpClient = new TcpClient(ip, image);
-                                        Thread tcpThread = new Thread(tcpClient);
-                                        tcpThread.start();
-                                    }
-                                    break;
-                                default:
-                                    //Rogue packet protection.
-                                    System.out.println("Received invalid packet.");
-                                    System.out.println(Arrays.toString(data));
-                            }
-                        }
-                    } catch (ClassNotFoundException | IndexOutOfBoundsException e)
+                        select(multicastChannel);
+                    } catch (ClosedSelectorException e)
                     {
-                        //Rogue packet protection.
-                        //Message given, loop continues.
-                        System.out.println("Exception: Received invalid packet.");
-                        e.printStackTrace();
+                        throw e;
+                    } catch (RuntimeException e)
+                    {
+                        //Only a failed channel stops the receiver.  Anything else loses the pass it broke.
+                        System.out.println("Error in receiver.");
+                        System.out.println(e.getMessage());
                     }
                 }
             }
-        } catch (IOException | InterruptedException e)
+        } catch (IOException | InterruptedException | ClosedSelectorException e)
         {
             System.err.println("Error in Receiver class.");
             System.err.println(e.getMessage());
             e.printStackTrace();
         }
     }
+
+    /**
+     * Wait for datagrams and read every one that is ready, then expire
+     * stalled images and resend due NACKs.
+     *
+     * @param multicastChannel The multicast channel.
+     * @throws IOException          If a channel cannot be read.
+     * @throws InterruptedException If interrupted while waiting on a queue.
+     */
+    private void select(DatagramChannel multicastChannel) throws IOException, InterruptedException
+    {
+        //Wake up regularly while there are gaps so NACKs can be resent
+        //and while images are arriving so they are handed over once they stop.
+        selector.select(tracker.hasMissing() || imageAssembler.isReceiving() ? 50 : 0);
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext())
+        {
+            SelectionKey key = keys.next();
+            keys.remove();
+            if (key.channel() == multicastChannel)
+            {
+                receive(multicastChannel);
+            } else if (key.attachment() == imageAssembler)
+            {
+                imageAssembler.receive(receiveBuffer);
+            } else
+            {
+                historyServer.receive(receiveBuffer);
+            }
+        }
+        imageAssembler.expire();
+        sendNacks();
+    }
+
+    /**
+     * Block until the network flag is turned on.
+     *
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    private void waitForNetwork() throws InterruptedException
+    {
+        synchronized (networkLock)
+        {
+            while (receiverOn && !frame.getSelectPanel().network())
+            {
+                networkLock.wait();
+            }
+        }
+    }
+
+    /**
+     * Notify the receiver that the network flag has changed.
+     * Wakes the receiver if it is waiting to connect, or if it is
+     * blocked on the selector and should now stop.
+     */
+    public void networkChanged()
+    {
+        synchronized (networkLock)
+        {
+            networkLock.notifyAll();
+        }
+        Selector s = selector;
+        if (s != null)
+        {
+            s.wakeup();
+        }
+    }
+
+    /**
+     * Get the share of one core used by the receiver thread since this was last called.
+     *
+     * @return CPU use as a percentage.
+     */
+    public synchronized double getCpuUsage()
+    {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threadId < 0 || !threads.isThreadCpuTimeSupported())
+        {
+            return 0;
+        }
+        long cpuTime = threads.getThreadCpuTime(threadId);
+        long wallTime = System.nanoTime();
+        double usage = 0;
+        if (lastWallTime != 0 && wallTime > lastWallTime)
+        {
+            usage = 100.0 * (cpuTime - lastCpuTime) / (wallTime - lastWallTime);
+        }
+        lastCpuTime = cpuTime;
+        lastWallTime = wallTime;
+        return usage;
+    }
+
+    /**
+     * Throw away every datagram waiting on a channel.
+     *
+     * @param channel The channel to empty.
+     * @throws IOException If the channel cannot be read.
+     */
+    private void discard(DatagramChannel channel) throws IOException
+    {
+        receiveBuffer.clear();
+        while (channel.receive(receiveBuffer) != null)
+        {
+            receiveBuffer.clear();
+        }
+    }
+
+    /**
+     * Read and act on every datagram waiting on the multicast channel.
+     *
+     * @param channel The multicast channel.
+     * @throws IOException          If the channel cannot be read.
+     * @throws InterruptedException If interrupted while waiting on a queue.
+     */
+    private void receive(DatagramChannel channel) throws IOException, InterruptedException
+    {
+        receiveBuffer.clear();
+        deferredCount = 0;
+        //Stop now and then under a flood so the held back draw ops are not held forever.
+        while (deferredCount < MAX_DEFERRED && channel.receive(receiveBuffer) != null)
+        {
+            if (simulatedLoss > 0 && ThreadLocalRandom.current().nextDouble() < simulatedLoss)
+            {
+                receiveBuffer.clear();
+                continue;
+            }
+            receiveBuffer.flip();
+            try
+            {
+                PacketCodec.readHeader(receiveBuffer);
+                while (receiveBuffer.hasRemaining())
+                {
+                    int[] data = PacketCodec.decode(receiveBuffer, sequence);
+                    if (data[0] == frame.getId() || tracker.accept(data[0], sequence[0]))
+                    {
+                        if (OpQueue.isControl(data))
+                        {
+                            handle(data, sequence[0]);
+                        } else if (deferredCount < MAX_DEFERRED)
+                        {
+                            deferred[deferredCount] = data;
+                            deferredSequences[deferredCount++] = sequence[0];
+                        } else
+                        {
+                            //Only the last packet of a full pass can overflow.  Handle the rest now.
+                            handle(data, sequence[0]);
+                        }
+                    }
+                }
+            } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e)
+            {
+                //Rogue packet protection.
+                //Message given, loop continues.
+                System.out.println("Exception: Received invalid packet.");
+                e.printStackTrace();
+            } catch (RuntimeException e)
+            {
+                //A control op that can't be handled loses the rest of its packet, not the receiver.
+                System.out.println("Error handling packet.");
+                System.out.println(e.getMessage());
+            }
+            receiveBuffer.clear();
+        }
+
+        //Draw ops only once every waiting control op has been dealt with.
+        for (int i = 0; i < deferredCount; i++)
+        {
+            try
+            {
+                handle(deferred[i], deferredSequences[i]);
+            } catch (RuntimeException e)
+            {
+                System.out.println("Error handling " + Arrays.toString(deferred[i]) + ".");
+                System.out.println(e.getMessage());
+            } finally
+            {
+                deferred[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Ask the originators of any missing ops to send them again.
+     *
+     * @throws InterruptedException If interrupted while waiting on the broadcast queue.
+     */
+    private void sendNacks() throws InterruptedException
+    {
+        if (!tracker.hasMissing())
+        {
+            return;
+        }
+        int[] myIp = frame.getMyIp();
+        for (int[] range : tracker.dueRanges())
+        {
+            int[] nack = {frame.getId(), NACK, range[0], range[1], range[2], myIp[0], myIp[1], myIp[2], myIp[3]};
+            frame.getBroadcaster().put(nack);
+        }
+    }
+
+    /**
+     * Send the requested range of our own ops directly to the peer that lost them.
+     * At most {@link #MAX_REPAIR} ops are sent.  A reversed or negative range is ignored.
+     *
+     * @param data The NACK.
+     */
+    private void repair(int[] data)
+    {
+        String ip = String.format("%d.%d.%d.%d", data[5], data[6], data[7], data[8]);
+        if (data[3] < 0 || data[3] > data[4])
+        {
+            System.out.println("Invalid NACK range " + data[3] + "-" + data[4] + " from " + ip + ".");
+            return;
+        }
+        InetSocketAddress target = new InetSocketAddress(ip, 55558);
+        //Long so a range ending at the largest sequence number can't wrap round.
+        long last = Math.min(data[4], (long) data[3] + MAX_REPAIR - 1);
+
+        try
+        {
+            repairBuffer.clear();
+            PacketCodec.writeHeader(repairBuffer);
+            int ops = 0;
+            for (long next = data[3]; next <= last; next++)
+            {
+                int seq = (int) next;
+                int[] op = frame.getActionCache().getRetained(seq);
+                if (op == null)
+                {
+                    continue;
+                }
+                repairBuffer.mark();
+                try
+                {
+                    PacketCodec.encode(op, seq, repairBuffer);
+                } catch (BufferOverflowException e)
+                {
+                    //Packet full.  Send it and start the next one with this op.
+                    repairBuffer.reset();
+                    repairBuffer.flip();
+                    historyServer.send(repairBuffer, target);
+                    repairBuffer.clear();
+                    PacketCodec.writeHeader(repairBuffer);
+                    PacketCodec.encode(op, seq, repairBuffer);
+                    ops = 0;
+                }
+                ops++;
+            }
+            if (ops > 0)
+            {
+                repairBuffer.flip();
+                historyServer.send(repairBuffer, target);
+            }
+        } catch (IOException e)
+        {
+            System.out.println("Repair to " + ip + " failed.");
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Open a non blocking channel on a multicast port and join the group.
+     *
+     * @param port The port to bind.
+     * @return The multicast channel.
+     * @throws IOException If the channel cannot be opened or the group cannot be joined.
+     */
+    static DatagramChannel openMulticastChannel(int port) throws IOException
+    {
+        //My chosen multicast ip.
+        String multicastIP = "224.0.159.82";
+        DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        channel.bind(new InetSocketAddress(port));
+        channel.join(InetAddress.getByName(multicastIP), multicastInterface());
+        channel.configureBlocking(false);
+        return channel;
+    }
+
+    /**
+     * Find the interface to join the multicast group on.
+     * Prefers the interface of the local host address.
+     *
+     * @return The interface to use.
+     * @throws SocketException If no usable interface is found.
+     */
+    private static NetworkInterface multicastInterface() throws SocketException
+    {
+        try
+        {
+            NetworkInterface local = NetworkInterface.getByInetAddress(InetAddress.getLocalHost());
+            if (local != null)
+            {
+                return local;
+            }
+        } catch (UnknownHostException e)
+        {
+            System.out.println("Local host not found. Searching interfaces.");
+        }
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+        while (interfaces.hasMoreElements())
+        {
+            NetworkInterface ni = interfaces.nextElement();
+            if (ni.isUp() && ni.supportsMulticast() && !ni.isLoopback())
+            {
+                return ni;
+            }
+        }
+        throw new SocketException("No multicast interface available.");
+    }
+
+    /**
+     * Ask the user whether to clear for a peer and clear if they agree.
+     * Must be called on the event dispatch thread.
+     *
+     * @param title The dialog title.
+     */
+    private void confirmClear(String title)
+    {
+        int dialogResult = JOptionPane.showConfirmDialog(frame, "Would you like to clear?", title,
+                                                         JOptionPane.YES_NO_OPTION);
+        if (dialogResult == JOptionPane.YES_OPTION)
+        {
+            int[] clear = {frame.getId(), Draw.CLEAR};
+            frame.offer(clear);
+            frame.clearAll();
+        }
+    }
+
+    /**
+     * Act on a single received op.
+     *
+     * @param data     The received op.
+     * @param sequence The op's sequence number.  0 if it has none.
+     * @throws InterruptedException If interrupted while waiting on a queue.
+     */
+    private void handle(int[] data, int sequence) throws InterruptedException
+    {
+        //Exclude messages that originated at this peer.
+        if (data[0] != frame.getId())
+        {
+            //Action based on int at data[1]
+            switch (data[1])
+            {
+                case Draw.CLEAR:
+                case Draw.DRAW:
+                case Draw.POLYLINE:
+                case Draw.TEXT:
+                case Draw.CIRCLE:
+                case Draw.IMAGE:
+                    if (frame.record(data, sequence))
+                    {
+                        //Images start on their way now rather than when draw gets to them.
+                        frame.getDraw().prefetch(data);
+                        frame.getDraw().put(data);
+                    }
+                    break;
+                case REQ_IP:
+                    //A joining peer may have restarted its sequence numbers.
+                    tracker.reset(data[0]);
+                    int key = data[0];
+                    String ip = String.format("%d.%d.%d.%d", data[2], data[3], data[4], data[5]);
+                    frame.getPeerCache().addPeer(new Triple<>(key, ip, data[6]));
+                    int size = frame.getPeerCache().getSize();
+                    frame.getPeerCount().setText(String.format("Peer count: %d", size));
+                    int[] myIp = frame.getMyIp();
+                    size = frame.getActionCache().getSize();
+                    int[] ipAns = {frame.getId(), ANS_IP, myIp[0], myIp[1], myIp[2], myIp[3], size};
+                    frame.getBroadcaster().put(ipAns);
+                    break;
+                case ANS_IP:
+                    /*
+                     * 0 = id
+                     * 1 = data type
+                     * 2,3,4,6 = IP
+                     */
+                    key = data[0];
+                    ip = String.format("%d.%d.%d.%d", data[2], data[3], data[4], data[5]);
+                    frame.getPeerCache().addPeer(new Triple<>(key, ip, data[6]));
+                    frame.getPeerCount().setText(
+                            String.format("Peer count: %d", frame.getPeerCache().getSize()));
+                    break;
+                case LEAVE_NOTE:
+                    tracker.reset(data[0]);
+                    ip = String.format("%d.%d.%d.%d", data[2], data[3], data[4], data[5]);
+                    frame.getPeerCache().removePeer(ip);
+                    frame.getPeerCount().setText(
+                            String.format("Peer count: %d", frame.getPeerCache().getSize()));
+                    break;
+                case CLEAR_REQ:
+                    //Asked on the event thread so reception carries on while the dialog is open.
+                    final String reqTitle = String.format("Peer %d has requested a clear.", data[0]);
+                    SwingUtilities.invokeLater(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            confirmClear(reqTitle);
+                        }
+                    });
+                    break;
+                case NACK:
+                    /*
+                     * 0 = id
+                     * 1 = data type
+                     * 2 = tarID
+                     * 3,4 = first and last missing sequence
+                     * 5,6,7,8 = IP
+                     */
+                    if (data[2] == frame.getId())
+                    {
+                        //Losses mean we are sending faster than someone can keep up with.
+                        frame.getBroadcaster().lossReported();
+                        repair(data);
+                    }
+                    break;
+                default:
+                    //Rogue packet protection.
+                    System.out.println("Received invalid packet.");
+                    System.out.println(Arrays.toString(data));
+            }
+        }
+    }
 }
@@ -8,14 +8,17 @@ package com.twizted.Network;
 
 import com.twizted.Display.Frame;
 
-import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.ObjectInput;
-import java.io.ObjectInputStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 
 /**
  * @author Ian Weeks 6204848
@@ -23,77 +26,101 @@ import java.net.SocketTimeoutException;
  *         UdpServer class.
  *         <p>
  *         Handles receipt of all direct udp packets.
+ *         <p>
+ *         The channel is opened once and read by the {@link UdpReceiver}
+ *         selector thread.  Repairs of lost multicast ops are sent and
+ *         received on it.
  */
-public class UdpServer implements Runnable
+class UdpServer implements Closeable
 {
-    private DatagramSocket datagramSocket;
-    private byte[] receiveData;
-    private int size;
+    private final int[] sequence = new int[1];
+    private DatagramChannel channel;
     private Frame frame;
+    private SequenceTracker tracker;
 
     /**
      * UdpServer constructor.
      *
-     * @param frame A reference to the parent frame.
-     * @param size  How many packets are expected.
-     * @throws SocketException If the socket could not be opened,
-     *                         or the socket could not bind to the specified local port.
+     * @param frame   A reference to the parent frame.
+     * @param tracker The receiver's sequence tracker.
+     * @throws IOException If the channel could not be opened,
+     *                     or the channel could not bind to the specified local port.
      */
-    public UdpServer(Frame frame, int size) throws SocketException
+    UdpServer(Frame frame, SequenceTracker tracker) throws IOException
     {
-        //Overkill on the array size but just in case...
-        int port = 55558, defaultByteSize = 1024;
+        int port = 55558;
         this.frame = frame;
-        datagramSocket = new DatagramSocket(port);
-        receiveData = new byte[defaultByteSize];
-        this.size = size;
+        this.tracker = tracker;
+        channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        channel.bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
     }
 
     /**
-     * When an object implementing interface <code>Runnable</code> is used
-     * to create a thread, starting the thread causes the object's
-     * <code>run</code> method to be called in that separately executing
-     * thread.
-     * <p>
-     * The general contract of the method <code>run</code> is that it may
-     * take any action whatsoever.
+     * Register this server's channel for reading.
      *
-     * @see Thread#run()
+     * @param selector The selector to register with.
+     * @throws ClosedChannelException If the channel has been closed.
      */
-    @Override
-    public void run()
+    void register(Selector selector) throws ClosedChannelException
+    {
+        channel.register(selector, SelectionKey.OP_READ);
+    }
+
+    /**
+     * Read every waiting datagram and pass the decoded ops to draw.
+     *
+     * @param buffer The buffer to receive into.
+     * @throws IOException          If the channel cannot be read.
+     * @throws InterruptedException If interrupted while waiting on the draw queue.
+     */
+    void receive(ByteBuffer buffer) throws IOException, InterruptedException
     {
-        try
+        buffer.clear();
+        while (channel.receive(buffer) != null)
         {
-            //For each expected packet...
-            for (int i = 0; i < size; i++)
+            buffer.flip();
+            try
             {
-                DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-                //Five second timeout.
-                datagramSocket.setSoTimeout(5000);
-                try
+                PacketCodec.readHeader(buffer);
+                while (buffer.hasRemaining())
                 {
-                    datagramSocket.receive(receivePacket);
-                    byte[] b = receivePacket.getData();
-
-                    ByteArrayInputStream bis = new ByteArrayInputStream(b);
-                    ObjectInput in = new ObjectInputStream(bis);
-
-                    int[] data = (int[]) in.readObject();
-
-                    frame.getDraw().put(data);
-                } catch (SocketTimeoutException ste)
-                {
-                    //No replies. Break and continue.
-                    System.out.println("No history received.");
-                    break;
+                    int[] data = PacketCodec.decode(buffer, sequence);
+                    //Repaired ops fill a gap, anything already seen is dropped.
+                    if (tracker.accept(data[0], sequence[0]) && frame.record(data, sequence[0]))
+                    {
+                        frame.getDraw().prefetch(data);
+                        frame.getDraw().put(data);
+                    }
                 }
+            } catch (BufferUnderflowException | IllegalArgumentException e)
+            {
+                System.out.println("Received invalid repair packet.");
             }
-            datagramSocket.close();
-            System.out.println("History receive complete");
-        } catch (IOException | ClassNotFoundException | InterruptedException e)
-        {
-            e.printStackTrace();
+            buffer.clear();
         }
     }
+
+    /**
+     * Send a datagram directly to a peer.
+     *
+     * @param buffer The packet to send.
+     * @param target The peer's history address.
+     * @throws IOException If the packet could not be sent.
+     */
+    void send(ByteBuffer buffer, SocketAddress target) throws IOException
+    {
+        channel.send(buffer, target);
+    }
+
+    /**
+     * Close the channel.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
 }
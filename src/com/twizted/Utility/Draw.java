@@ -5,12 +5,16 @@
  */
 package com.twizted.Utility;
 
+import com.twizted.Cache.ImageCache;
 import com.twizted.Display.Frame;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 /**
  * @author Ian Weeks 6204848
@@ -18,15 +22,37 @@ import java.util.concurrent.LinkedBlockingQueue;
  *         Draw class.
  *         <p>
  *         Handles all actual drawing to the main canvas.
+ *         <p>
+ *         Ops are drawn in batches, everything waiting at once, and the
+ *         canvas is shown at most once a frame.  The frame rate is set by
+ *         {@code whiteboard.fps} and defaults to 60.
  */
 public class Draw implements Runnable
 {
     public static final int DRAW = 0, CLEAR = 1, TEXT = 2, CIRCLE = 3, IMAGE = 4;
+    //Line segments joined end to end by a coalescing OpQueue.
+    //{id, POLYLINE, colour, thickness, x0, y0, x1, y1, ...}
+    public static final int POLYLINE = 13;
+    //Draws one tile of an image still on its way.  Only ever queued locally, never sent.
+    //{id, IMAGE_TILE, imageX, imageY, keyHigh, keyLow, tileX, tileY, tileWidth, tileHeight}
+    private static final int IMAGE_TILE = 12;
+    //Most ops drawn in a single frame, so a flood still shows progress.
+    private static final int MAX_BATCH = 4096;
+    //Characters that can be typed other than letters, digits and spaces.
+    private static final String PUNCTUATION = ",.?!'\"";
     private static int textOffset;
     private Frame frame;
-    private volatile BlockingQueue<int[]> queue;
+    private final OpQueue queue;
     private boolean runDraw;
+    private final long frameInterval;
+    private final RateMeter frames = new RateMeter();
+    private final RateMeter opsDrawn = new RateMeter();
+    private final RateMeter frameNanos = new RateMeter();
+    //Queues ops for fetched images and tiles.  One at a time so tiles stay ahead of their image.
+    private final Tasks.Group deliveries = Tasks.getInstance().newGroup("image delivery", 1);
     private int canvasWidth, canvasHeight;
+    //Images fetched from before the last clear are not drawn.
+    private volatile int clearCount;
     private static Draw instance;
 
     public static Draw getInstance(Frame frame, int canvasWidth, int canvasHeight)
@@ -47,10 +73,12 @@ public class Draw implements Runnable
      */
     private Draw(Frame frame, int canvasWidth, int canvasHeight)
     {
-        queue = new LinkedBlockingQueue<>();
+        queue = OpQueue.fromProperties("draw", 8192, OpQueue.Policy.COALESCE);
+        queue.attach(frame.getOpRing().newCursor());
         this.frame = frame;
         this.canvasWidth = canvasWidth;
         this.canvasHeight = canvasHeight;
+        frameInterval = TimeUnit.SECONDS.toNanos(1) / Integer.getInteger("whiteboard.fps", 60);
         runDraw = true;
     }
 
@@ -68,8 +96,7 @@ public class Draw implements Runnable
     @Override
     public void run()
     {
-        //String to test for punctuation.
-        String punctuation = ",.?!'\"";
+        List<int[]> batch = new ArrayList<>();
         while (runDraw)
         {
             try
@@ -78,91 +105,289 @@ public class Draw implements Runnable
                  * Draw data comes from a blocking queue.
                  *
                  * The draw object waits until a draw instruction
-                 * is available and then sorts and executes it.
+                 * is available, then takes everything else waiting
+                 * and draws the lot in one pass before showing it.
                  *
-                 * This queuing system is very efficient.  It
-                 * allows the program to carry out hundreds of
-                 * instructions per second.
+                 * Showing the buffer costs far more than drawing a
+                 * line, so a busy queue is drawn in a few big frames
+                 * rather than thousands of single op ones.
                  */
-                int[] data = queue.take();
-                if (frame.getSelectPanel().network() && !frame.getSelectPanel().isReplaying())
-                {
-                    frame.getActionCache().put(data);
-                    frame.getHistorySize().setText(String.format("History size: %d", frame.getActionCache().getSize()));
-                }
-                //System.out.println("after after block");
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+                long start = System.nanoTime();
                 Graphics2D g2d = (Graphics2D) frame.getBs().getDrawGraphics();
-
-                switch (data[1])
+                try
                 {
-                    case DRAW:
-                        Point from = new Point(data[2], data[3]);
-                        Point to = new Point(data[4], data[5]);
-                        g2d.setColor(new Color(data[6]));
-                        g2d.setStroke(new BasicStroke(data[7]));
-                        g2d.drawLine(from.x, from.y, to.x, to.y);
-                        break;
-                    case CLEAR:
-                        g2d.setColor(Frame.ERASE);
-                        g2d.fillRect(0, 0, canvasWidth, canvasHeight);
-                        break;
-                    case TEXT:
-                        Point start = new Point(data[2], data[3]);
-                        char c = (char) data[4];
-                        g2d.setColor(new Color(data[5]));
-                        //Font scaling.
-                        Font oldFont = g2d.getFont();
-                        Font newFont = oldFont.deriveFont(oldFont.getSize() * (float) (15 * data[6] / 10));
-                        g2d.setFont(newFont);
-
-                        if (Character.isLetter(c) || Character.isSpaceChar(c) || Character.isDigit(c) || punctuation
-                                .contains(String.valueOf(c)))
-                        {
-                            String s = String.valueOf(c);
-                            //Get the offset for the next character.
-                            int i = g2d.getFontMetrics().stringWidth(s);
-                            textOffset += i;
-                            g2d.drawString(s, start.x, start.y);
-                        }
-                        break;
-                    case CIRCLE:
-                        Point center = new Point(data[2], data[3]);
-                        g2d.setColor(new Color(data[5]));
-                        g2d.setStroke(new BasicStroke(data[6]));
-                        g2d.drawOval(center.x, center.y, data[4] * 2, data[4] * 2);
-                        break;
-                    case IMAGE:
-                        Point imageStart = new Point(data[2], data[3]);
-                        System.out.println("Before request");
-                        BufferedImage image = frame.getImageCache().get(data[4], data[8]);
-                        System.out.println("After request");
-                        g2d.drawImage(image, imageStart.x, imageStart.y, null);
-                        System.out.println("After draw");
-                        break;
-                    default:
-                        //Should never get here but error message just in case.
-                        System.err.println("Unrecognised draw command.");
+                    Font font = g2d.getFont();
+                    for (int[] data : batch)
+                    {
+                        render(g2d, data, font);
+                    }
+                } finally
+                {
+                    g2d.dispose();
                 }
-
-                g2d.dispose();
                 frame.getBs().show();
+                long end = System.nanoTime();
+                frames.record(1);
+                opsDrawn.record(batch.size());
+                frameNanos.record(end - start);
+                batch.clear();
+
+                //Wait for the next frame.  Ops arriving meanwhile are drawn together then.
+                TimeUnit.NANOSECONDS.sleep(start + frameInterval - end);
             } catch (InterruptedException e)
             {
+                batch.clear();
                 System.out.println("Error in draw.");
                 System.out.println(e.getMessage());
             }
         }
     }
 
+    /**
+     * Draw a single op.
+     *
+     * @param g2d  The graphics of the frame being drawn.
+     * @param data The op.
+     * @param font The graphics' font at the start of the frame.
+     */
+    private void render(Graphics2D g2d, int[] data, Font font)
+    {
+        switch (data[1])
+        {
+            case DRAW:
+                Point from = new Point(data[2], data[3]);
+                Point to = new Point(data[4], data[5]);
+                g2d.setColor(new Color(data[6]));
+                g2d.setStroke(new BasicStroke(data[7]));
+                g2d.drawLine(from.x, from.y, to.x, to.y);
+                break;
+            case POLYLINE:
+                g2d.setColor(new Color(data[2]));
+                g2d.setStroke(new BasicStroke(data[3]));
+                //Drawn a segment at a time so it looks the same as the separate segments.
+                for (int i = 6; i + 1 < data.length; i += 2)
+                {
+                    g2d.drawLine(data[i - 2], data[i - 1], data[i], data[i + 1]);
+                }
+                break;
+            case CLEAR:
+                clearCount++;
+                g2d.setColor(Frame.ERASE);
+                g2d.fillRect(0, 0, canvasWidth, canvasHeight);
+                break;
+            case TEXT:
+                Point start = new Point(data[2], data[3]);
+                char c = (char) data[4];
+                g2d.setColor(new Color(data[5]));
+                //Font scaling.  Always from the pass's own font so sizes don't build up over a frame.
+                g2d.setFont(font.deriveFont(font.getSize() * (float) (15 * data[6] / 10)));
+
+                if (Character.isLetter(c) || Character.isSpaceChar(c) || Character.isDigit(c) || PUNCTUATION
+                        .contains(String.valueOf(c)))
+                {
+                    String s = String.valueOf(c);
+                    //Get the offset for the next character.
+                    int i = g2d.getFontMetrics().stringWidth(s);
+                    textOffset += i;
+                    g2d.drawString(s, start.x, start.y);
+                }
+                break;
+            case CIRCLE:
+                Point center = new Point(data[2], data[3]);
+                g2d.setColor(new Color(data[5]));
+                g2d.setStroke(new BasicStroke(data[6]));
+                g2d.drawOval(center.x, center.y, data[4] * 2, data[4] * 2);
+                break;
+            case IMAGE:
+                Point imageStart = new Point(data[2], data[3]);
+                BufferedImage image = frame.getImageCache().getCached(imageKey(data));
+                if (image != null)
+                {
+                    g2d.drawImage(image, imageStart.x, imageStart.y, null);
+                } else
+                {
+                    //Carry on drawing and come back to this op once the image arrives.
+                    fetchImage(data);
+                }
+                break;
+            case IMAGE_TILE:
+                BufferedImage partial = frame.getImageCache().getPartial(imageKey(data));
+                if (partial == null)
+                {
+                    //Finished already, the whole image op follows.
+                    partial = frame.getImageCache().getCached(imageKey(data));
+                }
+                if (partial != null)
+                {
+                    int tileX = data[2] + data[6], tileY = data[3] + data[7];
+                    g2d.drawImage(partial, tileX, tileY, tileX + data[8], tileY + data[9],
+                                  data[6], data[7], data[6] + data[8], data[7] + data[9], null);
+                }
+                break;
+            default:
+                //Should never get here but error message just in case.
+                System.err.println("Unrecognised draw command.");
+        }
+    }
+
+    /**
+     * Fetch the image for an image op in the background and queue the
+     * op again once it has arrived.  Each tile is drawn as it arrives.
+     * The fetch may finish on this thread, so ops are queued from a task
+     * rather than by the callbacks.  This thread never waits on its own queue.
+     *
+     * @param data The image op.
+     */
+    private void fetchImage(final int[] data)
+    {
+        final int clearsBefore = clearCount;
+        String owner = imageOwner(data);
+        ImageCache.TileListener listener = new ImageCache.TileListener()
+        {
+            @Override
+            public void tileArrived(int x, int y, int width, int height)
+            {
+                deliver(new int[]{data[0], IMAGE_TILE, data[2], data[3], data[4], data[5], x, y, width, height},
+                        clearsBefore);
+            }
+        };
+        CompletableFuture<BufferedImage> fetch = frame.getImageCache().fetch(imageKey(data), owner, listener);
+        fetch.whenComplete(new BiConsumer<BufferedImage, Throwable>()
+        {
+            @Override
+            public void accept(BufferedImage image, Throwable error)
+            {
+                if (error != null)
+                {
+                    System.out.println("Image " + Long.toHexString(imageKey(data)) + " could not be drawn.");
+                    System.out.println(error.getMessage());
+                } else
+                {
+                    deliver(data, clearsBefore);
+                }
+            }
+        });
+    }
+
+    /**
+     * Queue an op for drawing from a delivery task, unless the canvas has
+     * been cleared since its image was asked for.
+     *
+     * @param data         The op.
+     * @param clearsBefore The clear count when the image was asked for.
+     */
+    private void deliver(final int[] data, final int clearsBefore)
+    {
+        deliveries.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (clearCount == clearsBefore)
+                {
+                    try
+                    {
+                        put(data);
+                    } catch (InterruptedException e)
+                    {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Start fetching the image for an image op while the op waits its turn
+     * in the queue, so the image is usually here by the time it is drawn.
+     * Returns straight away.  Anything else is ignored.
+     *
+     * @param data The op.
+     */
+    public void prefetch(int[] data)
+    {
+        if (data[1] == IMAGE)
+        {
+            frame.getImageCache().fetch(imageKey(data), imageOwner(data), null);
+        }
+    }
+
+    /**
+     * Get the address of the peer that dropped an image op's image.
+     *
+     * @param data The image op.
+     * @return The originator's ip address.
+     */
+    private static String imageOwner(int[] data)
+    {
+        return String.format("%d.%d.%d.%d", data[6], data[7], data[8], data[9]);
+    }
+
+    /**
+     * Get the content key of an image op's image.
+     * It is carried as two ints, the high half first.
+     *
+     * @param data The image op.
+     * @return The image's content key.
+     */
+    private static long imageKey(int[] data)
+    {
+        return ((long) data[4] << 32) | (data[5] & 0xFFFFFFFFL);
+    }
+
     /**
      * @param data Data array to be drawn.
      * @throws InterruptedException If the queue is interrupted while waiting.
      */
-    public synchronized void put(int[] data) throws InterruptedException
+    public void put(int[] data) throws InterruptedException
     {
         queue.put(data);
     }
 
+    /**
+     * Get the draw queue, for its depth and overflow counts.
+     *
+     * @return The draw queue.
+     */
+    public OpQueue getQueue()
+    {
+        return queue;
+    }
+
+    /**
+     * Get the number of frames shown in the last second.
+     *
+     * @return Frames per second.
+     */
+    public long getFramesPerSecond()
+    {
+        return frames.getRate();
+    }
+
+    /**
+     * Get the average number of ops drawn per frame over the last second.
+     *
+     * @return Ops per frame.
+     */
+    public double getOpsPerFrame()
+    {
+        long count = frames.getRate();
+        return count == 0 ? 0 : (double) opsDrawn.getRate() / count;
+    }
+
+    /**
+     * Get the average time taken to draw and show a frame over the last second.
+     *
+     * @return Frame time in milliseconds.
+     */
+    public double getFrameTime()
+    {
+        long count = frames.getRate();
+        return count == 0 ? 0 : frameNanos.getRate() / 1e6 / count;
+    }
+
     /**
      * Get the offset for the next char.
      *
@@ -17,6 +17,9 @@ import java.util.Random;
  *         DrawRobot class.
  *         <p>
  *         Sends random draw instructions to test the program.
+ *         <p>
+ *         The ops can also be made without a frame, such as to give a
+ *         benchmark a realistic history.
  */
 public class DrawRobot implements Runnable
 {
@@ -24,6 +27,8 @@ public class DrawRobot implements Runnable
     private boolean robotOn;
     private Frame frame;
     private Random random;
+    private int x, y, size = 1;
+    private Color color = Color.BLACK;
 
     /**
      * DrawRobot constructor.
@@ -32,9 +37,24 @@ public class DrawRobot implements Runnable
      */
     public DrawRobot(Frame frame)
     {
-        random = new Random();
-        this.frame = frame;
+        this(frame, new Random());
         robotOn = true;
+    }
+
+    /**
+     * DrawRobot constructor for making ops with {@link #nextOp} only.
+     *
+     * @param seed The seed for the random ops, so runs can be repeated.
+     */
+    public DrawRobot(long seed)
+    {
+        this(null, new Random(seed));
+    }
+
+    private DrawRobot(Frame frame, Random random)
+    {
+        this.random = random;
+        this.frame = frame;
         //Char string for random char drawing.
         chars = "abcdefghijklmnopqrstuvwxyz1234567890,.!?ABCDEFGHIJKLMNOPQRSTUVQXYZ";
     }
@@ -53,10 +73,7 @@ public class DrawRobot implements Runnable
     @Override
     public void run()
     {
-        float doText = 0.66f, doCircle = 0.33f;
         int second = 1000, tenthSecond = 100;
-        int x, y, size = 1;
-        Color color = Color.BLACK;
         x = random.nextInt(frame.getWidth());
         y = random.nextInt(frame.getCanvasHeight());
 
@@ -69,45 +86,14 @@ public class DrawRobot implements Runnable
                 if (frame.getSelectPanel().isRobot())
                 {
                     //If robot mode is selected.
-                    size = changeSize(size);
-                    color = changeColour(color);
-                    int[] data;
-
-                    //Selection of next robot action.
-                    double nextDouble = random.nextDouble();
-                    if (nextDouble > doText)
+                    int[] data = nextOp(frame.getId(), frame.getWidth(), frame.getCanvasHeight(),
+                                        frame.getDraw().getTextOffset());
+                    if (data[1] == Draw.TEXT)
                     {
-                        //Text: 33% chance.
-                        x += frame.getDraw().getTextOffset();
-                        char c = chars.charAt(random.nextInt(chars.length()));
-                        data = new int[]{frame.getId(), Draw.TEXT, x, y, (int) c, color.getRGB(), size};
-                        x = random.nextInt(frame.getWidth());
-                        y = random.nextInt(frame.getCanvasHeight());
                         frame.getDraw().resetTextOffset();
-
-                    } else if (nextDouble > doCircle)
-                    {
-                        //Circle 33% chance
-                        int radius = random.nextInt(15) + 5;
-                        x -= radius;
-                        y -= radius;
-                        data = new int[]{frame.getId(), Draw.CIRCLE, x, y, radius, color.getRGB(), size};
-                        x = random.nextInt(frame.getWidth());
-                        y = random.nextInt(frame.getCanvasHeight());
-                    } else
-                    {
-                        //Line 33% chance.
-                        int endY;
-                        int endX;
-                        endX = random.nextInt(frame.getWidth());
-                        endY = random.nextInt(frame.getCanvasHeight());
-                        data = new int[]{frame.getId(), Draw.DRAW, x, y, endX, endY, color.getRGB(), size};
-                        x = random.nextInt(frame.getWidth());
-                        y = random.nextInt(frame.getCanvasHeight());
                     }
 
-                    frame.getDraw().put(data);
-                    frame.getBroadcaster().put(data);
+                    frame.publish(data);
                     Thread.sleep(tenthSecond);
                 } else
                 {
@@ -121,6 +107,51 @@ public class DrawRobot implements Runnable
         }
     }
 
+    /**
+     * Make the robot's next random op.
+     *
+     * @param id         The id to give the op.
+     * @param width      The width of the canvas.
+     * @param height     The height of the canvas.
+     * @param textOffset How far along the current line of text is.
+     * @return The op.
+     */
+    public int[] nextOp(int id, int width, int height, int textOffset)
+    {
+        float doText = 0.66f, doCircle = 0.33f;
+        size = changeSize(size);
+        color = changeColour(color);
+        int[] data;
+
+        //Selection of next robot action.
+        double nextDouble = random.nextDouble();
+        if (nextDouble > doText)
+        {
+            //Text: 33% chance.
+            x += textOffset;
+            char c = chars.charAt(random.nextInt(chars.length()));
+            data = new int[]{id, Draw.TEXT, x, y, (int) c, color.getRGB(), size};
+        } else if (nextDouble > doCircle)
+        {
+            //Circle 33% chance
+            int radius = random.nextInt(15) + 5;
+            x -= radius;
+            y -= radius;
+            data = new int[]{id, Draw.CIRCLE, x, y, radius, color.getRGB(), size};
+        } else
+        {
+            //Line 33% chance.
+            int endY;
+            int endX;
+            endX = random.nextInt(width);
+            endY = random.nextInt(height);
+            data = new int[]{id, Draw.DRAW, x, y, endX, endY, color.getRGB(), size};
+        }
+        x = random.nextInt(width);
+        y = random.nextInt(height);
+        return data;
+    }
+
     private int changeSize(int currentSize)
     {
         //Chance line or text size based on small probability
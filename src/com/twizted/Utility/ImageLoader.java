@@ -0,0 +1,152 @@
+/**
+ * Peer to peer whiteboard
+ * Distributed computing.
+ * CMPSMC34
+ */
+
+package com.twizted.Utility;
+
+import com.twizted.Cache.ImageCache;
+import com.twizted.Display.Frame;
+import com.twizted.Network.ImageMulticaster;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+
+/**
+ * @author Ian Weeks 6204848
+ *         <p>
+ *         ImageLoader class.
+ *         <p>
+ *         Reads dropped image files in the background so a large photo
+ *         never holds up the event thread.  Several files dropped at once
+ *         are read side by side.
+ *         <p>
+ *         Images bigger than the canvas are read at a reduced size using
+ *         ImageIO subsampling, so only the pixels that can be seen are
+ *         ever decoded, held or sent.  The image op is drawn and sent
+ *         once the image is ready.
+ */
+public class ImageLoader
+{
+    private final Tasks.Group loads;
+    private Frame frame;
+    private ImageMulticaster imageMulticaster;
+
+    /**
+     * ImageLoader constructor.
+     *
+     * @param frame            A reference to the parent frame.
+     * @param imageMulticaster Where to send the image ops.
+     */
+    public ImageLoader(Frame frame, ImageMulticaster imageMulticaster)
+    {
+        this.frame = frame;
+        this.imageMulticaster = imageMulticaster;
+        loads = Tasks.getInstance().newGroup("image load", Math.min(4, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Read a dropped image file in the background and draw and send it
+     * centred on the drop point once it is ready.
+     *
+     * @param file  The dropped file.
+     * @param point The drop point on the canvas.
+     */
+    public void load(final File file, final Point point)
+    {
+        loads.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    long start = System.nanoTime();
+                    //Images are keyed by their content so the same image is only ever sent once.
+                    byte[] bytes = Files.readAllBytes(file.toPath());
+                    long key = ImageCache.hash(bytes);
+                    BufferedImage image = frame.getImageCache().get(key);
+                    if (image == null)
+                    {
+                        image = read(file, bytes, key);
+                        System.out.printf("Read %s at %dx%d in %d ms.\n", file.getName(), image.getWidth(),
+                                          image.getHeight(), (System.nanoTime() - start) / 1_000_000);
+                    }
+
+                    int x = point.x - image.getWidth() / 2;
+                    int y = point.y - image.getHeight() / 2;
+                    int[] ip = frame.getMyIp();
+                    int[] imageData = {frame.getId(), Draw.IMAGE, x, y, (int) (key >>> 32), (int) key, ip[0], ip[1],
+                                       ip[2], ip[3]};
+                    //Send the image to every peer at once before drawing it and telling them about it.
+                    imageMulticaster.put(imageData);
+                } catch (IOException | InterruptedException e)
+                {
+                    System.out.println("Error loading " + file.getName() + ".");
+                    System.out.println(e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Decode an image file no bigger than the canvas and add it to the cache.
+     *
+     * @param file  The image file.
+     * @param bytes The file's contents.
+     * @param key   The image key.
+     * @return The decoded image.
+     * @throws IOException If the file is not a readable image.
+     */
+    private BufferedImage read(File file, byte[] bytes, long key) throws IOException
+    {
+        try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes)))
+        {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext())
+            {
+                throw new IOException("No reader for " + file.getName());
+            }
+            ImageReader reader = readers.next();
+            try
+            {
+                reader.setInput(in, true, true);
+                int width = reader.getWidth(0), height = reader.getHeight(0);
+                //Read every step'th pixel in each direction so the image fits on the canvas.
+                int step = Math.max(ceilDiv(width, frame.getWidth()), ceilDiv(height, frame.getCanvasHeight()));
+                ImageReadParam param = reader.getDefaultReadParam();
+                if (step > 1)
+                {
+                    param.setSourceSubsampling(step, step, 0, 0);
+                }
+                BufferedImage image = reader.read(0, param);
+                if (step > 1)
+                {
+                    frame.getImageCache().putScaled(key, image, file);
+                } else
+                {
+                    frame.getImageCache().put(key, image, bytes, file);
+                }
+                return image;
+            } finally
+            {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static int ceilDiv(int value, int divisor)
+    {
+        return (value + divisor - 1) / divisor;
+    }
+}
@@ -0,0 +1,483 @@
+/**
+ * Peer to peer whiteboard
+ * Distributed computing.
+ * CMPSMC34
+ */
+
+package com.twizted.Utility;
+
+import com.twizted.Network.UdpReceiver;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @author Ian Weeks 6204848
+ *         <p>
+ *         OpQueue class.
+ *         <p>
+ *         A blocking queue of ops with two lanes.  Control ops such as
+ *         peer discovery and NACKs go in their own lane which is always
+ *         emptied first, so they never wait behind a backlog of drawing.
+ *         Ops keep their order within each lane.
+ *         <p>
+ *         The data lane holds at most a set number of ops so a consumer
+ *         that falls behind cannot use up memory or build up seconds of
+ *         delay.  What happens when it is full is set by its
+ *         {@link Policy}.  The control lane is never limited as it only
+ *         ever holds a handful of ops.
+ *         <p>
+ *         A cursor on the {@link OpRing} of local ops can be attached.  Its
+ *         ops are taken after control ops and before the data lane.  What
+ *         happens when the ring is full is up to the ring.
+ *         <p>
+ *         Ops are taken by a single consumer thread.  It is woken with
+ *         LockSupport.unpark rather than a condition so publishing to the
+ *         ring never takes the lock, as that is done on the event thread.
+ */
+public class OpQueue
+{
+    //Most points in a single coalesced line.  Keeps it well inside one datagram.
+    private static final int MAX_POINTS = 256;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final ArrayDeque<int[]> control = new ArrayDeque<>();
+    private final ArrayDeque<int[]> data = new ArrayDeque<>();
+    //Data ops taken and put back.  They go before the ring so local ops stay in order.
+    private final ArrayDeque<int[]> returned = new ArrayDeque<>();
+    private final int capacity;
+    private final Policy policy;
+    private int highWater;
+    private long dropped, coalesced;
+    private OpRing.Cursor ring;
+    //Set while the consumer waits so publishers know to wake it.
+    private volatile Thread waiter;
+
+    /**
+     * What to do with a new data op when the data lane is full.
+     */
+    public enum Policy
+    {
+        /**
+         * Wait for room.
+         */
+        BLOCK,
+        /**
+         * Throw away the oldest data op to make room.  Anything thrown
+         * away from the send queue is still on our own canvas but is
+         * never sent.
+         */
+        DROP_OLDEST,
+        /**
+         * Join line segments that carry straight on from the last queued
+         * segment of the same peer into a single polyline, whether full or
+         * not.  Waits for room if the op can't be joined.  Segments waiting
+         * in the ring are joined as they are taken.
+         */
+        COALESCE
+    }
+
+    /**
+     * OpQueue constructor.
+     *
+     * @param capacity Most ops held in the data lane.
+     * @param policy   What to do when the data lane is full.
+     */
+    public OpQueue(int capacity, Policy policy)
+    {
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /**
+     * Create a queue sized by system properties.  {@code whiteboard.<name>queue}
+     * sets the capacity and {@code whiteboard.<name>policy} the policy.
+     *
+     * @param name            The queue's name in the property.
+     * @param defaultCapacity The capacity if the property is not set.
+     * @param defaultPolicy   The policy if the property is not set.
+     * @return The queue.
+     */
+    public static OpQueue fromProperties(String name, int defaultCapacity, Policy defaultPolicy)
+    {
+        int capacity = Integer.getInteger("whiteboard." + name + "queue", defaultCapacity);
+        String policy = System.getProperty("whiteboard." + name + "policy", defaultPolicy.name());
+        return new OpQueue(capacity, Policy.valueOf(policy.toUpperCase()));
+    }
+
+    /**
+     * Take ops from a cursor on the ring of local ops as well as from this queue.
+     * Must be called before the consumer starts.
+     *
+     * @param cursor The consumer's cursor.
+     */
+    public void attach(OpRing.Cursor cursor)
+    {
+        ring = cursor;
+        cursor.setListener(new OpRing.Listener()
+        {
+            @Override
+            public void published()
+            {
+                wake();
+            }
+        });
+    }
+
+    /**
+     * Check if an op belongs in the control lane.
+     *
+     * @param op The op.
+     * @return True for control ops.
+     */
+    public static boolean isControl(int[] op)
+    {
+        switch (op[1])
+        {
+            case UdpReceiver.REQ_IP:
+            case UdpReceiver.ANS_IP:
+            case UdpReceiver.LEAVE_NOTE:
+            case UdpReceiver.CLEAR_REQ:
+            case UdpReceiver.NACK:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Add an op to the back of its lane, dealing with a full data lane as
+     * set by the policy.
+     *
+     * @param op The op.
+     * @throws InterruptedException If interrupted while waiting for room.
+     */
+    public void put(int[] op) throws InterruptedException
+    {
+        lock.lockInterruptibly();
+        try
+        {
+            if (isControl(op))
+            {
+                control.addLast(op);
+            } else
+            {
+                int[] joined = policy == Policy.COALESCE ? join(data.peekLast(), op) : null;
+                if (joined != null)
+                {
+                    data.pollLast();
+                    data.addLast(joined);
+                    coalesced++;
+                    return;
+                }
+                while (data.size() >= capacity)
+                {
+                    if (policy == Policy.DROP_OLDEST)
+                    {
+                        data.pollFirst();
+                        dropped++;
+                    } else
+                    {
+                        notFull.await();
+                    }
+                }
+                data.addLast(op);
+            }
+            highWater = Math.max(highWater, control.size() + data.size() + (ring == null ? 0 : ring.backlog()));
+            wake();
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Join a line segment onto an op if it carries straight on from it.
+     *
+     * @param tail The op to join onto.  May be null.
+     * @param op   The following op.
+     * @return The joined polyline, or null if they can't be joined.
+     */
+    static int[] join(int[] tail, int[] op)
+    {
+        if (tail == null || op[1] != Draw.DRAW || tail[0] != op[0])
+        {
+            return null;
+        }
+        int[] joined;
+        if (tail[1] == Draw.DRAW && tail[6] == op[6] && tail[7] == op[7] && tail[4] == op[2] && tail[5] == op[3])
+        {
+            joined = new int[]{tail[0], Draw.POLYLINE, tail[6], tail[7], tail[2], tail[3], tail[4], tail[5], op[4],
+                               op[5]};
+        } else if (tail[1] == Draw.POLYLINE && tail[2] == op[6] && tail[3] == op[7] && tail[tail.length - 2] == op[2]
+                   && tail[tail.length - 1] == op[3] && (tail.length - 4) / 2 < MAX_POINTS)
+        {
+            joined = Arrays.copyOf(tail, tail.length + 2);
+            joined[tail.length] = op[4];
+            joined[tail.length + 1] = op[5];
+        } else
+        {
+            return null;
+        }
+        return joined;
+    }
+
+    /**
+     * Put an op just taken back at the front of its lane.  It is never
+     * dropped or waited on even if the lane has filled up since.
+     *
+     * @param op The op.
+     */
+    public void putFirst(int[] op)
+    {
+        lock.lock();
+        try
+        {
+            (isControl(op) ? control : returned).addFirst(op);
+            wake();
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take the next op, waiting for one if the queue is empty.
+     *
+     * @return The first control op, or the first data op if there are none.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public int[] take() throws InterruptedException
+    {
+        lock.lockInterruptibly();
+        try
+        {
+            int[] op;
+            while ((op = next()) == null)
+            {
+                waiter = Thread.currentThread();
+                //Look again now publishers can see we are waiting, or their wake up could be missed.
+                if ((op = next()) != null)
+                {
+                    break;
+                }
+                park(0);
+            }
+            return op;
+        } finally
+        {
+            waiter = null;
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take the next op, waiting up to the timeout for one if the queue is empty.
+     *
+     * @param timeout How long to wait.
+     * @param unit    The unit of the timeout.
+     * @return The first control op, the first data op if there are none,
+     * or null if the timeout passed first.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public int[] poll(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        long nanos = unit.toNanos(timeout), deadline = System.nanoTime() + nanos;
+        lock.lockInterruptibly();
+        try
+        {
+            int[] op;
+            while ((op = next()) == null)
+            {
+                waiter = Thread.currentThread();
+                if ((op = next()) != null || nanos <= 0)
+                {
+                    break;
+                }
+                park(nanos);
+                nanos = deadline - System.nanoTime();
+            }
+            return op;
+        } finally
+        {
+            waiter = null;
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Let go of the lock and sleep until woken by a publisher.  May wake
+     * early, so callers look again and park again if need be.
+     *
+     * @param nanos Most time to sleep.  0 to sleep until woken.
+     * @throws InterruptedException If interrupted while asleep.
+     */
+    private void park(long nanos) throws InterruptedException
+    {
+        lock.unlock();
+        try
+        {
+            if (nanos > 0)
+            {
+                LockSupport.parkNanos(this, nanos);
+            } else
+            {
+                LockSupport.park(this);
+            }
+        } finally
+        {
+            lock.lock();
+        }
+        if (Thread.interrupted())
+        {
+            throw new InterruptedException();
+        }
+    }
+
+    /**
+     * Wake the consumer if it is waiting.  Never blocks.
+     */
+    private void wake()
+    {
+        Thread consumer = waiter;
+        if (consumer != null)
+        {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Take every op waiting, up to a limit, without waiting for more.
+     *
+     * @param ops Where to add the ops, in the order they would be taken.
+     * @param max Most ops to take.
+     * @return The number of ops taken.
+     */
+    public int drainTo(List<int[]> ops, int max)
+    {
+        lock.lock();
+        try
+        {
+            int taken = 0;
+            int[] op;
+            while (taken < max && (op = next()) != null)
+            {
+                ops.add(op);
+                taken++;
+            }
+            return taken;
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take the next op in lane order.
+     *
+     * @return The op or null if there is none.
+     */
+    private int[] next()
+    {
+        if (!control.isEmpty())
+        {
+            return control.pollFirst();
+        }
+        if (!returned.isEmpty())
+        {
+            return returned.pollFirst();
+        }
+        int[] op = ring == null ? null : ring.poll();
+        if (op != null)
+        {
+            highWater = Math.max(highWater, control.size() + data.size() + ring.backlog() + 1);
+            int[] joined;
+            while (policy == Policy.COALESCE && ring.peek() != null && (joined = join(op, ring.peek())) != null)
+            {
+                op = joined;
+                ring.poll();
+                coalesced++;
+            }
+            return op;
+        }
+        if (data.isEmpty())
+        {
+            return null;
+        }
+        notFull.signal();
+        return data.pollFirst();
+    }
+
+    /**
+     * Get the number of ops waiting.
+     *
+     * @return Ops waiting in both lanes and the ring.
+     */
+    public int size()
+    {
+        lock.lock();
+        try
+        {
+            return control.size() + returned.size() + data.size() + (ring == null ? 0 : ring.backlog());
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the most ops that have been waiting at once.
+     *
+     * @return The high-water mark.
+     */
+    public int getHighWater()
+    {
+        lock.lock();
+        try
+        {
+            return highWater;
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of ops thrown away because the queue was full.
+     *
+     * @return Ops dropped.
+     */
+    public long getDropped()
+    {
+        lock.lock();
+        try
+        {
+            return dropped;
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of line segments joined onto a queued line.
+     *
+     * @return Segments coalesced.
+     */
+    public long getCoalesced()
+    {
+        lock.lock();
+        try
+        {
+            return coalesced;
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+}
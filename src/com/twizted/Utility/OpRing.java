@@ -0,0 +1,421 @@
+/**
+ * Peer to peer whiteboard
+ * Distributed computing.
+ * CMPSMC34
+ */
+
+package com.twizted.Utility;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @author Ian Weeks 6204848
+ *         <p>
+ *         OpRing class.
+ *         <p>
+ *         A fixed size ring of ops that local input is published to once
+ *         and that several consumers each read all of, in the style of a
+ *         Disruptor.  Every consumer has its own {@link Cursor} so they
+ *         never hold each other up, and nothing is locked or allocated
+ *         when an op is published or read while the ring has room.
+ *         <p>
+ *         Publishers claim the next slot with a single atomic increment
+ *         and mark it published once the op is in it.  {@link #publish}
+ *         waits for the slowest cursor to catch up if it would lap it, and
+ *         is for worker threads such as the draw robot.
+ *         <p>
+ *         {@link #offer} never waits, so it is safe on the event dispatch
+ *         thread.  When the ring is full the op goes in an overflow of at
+ *         most {@code whiteboard.localqueue} ops, and every later offer
+ *         follows it there until the cursors have made room, so ops keep
+ *         their order.  A full overflow is dealt with by the
+ *         {@code whiteboard.localpolicy} {@link OpQueue.Policy}, except
+ *         that nothing waits: DROP_OLDEST and COALESCE throw away the
+ *         oldest overflowed op, after COALESCE has tried joining, and
+ *         BLOCK turns the new op away instead.  Anything thrown away is
+ *         neither drawn nor sent.
+ */
+public class OpRing
+{
+    private final int[][] slots;
+    private final int mask;
+    //The sequence number of the op in each slot once it is published.
+    private final AtomicLongArray published;
+    private final AtomicLong next = new AtomicLong();
+    private final List<Cursor> cursors = new CopyOnWriteArrayList<>();
+    private final ReentrantLock overflowLock = new ReentrantLock();
+    private final ArrayDeque<int[]> overflow = new ArrayDeque<>();
+    private final int capacity;
+    private final OpQueue.Policy policy;
+    private long overflowed, dropped, coalesced;
+    //Set while ops are waiting in the overflow so offers queue behind them.
+    private volatile boolean overflowing;
+    //Set by a cursor that made room while another thread held the overflow.
+    private volatile boolean drainWanted;
+
+    /**
+     * OpRing constructor.
+     *
+     * @param size     The number of slots.  Must be a power of two.
+     * @param capacity Most ops held in the overflow.
+     * @param policy   What to do when the overflow is full.
+     */
+    public OpRing(int size, int capacity, OpQueue.Policy policy)
+    {
+        this.capacity = capacity;
+        this.policy = policy;
+        if (Integer.bitCount(size) != 1)
+        {
+            throw new IllegalArgumentException("Ring size must be a power of two");
+        }
+        slots = new int[size][];
+        mask = size - 1;
+        published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+        {
+            published.set(i, -1);
+        }
+    }
+
+    /**
+     * Create a ring with its overflow set by system properties.
+     * {@code whiteboard.localqueue} sets the overflow's capacity and
+     * {@code whiteboard.localpolicy} its policy.
+     *
+     * @param size The number of slots.  Must be a power of two.
+     * @return The ring.
+     */
+    public static OpRing fromProperties(int size)
+    {
+        int capacity = Integer.getInteger("whiteboard.localqueue", size);
+        String policy = System.getProperty("whiteboard.localpolicy", OpQueue.Policy.COALESCE.name());
+        return new OpRing(size, capacity, OpQueue.Policy.valueOf(policy.toUpperCase()));
+    }
+
+    /**
+     * Publish an op to every cursor.
+     *
+     * @param op The op.
+     * @throws InterruptedException If interrupted while waiting for a slow cursor.
+     */
+    public void publish(int[] op) throws InterruptedException
+    {
+        long sequence = next.getAndIncrement();
+        //Wait until every cursor has read the op last held in this slot.
+        while (sequence - slots.length >= slowest())
+        {
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+            if (Thread.interrupted())
+            {
+                throw new InterruptedException();
+            }
+        }
+        store(sequence, op);
+    }
+
+    /**
+     * Publish an op to every cursor without waiting.  If the ring is full
+     * the op is overflowed and published once the cursors make room.
+     *
+     * @param op The op.
+     * @return False if the op was turned away.
+     */
+    public boolean offer(int[] op)
+    {
+        if (!overflowing && tryPublish(op))
+        {
+            return true;
+        }
+        boolean accepted;
+        overflowLock.lock();
+        try
+        {
+            //Anything already waiting goes first.
+            drainOverflow();
+            accepted = (overflow.isEmpty() && tryPublish(op)) || addOverflow(op);
+        } finally
+        {
+            overflowLock.unlock();
+        }
+        drain();
+        return accepted;
+    }
+
+    /**
+     * Publish an op if there is a free slot.
+     *
+     * @param op The op.
+     * @return True if published.
+     */
+    private boolean tryPublish(int[] op)
+    {
+        while (true)
+        {
+            long sequence = next.get();
+            if (sequence - slots.length >= slowest())
+            {
+                return false;
+            }
+            if (next.compareAndSet(sequence, sequence + 1))
+            {
+                store(sequence, op);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Add an op to the overflow as set by the policy.  The overflow lock must be held.
+     *
+     * @param op The op.
+     * @return False if the op was turned away.
+     */
+    private boolean addOverflow(int[] op)
+    {
+        overflowing = true;
+        overflowed++;
+        int[] joined = policy == OpQueue.Policy.COALESCE ? OpQueue.join(overflow.peekLast(), op) : null;
+        if (joined != null)
+        {
+            overflow.pollLast();
+            overflow.addLast(joined);
+            coalesced++;
+            return true;
+        }
+        if (overflow.size() >= capacity)
+        {
+            dropped++;
+            if (policy == OpQueue.Policy.BLOCK)
+            {
+                return false;
+            }
+            overflow.pollFirst();
+        }
+        overflow.addLast(op);
+        return true;
+    }
+
+    /**
+     * Publish overflowed ops while there is room.  The overflow lock must be held.
+     */
+    private void drainOverflow()
+    {
+        drainWanted = false;
+        while (!overflow.isEmpty() && tryPublish(overflow.peekFirst()))
+        {
+            overflow.pollFirst();
+        }
+        overflowing = !overflow.isEmpty();
+    }
+
+    /**
+     * Publish overflowed ops while there is room, unless another thread
+     * holds the overflow.  It is then left a note to try again, so a
+     * cursor never waits on a publisher and room is never missed.
+     */
+    private void drain()
+    {
+        while (drainWanted && overflowLock.tryLock())
+        {
+            try
+            {
+                drainOverflow();
+            } finally
+            {
+                overflowLock.unlock();
+            }
+        }
+    }
+
+    private void store(long sequence, int[] op)
+    {
+        int slot = (int) sequence & mask;
+        slots[slot] = op;
+        published.set(slot, sequence);
+        for (Cursor cursor : cursors)
+        {
+            Listener listener = cursor.listener;
+            if (listener != null)
+            {
+                listener.published();
+            }
+        }
+    }
+
+    private long slowest()
+    {
+        long slowest = Long.MAX_VALUE;
+        for (Cursor cursor : cursors)
+        {
+            slowest = Math.min(slowest, cursor.sequence);
+        }
+        return slowest;
+    }
+
+    /**
+     * Get the number of ops waiting in the overflow.
+     *
+     * @return Overflowed ops not yet published.
+     */
+    public int getOverflowSize()
+    {
+        overflowLock.lock();
+        try
+        {
+            return overflow.size();
+        } finally
+        {
+            overflowLock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of ops offered while the ring was full.
+     *
+     * @return Ops overflowed.
+     */
+    public long getOverflowed()
+    {
+        overflowLock.lock();
+        try
+        {
+            return overflowed;
+        } finally
+        {
+            overflowLock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of ops thrown away or turned away by the overflow.
+     *
+     * @return Ops dropped.
+     */
+    public long getDropped()
+    {
+        overflowLock.lock();
+        try
+        {
+            return dropped;
+        } finally
+        {
+            overflowLock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of overflowed line segments joined into polylines.
+     *
+     * @return Ops coalesced.
+     */
+    public long getCoalesced()
+    {
+        overflowLock.lock();
+        try
+        {
+            return coalesced;
+        } finally
+        {
+            overflowLock.unlock();
+        }
+    }
+
+    /**
+     * Add a consumer.  It reads everything published from now on.
+     *
+     * @return The new consumer's cursor.
+     */
+    public Cursor newCursor()
+    {
+        Cursor cursor = new Cursor(next.get());
+        cursors.add(cursor);
+        return cursor;
+    }
+
+    /**
+     * Told when an op has been published.  Called on the publisher's thread
+     * so it must return quickly.
+     */
+    public interface Listener
+    {
+        /**
+         * Called after each op is published.
+         */
+        void published();
+    }
+
+    /**
+     * A single consumer's place in the ring.  Only one thread may read
+     * from a cursor.
+     */
+    public class Cursor
+    {
+        //The sequence number of the next op to read.
+        private volatile long sequence;
+        private volatile Listener listener;
+
+        private Cursor(long sequence)
+        {
+            this.sequence = sequence;
+        }
+
+        /**
+         * Get the next op without moving on.
+         *
+         * @return The next op, or null if it has not been published yet.
+         */
+        public int[] peek()
+        {
+            int slot = (int) sequence & mask;
+            return published.get(slot) == sequence ? slots[slot] : null;
+        }
+
+        /**
+         * Read the next op and move on.
+         *
+         * @return The next op, or null if it has not been published yet.
+         */
+        public int[] poll()
+        {
+            int[] op = peek();
+            if (op != null)
+            {
+                sequence++;
+                if (overflowing)
+                {
+                    //This may have been the slot the overflow is waiting for.
+                    drainWanted = true;
+                    drain();
+                }
+            }
+            return op;
+        }
+
+        /**
+         * Get the number of ops claimed by publishers and not yet read.
+         *
+         * @return Ops waiting for this cursor.
+         */
+        public int backlog()
+        {
+            return (int) Math.max(0, next.get() - sequence);
+        }
+
+        /**
+         * Set who is told when ops are published.
+         *
+         * @param listener The listener.
+         */
+        public void setListener(Listener listener)
+        {
+            this.listener = listener;
+        }
+    }
+}
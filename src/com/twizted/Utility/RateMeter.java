@@ -0,0 +1,81 @@
+/**
+ * Peer to peer whiteboard
+ * Distributed computing.
+ * CMPSMC34
+ */
+
+package com.twizted.Utility;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Ian Weeks 6204848
+ *         <p>
+ *         RateMeter class.
+ *         <p>
+ *         Keeps a running total of some quantity and the rate
+ *         it was recorded at over the last whole second.
+ */
+public class RateMeter
+{
+    private static final long WINDOW = TimeUnit.SECONDS.toNanos(1);
+    private final AtomicLong total;
+    private final AtomicLong windowCount;
+    private volatile long windowStart;
+    private volatile long rate;
+
+    /**
+     * Default constructor.
+     */
+    public RateMeter()
+    {
+        total = new AtomicLong();
+        windowCount = new AtomicLong();
+        windowStart = System.nanoTime();
+    }
+
+    /**
+     * Record an amount.
+     *
+     * @param amount The amount to be added.
+     */
+    public void record(long amount)
+    {
+        total.addAndGet(amount);
+        windowCount.addAndGet(amount);
+        long now = System.nanoTime();
+        long elapsed = now - windowStart;
+        if (elapsed >= WINDOW)
+        {
+            //Roll the window over.  Losing the odd count to a race here is harmless.
+            rate = windowCount.getAndSet(0) * WINDOW / elapsed;
+            windowStart = now;
+        }
+    }
+
+    /**
+     * Get the total amount recorded.
+     *
+     * @return The total amount recorded.
+     */
+    public long getTotal()
+    {
+        return total.get();
+    }
+
+    /**
+     * Get the amount recorded per second.
+     *
+     * @return The amount recorded per second over the last full window.
+     */
+    public long getRate()
+    {
+        //Nothing recorded for a while so the last rate is stale.
+        if (System.nanoTime() - windowStart > 2 * WINDOW)
+        {
+            return 0;
+        }
+        return rate;
+    }
+}
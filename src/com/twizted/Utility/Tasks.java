@@ -0,0 +1,394 @@
+/**
+ * Peer to peer whiteboard
+ * Distributed computing.
+ * CMPSMC34
+ */
+
+package com.twizted.Utility;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Ian Weeks 6204848
+ *         <p>
+ *         Tasks class.
+ *         <p>
+ *         Runs every short lived task in the program, such as serving
+ *         history or an image, fetching an image or reading a dropped file.
+ *         Tasks run on virtual threads when the JDK has them and on a
+ *         bounded pool of daemon threads otherwise.  Setting
+ *         {@code whiteboard.virtualthreads} to false forces the pool and
+ *         {@code whiteboard.taskthreads} sets its size.
+ *         <p>
+ *         Tasks are submitted to a named {@link Group} which runs at most
+ *         a set number of them at once and queues the rest, so a flood of
+ *         requests can't start an unbounded number of threads.  The queue
+ *         is bounded too.  A task submitted to a full queue is rejected so
+ *         a server can close the connection rather than hold it.  Each
+ *         group counts its running, queued and rejected tasks.
+ *         <p>
+ *         The long running loops such as draw and broadcast are started
+ *         as named services on threads of their own.  They are kept so
+ *         they can be shown alongside the groups.
+ */
+public class Tasks
+{
+    private static Tasks instance;
+    //Most tasks a group queues unless it is given its own limit.
+    private static final int MAX_QUEUED = 1024;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService timer;
+    private final boolean virtual;
+    private final List<Group> groups = new CopyOnWriteArrayList<>();
+    private final List<Thread> services = new CopyOnWriteArrayList<>();
+
+    /**
+     * Get the single instance of Tasks.
+     *
+     * @return The Tasks instance.
+     */
+    public static synchronized Tasks getInstance()
+    {
+        if (instance == null)
+        {
+            instance = new Tasks();
+        }
+        return instance;
+    }
+
+    /**
+     * Tasks constructor.
+     */
+    private Tasks()
+    {
+        ExecutorService virtualExecutor = null;
+        if (Boolean.parseBoolean(System.getProperty("whiteboard.virtualthreads", "true")))
+        {
+            try
+            {
+                //Looked up by name so the program still builds and runs on older JDKs.
+                Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                virtualExecutor = (ExecutorService) method.invoke(null);
+            } catch (ReflectiveOperationException e)
+            {
+                System.out.println("Virtual threads not available.  Using a thread pool.");
+            }
+        }
+        virtual = virtualExecutor != null;
+        if (virtual)
+        {
+            executor = virtualExecutor;
+        } else
+        {
+            int threads = Integer.getInteger("whiteboard.taskthreads", 32);
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                                                             new LinkedBlockingQueue<Runnable>(),
+                                                             daemonFactory("task"));
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+        }
+        //Only ever hands tasks to their group so one thread is plenty.
+        timer = Executors.newSingleThreadScheduledExecutor(daemonFactory("timer"));
+    }
+
+    private static ThreadFactory daemonFactory(final String name)
+    {
+        return new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Create a group of tasks that queues up to the default number of tasks.
+     *
+     * @param name  The group's name in reports.
+     * @param limit Most tasks the group runs at once.
+     * @return The new group.
+     */
+    public Group newGroup(String name, int limit)
+    {
+        return newGroup(name, limit, MAX_QUEUED);
+    }
+
+    /**
+     * Create a group of tasks.
+     *
+     * @param name      The group's name in reports.
+     * @param limit     Most tasks the group runs at once.
+     * @param maxQueued Most tasks the group holds waiting for room.
+     * @return The new group.
+     */
+    public Group newGroup(String name, int limit, int maxQueued)
+    {
+        Group group = new Group(name, limit, maxQueued);
+        groups.add(group);
+        return group;
+    }
+
+    /**
+     * Start a long running loop on a thread of its own.
+     *
+     * @param name     The thread's name.
+     * @param runnable The loop.
+     * @return The started thread.
+     */
+    public Thread startService(String name, Runnable runnable)
+    {
+        Thread thread = new Thread(runnable, name);
+        services.add(thread);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Get every group created so far.
+     *
+     * @return The groups.
+     */
+    public List<Group> getGroups()
+    {
+        return groups;
+    }
+
+    /**
+     * Get every service started so far, including any that have ended.
+     *
+     * @return The service threads.
+     */
+    public List<Thread> getServices()
+    {
+        return services;
+    }
+
+    /**
+     * Get the number of tasks running in every group.
+     *
+     * @return Running tasks.
+     */
+    public int getActive()
+    {
+        int active = 0;
+        for (Group group : groups)
+        {
+            active += group.getActive();
+        }
+        return active;
+    }
+
+    /**
+     * Get the number of tasks waiting to run in every group.
+     *
+     * @return Queued tasks.
+     */
+    public int getQueued()
+    {
+        int queued = 0;
+        for (Group group : groups)
+        {
+            queued += group.getQueued();
+        }
+        return queued;
+    }
+
+    /**
+     * Check if tasks run on virtual threads.
+     *
+     * @return True for virtual threads, false for the thread pool.
+     */
+    public boolean isVirtual()
+    {
+        return virtual;
+    }
+
+    /**
+     * A named set of tasks that run at most a set number at once.  Tasks
+     * start in the order they were submitted.
+     */
+    public class Group implements Executor
+    {
+        private final String name;
+        private final int limit, maxQueued;
+        private final Semaphore permits;
+        private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger active = new AtomicInteger(), queued = new AtomicInteger();
+        private final AtomicLong rejected = new AtomicLong();
+
+        private Group(String name, int limit, int maxQueued)
+        {
+            this.name = name;
+            this.limit = limit;
+            this.maxQueued = maxQueued;
+            permits = new Semaphore(limit);
+        }
+
+        /**
+         * Run a task once the group has room for it.
+         *
+         * @param task The task.
+         * @throws RejectedExecutionException If the group's queue is full.
+         */
+        @Override
+        public void execute(Runnable task)
+        {
+            //Counted before it is added so the queue can never go over its limit.
+            if (queued.incrementAndGet() > maxQueued)
+            {
+                queued.decrementAndGet();
+                rejected.incrementAndGet();
+                throw new RejectedExecutionException("The " + name + " queue is full.");
+            }
+            waiting.add(task);
+            dispatch();
+        }
+
+        /**
+         * Run a task after a delay, once the group has room for it.
+         *
+         * @param task  The task.
+         * @param delay How long to wait.
+         * @param unit  The unit of the delay.
+         */
+        public void schedule(final Runnable task, long delay, TimeUnit unit)
+        {
+            timer.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        execute(task);
+                    } catch (RejectedExecutionException e)
+                    {
+                        System.out.println(e.getMessage());
+                    }
+                }
+            }, delay, unit);
+        }
+
+        /**
+         * Start as many waiting tasks as there are free permits.  Called
+         * again by each task as it ends, so a task queued while every
+         * permit was held is never left behind.
+         */
+        private void dispatch()
+        {
+            while (!waiting.isEmpty() && permits.tryAcquire())
+            {
+                final Runnable task = waiting.poll();
+                if (task == null)
+                {
+                    permits.release();
+                    continue;
+                }
+                queued.decrementAndGet();
+                active.incrementAndGet();
+                executor.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            task.run();
+                        } catch (RuntimeException e)
+                        {
+                            System.out.println("Error in " + name + " task.");
+                            System.out.println(e.getMessage());
+                        } finally
+                        {
+                            active.decrementAndGet();
+                            permits.release();
+                            dispatch();
+                        }
+                    }
+                });
+            }
+        }
+
+        /**
+         * Get the group's name.
+         *
+         * @return The name.
+         */
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * Get the most tasks the group runs at once.
+         *
+         * @return The limit.
+         */
+        public int getLimit()
+        {
+            return limit;
+        }
+
+        /**
+         * Get the number of tasks running.
+         *
+         * @return Running tasks.
+         */
+        public int getActive()
+        {
+            return active.get();
+        }
+
+        /**
+         * Get the number of tasks waiting for room.
+         *
+         * @return Queued tasks.
+         */
+        public int getQueued()
+        {
+            return queued.get();
+        }
+
+        /**
+         * Get the most tasks the group holds waiting for room.
+         *
+         * @return The queue limit.
+         */
+        public int getMaxQueued()
+        {
+            return maxQueued;
+        }
+
+        /**
+         * Get the number of tasks turned away because the queue was full.
+         *
+         * @return Rejected tasks.
+         */
+        public long getRejected()
+        {
+            return rejected.get();
+        }
+    }
+}
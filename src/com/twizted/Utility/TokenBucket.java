@@ -0,0 +1,88 @@
+/**
+ * Peer to peer whiteboard
+ * Distributed computing.
+ * CMPSMC34
+ */
+
+package com.twizted.Utility;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Ian Weeks 6204848
+ *         <p>
+ *         TokenBucket class.
+ *         <p>
+ *         Limits how fast something is sent.  Tokens build up at the
+ *         set rate to at most a burst's worth and each send spends as many
+ *         as it sends, waiting for them if there are not enough.
+ *         <p>
+ *         Only one thread may take tokens.  The rate may be changed from
+ *         any thread.
+ */
+public class TokenBucket
+{
+    private final long burst;
+    private volatile long rate;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * TokenBucket constructor.  Starts full.
+     *
+     * @param rate  Tokens added per second.
+     * @param burst Most tokens that can build up.
+     */
+    public TokenBucket(long rate, long burst)
+    {
+        this.rate = rate;
+        this.burst = burst;
+        tokens = burst;
+        lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Take tokens, waiting until there are enough.
+     *
+     * @param amount The number of tokens to take.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void take(int amount) throws InterruptedException
+    {
+        refill();
+        if (tokens < amount)
+        {
+            TimeUnit.NANOSECONDS.sleep((long) ((amount - tokens) * TimeUnit.SECONDS.toNanos(1) / rate));
+            refill();
+        }
+        //May go a little negative if woken early.  The debt is paid off by the next send.
+        tokens -= amount;
+    }
+
+    private void refill()
+    {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (double) (now - lastRefill) * rate / TimeUnit.SECONDS.toNanos(1));
+        lastRefill = now;
+    }
+
+    /**
+     * Set the rate tokens are added at.
+     *
+     * @param rate Tokens added per second.
+     */
+    public void setRate(long rate)
+    {
+        this.rate = rate;
+    }
+
+    /**
+     * Get the rate tokens are added at.
+     *
+     * @return Tokens added per second.
+     */
+    public long getRate()
+    {
+        return rate;
+    }
+}
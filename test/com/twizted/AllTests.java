@@ -0,0 +1,60 @@
+/**
+ * Peer to peer whiteboard
+ * Distributed computing.
+ * CMPSMC34
+ */
+
+package com.twizted;
+
+import com.twizted.Cache.ImageCacheTest;
+import com.twizted.Cache.TiledImageTest;
+import com.twizted.Network.HistoryDownloaderTest;
+import com.twizted.Network.HistoryRangeTest;
+import com.twizted.Network.ImageAssemblerTest;
+import com.twizted.Network.PacketCodecTest;
+import com.twizted.Network.SequenceBlockTest;
+import com.twizted.Network.SequenceTrackerTest;
+import com.twizted.Network.TcpClientTest;
+import com.twizted.Utility.OpQueueTest;
+import com.twizted.Utility.OpRingTest;
+import com.twizted.Utility.TasksTest;
+import com.twizted.Utility.TokenBucketTest;
+
+/**
+ * @author Ian Weeks 6204848
+ *         <p>
+ *         AllTests class.
+ *         <p>
+ *         Runs every test.  Stops with a non-zero exit status at the first
+ *         failure.
+ *         <p>
+ *         Run with {@code java com.twizted.AllTests}.
+ */
+public class AllTests
+{
+    /**
+     * Run every test.
+     *
+     * @param args Not used.
+     * @throws Exception If a test fails.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        PacketCodecTest.main(args);
+        SequenceTrackerTest.main(args);
+        SequenceBlockTest.main(args);
+        HistoryDownloaderTest.main(args);
+        HistoryRangeTest.main(args);
+        ImageCacheTest.main(args);
+        TiledImageTest.main(args);
+        TcpClientTest.main(args);
+        ImageAssemblerTest.main(args);
+        TokenBucketTest.main(args);
+        OpQueueTest.main(args);
+        OpRingTest.main(args);
+        TasksTest.main(args);
+        System.out.println("All tests passed.");
+        //Stop any threads a test left waiting.
+        System.exit(0);
+    }
+}
@@ -0,0 +1,222 @@
+/**
+ * Peer to peer whiteboard
+ * Distributed computing.
+ * CMPSMC34
+ */
+
+package com.twizted.Cache;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.twizted.Check.check;
+import static com.twizted.Check.equal;
+
+/**
+ * @author Ian Weeks 6204848
+ *         <p>
+ *         ImageCacheTest class.
+ *         <p>
+ *         Checks the cache stays within its memory budget by dropping the
+ *         least recently used images, that a dropped image is read back
+ *         from disk unchanged, and that hits and misses are counted once.
+ *         A dropped file is copied so it is still sent exactly as it was
+ *         after the file itself has changed.
+ */
+public class ImageCacheTest
+{
+    //A 256 by 256 argb image is a quarter of a megabyte.
+    private static final int SIDE = 256;
+    private static final long IMAGE_BYTES = SIDE * SIDE * 4;
+
+    /**
+     * Run the tests.
+     *
+     * @param args Not used.
+     */
+    public static void main(String[] args)
+    {
+        String budget = System.getProperty("whiteboard.imagecache");
+        System.setProperty("whiteboard.imagecache", "1");
+        try
+        {
+            staysWithinBudget();
+            dropsLeastRecentlyUsed();
+            readsSpilledImageBack();
+            keepsImageOverBudget();
+            countsHitsAndMisses();
+            keepsDroppedOriginal();
+        } catch (IOException e)
+        {
+            throw new AssertionError(e.getMessage());
+        } finally
+        {
+            if (budget == null)
+            {
+                System.clearProperty("whiteboard.imagecache");
+            } else
+            {
+                System.setProperty("whiteboard.imagecache", budget);
+            }
+        }
+        System.out.println("ImageCacheTest passed.");
+    }
+
+    private static BufferedImage image(int seed)
+    {
+        return image(SIDE, SIDE, seed);
+    }
+
+    private static BufferedImage image(int width, int height, int seed)
+    {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        return image;
+    }
+
+    private static void samePixels(BufferedImage expected, BufferedImage actual, String message)
+    {
+        check(actual != null, message + ": no image");
+        equal(expected.getWidth(), actual.getWidth(), message + ": width");
+        equal(expected.getHeight(), actual.getHeight(), message + ": height");
+        for (int y = 0; y < expected.getHeight(); y++)
+        {
+            for (int x = 0; x < expected.getWidth(); x++)
+            {
+                equal(expected.getRGB(x, y), actual.getRGB(x, y), message + ": pixel " + x + "," + y);
+            }
+        }
+    }
+
+    private static void staysWithinBudget()
+    {
+        ImageCache cache = new ImageCache();
+        for (long key = 1; key <= 4; key++)
+        {
+            cache.put(key, image((int) key));
+        }
+        equal(4 * IMAGE_BYTES, cache.getBytesUsed(), "bytes used at the budget");
+        equal(0, cache.getEvictions(), "evictions at the budget");
+        cache.put(5L, image(5));
+        equal(4 * IMAGE_BYTES, cache.getBytesUsed(), "bytes used over the budget");
+        equal(1, cache.getEvictions(), "evictions over the budget");
+        //Putting the same key again replaces it rather than counting it twice.
+        cache.put(5L, image(6));
+        equal(4 * IMAGE_BYTES, cache.getBytesUsed(), "bytes used after a replace");
+        cache.clear();
+        equal(0, cache.getBytesUsed(), "bytes used after a clear");
+    }
+
+    private static void dropsLeastRecentlyUsed()
+    {
+        ImageCache cache = new ImageCache();
+        for (long key = 1; key <= 4; key++)
+        {
+            cache.put(key, image((int) key));
+        }
+        //Using the oldest makes the second the least recently used.
+        check(cache.getCached(1L) != null, "first image");
+        cache.put(5L, image(5));
+        check(cache.getCached(1L) != null, "recently used image dropped");
+        check(cache.getCached(2L) == null, "least recently used image kept");
+        check(cache.getCached(3L) != null, "third image");
+        cache.clear();
+    }
+
+    private static void readsSpilledImageBack()
+    {
+        ImageCache cache = new ImageCache();
+        BufferedImage first = image(1);
+        cache.put(1L, first);
+        for (long key = 2; key <= 5; key++)
+        {
+            cache.put(key, image((int) key));
+        }
+        check(cache.getCached(1L) == null, "dropped image still in memory");
+        samePixels(first, cache.get(1L), "image read back from disk");
+        equal(1, cache.getReloads(), "reloads");
+        //Reading it back made it the most recently used again.
+        check(cache.getCached(1L) != null, "reloaded image not kept");
+        check(cache.get(99L) == null, "image never held");
+        cache.clear();
+        check(cache.get(1L) == null, "image held after a clear");
+    }
+
+    private static void keepsImageOverBudget()
+    {
+        ImageCache cache = new ImageCache();
+        cache.put(1L, image(1));
+        //Over a megabyte on its own.
+        BufferedImage big = image(1024, 512, 2);
+        cache.put(2L, big);
+        check(cache.getCached(2L) == big, "newest image dropped");
+        check(cache.getCached(1L) == null, "older image kept over budget");
+        equal(1024 * 512 * 4, cache.getBytesUsed(), "bytes used");
+        cache.clear();
+    }
+
+    private static void countsHitsAndMisses()
+    {
+        ImageCache cache = new ImageCache();
+        cache.put(1L, image(1));
+        for (int i = 0; i < 3; i++)
+        {
+            check(cache.getCached(1L) != null, "held image");
+            check(cache.getCached(2L) == null, "image not held");
+        }
+        equal(3, cache.getHits(), "hits");
+        //Looking for an image that is on its way is not a miss.
+        equal(0, cache.getMisses(), "misses from looking");
+        for (long key = 2; key <= 5; key++)
+        {
+            cache.put(key, image((int) key));
+        }
+        cache.get(1L);
+        cache.get(1L);
+        equal(1, cache.getMisses(), "misses once read back from disk");
+        check(cache.expect(42L, "127.0.0.1"), "unknown image not expected");
+        check(!cache.expect(42L, "127.0.0.1"), "image expected twice");
+        equal(2, cache.getMisses(), "misses after an image is expected");
+        cache.clear();
+    }
+
+    private static void keepsDroppedOriginal() throws IOException
+    {
+        BufferedImage image = image(1);
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", png);
+        byte[] bytes = png.toByteArray();
+        File source = File.createTempFile("dropped", ".png");
+        Files.write(source.toPath(), bytes);
+
+        ImageCache cache = new ImageCache();
+        long key = ImageCache.hash(bytes);
+        cache.put(key, image, bytes, source);
+        //The user's file changing or going away must not change what is sent.
+        Files.write(source.toPath(), new byte[]{1, 2, 3});
+        check(source.delete(), "source not deleted");
+        TiledImage tiles = cache.getTiles(key);
+        check(tiles != null && tiles.isOriginal(), "dropped file not kept");
+        check(Arrays.equals(bytes, tiles.readOriginal()), "original changed");
+        for (long other = 2; other <= 5; other++)
+        {
+            cache.put(other, image((int) other));
+        }
+        check(cache.getCached(key) == null, "dropped image still in memory");
+        samePixels(image, cache.get(key), "dropped image read back from its copy");
+        cache.clear();
+    }
+}
@@ -0,0 +1,231 @@
+/**
+ * Peer to peer whiteboard
+ * Distributed computing.
+ * CMPSMC34
+ */
+
+package com.twizted.Cache;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.twizted.Check.check;
+import static com.twizted.Check.equal;
+
+/**
+ * @author Ian Weeks 6204848
+ *         <p>
+ *         TiledImageTest class.
+ *         <p>
+ *         Checks where tiles fall in an image and in the tile file, that
+ *         an original file is sliced and put back together unchanged, and
+ *         that tiles received some other way are only kept up to the
+ *         first that is cut short or does not match its digest.
+ */
+public class TiledImageTest
+{
+    /**
+     * Run the tests.
+     *
+     * @param args Not used.
+     * @throws IOException If a temp file can't be written or read.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        tileGeometry();
+        encodeKeepsPixels();
+        offsetsMatchTheFile();
+        sliceKeepsOriginal();
+        readStopsAtBadTile();
+        refusesExtraTiles();
+        validHeaders();
+        tempFilesShareADirectory();
+        System.out.println("TiledImageTest passed.");
+    }
+
+    private static BufferedImage image(int width, int height)
+    {
+        Random random = new Random(width * 31 + height);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        return image;
+    }
+
+    private static void tileGeometry() throws IOException
+    {
+        TiledImage tiled = new TiledImage(600, 300, TiledImage.TILE_SIZE);
+        try
+        {
+            equal(6, tiled.getTileCount(), "tiles");
+            equal(6, TiledImage.tileCount(600, 300, TiledImage.TILE_SIZE), "tile count");
+            equal(new int[]{512, 0, 88, 256}, new int[]{tiled.tileX(2), tiled.tileY(2), tiled.tileWidth(2),
+                                                       tiled.tileHeight(2)}, "right edge tile");
+            equal(new int[]{256, 256, 256, 44}, new int[]{tiled.tileX(4), tiled.tileY(4), tiled.tileWidth(4),
+                                                         tiled.tileHeight(4)}, "bottom edge tile");
+            equal(0, tiled.getAdded(), "tiles added to a new image");
+            check(!tiled.isComplete(), "new image complete");
+            check(!tiled.isOriginal(), "tiles taken for an original");
+        } finally
+        {
+            tiled.delete();
+        }
+    }
+
+    private static void encodeKeepsPixels() throws IOException
+    {
+        BufferedImage image = image(600, 300);
+        TiledImage tiled = TiledImage.encode(image, "png");
+        try
+        {
+            check(tiled.isComplete(), "encoded image not complete");
+            BufferedImage decoded = tiled.decode();
+            for (int y = 0; y < image.getHeight(); y++)
+            {
+                for (int x = 0; x < image.getWidth(); x++)
+                {
+                    equal(image.getRGB(x, y), decoded.getRGB(x, y), "pixel " + x + "," + y);
+                }
+            }
+        } finally
+        {
+            tiled.delete();
+        }
+        check(!tiled.getFile().exists(), "tile file left after delete");
+    }
+
+    private static void offsetsMatchTheFile() throws IOException
+    {
+        TiledImage tiled = TiledImage.encode(image(300, 300), "png");
+        try
+        {
+            byte[] file = Files.readAllBytes(tiled.getFile().toPath());
+            equal(file.length, tiled.getOffset(tiled.getTileCount()), "end of the file");
+            ByteBuffer buffer = ByteBuffer.wrap(file);
+            for (int i = 0; i < tiled.getTileCount(); i++)
+            {
+                equal(tiled.getOffset(i), buffer.position(), "start of tile " + i);
+                byte[] tile = new byte[buffer.getInt()];
+                long digest = buffer.getLong();
+                buffer.get(tile);
+                equal(TiledImage.digest(tile), digest, "digest of tile " + i);
+                equal(tiled.getOffset(i) + 12 + tile.length, tiled.getOffset(i + 1), "end of tile " + i);
+            }
+        } finally
+        {
+            tiled.delete();
+        }
+    }
+
+    private static void sliceKeepsOriginal() throws IOException
+    {
+        byte[] original = new byte[TiledImage.SLICE_SIZE * 2 + TiledImage.SLICE_SIZE / 2];
+        new Random(3).nextBytes(original);
+        TiledImage sliced = TiledImage.slice(original, 40, 30);
+        try
+        {
+            check(sliced.isOriginal(), "slices not taken for an original");
+            equal(3, sliced.getTileCount(), "slices");
+            check(sliced.isComplete(), "sliced image not complete");
+            equal(TiledImage.SLICE_SIZE + 12, sliced.getOffset(1), "end of the first slice");
+            equal(original.length + 3 * 12, sliced.getOffset(3), "end of the file");
+            check(Arrays.equals(original, sliced.readOriginal()), "original changed by slicing");
+        } finally
+        {
+            sliced.delete();
+        }
+    }
+
+    private static void readStopsAtBadTile() throws IOException
+    {
+        TiledImage tiled = TiledImage.encode(image(600, 300), "png");
+        byte[] file = Files.readAllBytes(tiled.getFile().toPath());
+        int width = tiled.getWidth(), height = tiled.getHeight(), tileSize = tiled.getTileSize();
+        int count = tiled.getTileCount();
+        long tile3 = tiled.getOffset(3), tile4 = tiled.getOffset(4);
+        tiled.delete();
+
+        TiledImage whole = TiledImage.read(width, height, tileSize, count, file, file.length);
+        equal(count, whole.getAdded(), "tiles read from a whole file");
+        whole.delete();
+
+        //Cut short part way through tile 3.
+        TiledImage cut = TiledImage.read(width, height, tileSize, count, file, (int) tile3 + 20);
+        equal(3, cut.getAdded(), "tiles read before the cut");
+        //The rest can still be added as they are fetched.
+        cut.append(Arrays.copyOfRange(file, (int) tile3 + 12, (int) tile4));
+        equal(4, cut.getAdded(), "tiles after carrying on");
+        cut.delete();
+
+        byte[] corrupt = file.clone();
+        corrupt[(int) tile3 + 40] ^= 1;
+        TiledImage bad = TiledImage.read(width, height, tileSize, count, corrupt, corrupt.length);
+        equal(3, bad.getAdded(), "tiles read before the corrupt one");
+        bad.delete();
+
+        byte[] badLength = file.clone();
+        ByteBuffer.wrap(badLength).putInt((int) tile3, -5);
+        TiledImage negative = TiledImage.read(width, height, tileSize, count, badLength, badLength.length);
+        equal(3, negative.getAdded(), "tiles read before a bad length");
+        negative.delete();
+    }
+
+    private static void refusesExtraTiles() throws IOException
+    {
+        TiledImage sliced = TiledImage.slice(new byte[]{1, 2, 3}, 1, 1);
+        try
+        {
+            sliced.append(new byte[]{4});
+            throw new AssertionError("tile added to a complete image");
+        } catch (IOException e)
+        {
+            //Expected.
+        } finally
+        {
+            sliced.delete();
+        }
+    }
+
+    private static void validHeaders()
+    {
+        check(TiledImage.isValid(600, 300, 256, 6, 1000000), "good header");
+        check(!TiledImage.isValid(600, 300, 256, 7, 1000000), "wrong tile count");
+        check(!TiledImage.isValid(0, 300, 256, 0, 1000000), "no width");
+        check(!TiledImage.isValid(600, 300, -1, 6, 1000000), "negative tile size");
+        check(!TiledImage.isValid(6000, 3000, 256, 288, 1000000), "too many pixels");
+        check(TiledImage.isValid(600, 300, TiledImage.ORIGINAL, 2, 1000000), "original");
+        check(!TiledImage.isValid(600, 300, TiledImage.ORIGINAL, 0, 1000000), "original with no slices");
+        check(!TiledImage.isValid(600, 300, TiledImage.ORIGINAL, 5000, 1000000), "original too big");
+        try
+        {
+            new TiledImage(600, 300, 256, 7);
+            throw new AssertionError("bad image created");
+        } catch (IOException e)
+        {
+            //Expected.
+        }
+    }
+
+    private static void tempFilesShareADirectory() throws IOException
+    {
+        TiledImage first = new TiledImage(10, 10, 256), second = new TiledImage(10, 10, 256);
+        try
+        {
+            equal(first.getFile().getParentFile(), second.getFile().getParentFile(), "temp directory");
+            check(!first.getFile().equals(second.getFile()), "two images share a file");
+        } finally
+        {
+            first.delete();
+            second.delete();
+        }
+    }
+}
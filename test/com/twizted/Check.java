@@ -0,0 +1,86 @@
+/**
+ * Peer to peer whiteboard
+ * Distributed computing.
+ * CMPSMC34
+ */
+
+package com.twizted;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * @author Ian Weeks 6204848
+ *         <p>
+ *         Check class.
+ *         <p>
+ *         The few assertions the tests need.  Each throws an
+ *         AssertionError saying what was wrong, so a test stops at its
+ *         first failure.
+ */
+public final class Check
+{
+    private Check()
+    {
+    }
+
+    /**
+     * Check that something is true.
+     *
+     * @param condition The condition.
+     * @param message   What was expected.
+     */
+    public static void check(boolean condition, String message)
+    {
+        if (!condition)
+        {
+            throw new AssertionError(message);
+        }
+    }
+
+    /**
+     * Check that two numbers are equal.
+     *
+     * @param expected The expected value.
+     * @param actual   The actual value.
+     * @param message  What was being checked.
+     */
+    public static void equal(long expected, long actual, String message)
+    {
+        if (expected != actual)
+        {
+            throw new AssertionError(message + ": expected " + expected + " but was " + actual);
+        }
+    }
+
+    /**
+     * Check that two objects are equal.
+     *
+     * @param expected The expected value.
+     * @param actual   The actual value.
+     * @param message  What was being checked.
+     */
+    public static void equal(Object expected, Object actual, String message)
+    {
+        if (!Objects.equals(expected, actual))
+        {
+            throw new AssertionError(message + ": expected " + expected + " but was " + actual);
+        }
+    }
+
+    /**
+     * Check that two ops are equal.
+     *
+     * @param expected The expected op.
+     * @param actual   The actual op.
+     * @param message  What was being checked.
+     */
+    public static void equal(int[] expected, int[] actual, String message)
+    {
+        if (!Arrays.equals(expected, actual))
+        {
+            throw new AssertionError(message + ": expected " + Arrays.toString(expected) + " but was "
+                                     + Arrays.toString(actual));
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/**
+ * Peer to peer whiteboard
+ * Distributed computing.
+ * CMPSMC34
+ */
+
+package com.twizted.Network;
+
+import com.twizted.Cache.ActionCache;
+import com.twizted.Utility.Draw;
+import com.twizted.Utility.DrawRobot;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * @author Ian Weeks 6204848
+ *         <p>
+ *         HistoryCompressionBenchmark class.
+ *         <p>
+ *         Measures what deflating a history range saves.  A history of
+ *         {@link DrawRobot} ops and one of freehand strokes are each
+ *         written with the same framing as {@link HistoryServer}, then
+ *         read back as {@link HistoryClient} does, with and without
+ *         deflate.  Reports the size, ratio, encode and decode speed and
+ *         the time to send the range over a 100 Mbit lan.
+ *         <p>
+ *         Run with {@code java com.twizted.Network.HistoryCompressionBenchmark [ops]}.
+ */
+public class HistoryCompressionBenchmark
+{
+    private static final int ORIGIN = 12345;
+    private static final int WARM_UP = 20, RUNS = 50;
+    //Level for writing the frames as they are, without deflate.
+    private static final int NONE = Integer.MIN_VALUE;
+    private static final double LAN_BYTES_PER_SECOND = 100e6 / 8;
+
+    /**
+     * Run the benchmark.
+     *
+     * @param args The number of ops in each history.  10000 if not given.
+     * @throws IOException If a history can't be written or read back.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        int ops = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        System.out.printf("%-8s %-8s %9s %6s %10s %10s %10s%n", "History", "Level", "Bytes", "Ratio", "Enc MB/s",
+                          "Dec MB/s", "Lan ms");
+        for (String name : new String[]{"robot", "strokes"})
+        {
+            List<ActionCache.Entry> history = name.equals("robot") ? robotHistory(ops) : strokeHistory(ops);
+            measure(name, history, "none", NONE);
+            measure(name, history, "speed", Deflater.BEST_SPEED);
+            measure(name, history, "default", Deflater.DEFAULT_COMPRESSION);
+        }
+    }
+
+    private static List<ActionCache.Entry> robotHistory(int ops)
+    {
+        DrawRobot robot = new DrawRobot(1);
+        List<ActionCache.Entry> history = new ArrayList<>();
+        for (int i = 1; i <= ops; i++)
+        {
+            history.add(new ActionCache.Entry(robot.nextOp(ORIGIN, 800, 600, 12), i));
+        }
+        return history;
+    }
+
+    /**
+     * Freehand strokes as mouse drags send them, one short segment at a time.
+     */
+    private static List<ActionCache.Entry> strokeHistory(int ops)
+    {
+        Random random = new Random(1);
+        List<ActionCache.Entry> history = new ArrayList<>();
+        int colour = 0xFF000000, thickness = 2, x = 0, y = 0, left = 0;
+        for (int i = 1; i <= ops; i++)
+        {
+            if (left-- == 0)
+            {
+                //A new stroke, sometimes in a new colour or thickness.
+                left = 20 + random.nextInt(60);
+                x = random.nextInt(800);
+                y = random.nextInt(600);
+                if (random.nextInt(4) == 0)
+                {
+                    colour = 0xFF000000 | random.nextInt(0xFFFFFF);
+                    thickness = 1 + random.nextInt(9);
+                }
+            }
+            int endX = x + random.nextInt(9) - 4, endY = y + random.nextInt(9) - 4;
+            history.add(new ActionCache.Entry(new int[]{ORIGIN, Draw.DRAW, x, y, endX, endY, colour, thickness}, i));
+            x = endX;
+            y = endY;
+        }
+        return history;
+    }
+
+    /**
+     * Time writing and reading a history at one deflate level.
+     *
+     * @param name    The history's name.
+     * @param history The history.
+     * @param label   The level's name.
+     * @param level   The deflate level, or {@link #NONE}.
+     * @throws IOException If the history can't be written or read back.
+     */
+    private static void measure(String name, List<ActionCache.Entry> history, String label, int level)
+            throws IOException
+    {
+        byte[] encoded = null;
+        long raw = 0, encodeNanos = 0, decodeNanos = 0;
+        for (int run = 0; run < WARM_UP + RUNS; run++)
+        {
+            long start = System.nanoTime();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            raw = write(history, bytes, level);
+            encoded = bytes.toByteArray();
+            long middle = System.nanoTime();
+            int read = read(encoded, level);
+            long end = System.nanoTime();
+            if (read != history.size())
+            {
+                throw new IOException("Read back " + read + " of " + history.size() + " ops");
+            }
+            if (run >= WARM_UP)
+            {
+                encodeNanos += middle - start;
+                decodeNanos += end - middle;
+            }
+        }
+        double encodeSeconds = encodeNanos / 1e9 / RUNS, decodeSeconds = decodeNanos / 1e9 / RUNS;
+        double lanMillis = (encodeSeconds + encoded.length / LAN_BYTES_PER_SECOND + decodeSeconds) * 1000;
+        System.out.printf("%-8s %-8s %9d %5.2fx %10.1f %10.1f %10.2f%n", name, label, encoded.length,
+                          (double) raw / encoded.length, raw / encodeSeconds / 1e6, raw / decodeSeconds / 1e6,
+                          lanMillis);
+    }
+
+    /**
+     * Write a history range the way the server does.
+     *
+     * @return The number of bytes before deflating.
+     */
+    private static long write(List<ActionCache.Entry> history, OutputStream bytes, int level) throws IOException
+    {
+        if (level == NONE)
+        {
+            DataOutputStream out = new DataOutputStream(bytes);
+            HistoryServer.writeRange(history, ORIGIN, 1, Integer.MAX_VALUE, out);
+            out.flush();
+            return out.size();
+        }
+        Deflater deflater = new Deflater(level);
+        try
+        {
+            DeflaterOutputStream zip = new DeflaterOutputStream(bytes, deflater, HistoryServer.FRAME_SIZE, true);
+            DataOutputStream out = new DataOutputStream(zip);
+            HistoryServer.writeRange(history, ORIGIN, 1, Integer.MAX_VALUE, out);
+            zip.finish();
+            out.flush();
+            return deflater.getBytesRead();
+        } finally
+        {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Read a history range back the way the client does.
+     *
+     * @return The number of ops read.
+     */
+    private static int read(byte[] encoded, int level) throws IOException
+    {
+        InputStream bytes = new ByteArrayInputStream(encoded);
+        Inflater inflater = new Inflater();
+        try
+        {
+            if (level != NONE)
+            {
+                bytes = new InflaterInputStream(bytes, inflater, HistoryServer.FRAME_SIZE);
+            }
+            List<HistoryClient.Received> received = new ArrayList<>();
+            HistoryClient.readRange(new DataInputStream(bytes), ORIGIN, 1, Integer.MAX_VALUE, received);
+            return received.size();
+        } finally
+        {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Peer to peer whiteboard
+ * Distributed computing.
+ * CMPSMC34
+ */
+
+package com.twizted.Network;
+
+import com.twizted.Cache.ActionCache;
+import com.twizted.Utility.Draw;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.twizted.Check.check;
+import static com.twizted.Check.equal;
+
+/**
+ * @author Ian Weeks 6204848
+ *         <p>
+ *         HistoryDownloaderTest class.
+ *         <p>
+ *         Checks history is cut into chunks of one originator's sequence
+ *         numbers, that every number is checked off or found missing, and
+ *         that fetched actions are put back in drawing order.
+ */
+public class HistoryDownloaderTest
+{
+    /**
+     * Run the tests.
+     *
+     * @param args Not used.
+     */
+    public static void main(String[] args)
+    {
+        chunksSplitAtChunkSize();
+        overlappingPeersShareChunks();
+        gapsAreNotExpected();
+        checkOffAndMissing();
+        countHeld();
+        drawingOrder();
+        System.out.println("HistoryDownloaderTest passed.");
+    }
+
+    private static Map<Integer, List<int[]>> summary(int origin, int[]... runs)
+    {
+        Map<Integer, List<int[]>> summary = new HashMap<>();
+        summary.put(origin, new ArrayList<>(Arrays.asList(runs)));
+        return summary;
+    }
+
+    private static List<HistoryClient.Received> actions(int origin, int first, int last, int age)
+    {
+        List<HistoryClient.Received> actions = new ArrayList<>();
+        for (int sequence = first; sequence <= last; sequence++)
+        {
+            int[] data = {origin, Draw.DRAW, sequence, 0, sequence, 1, 0xFF000000, 1};
+            actions.add(new HistoryClient.Received(new ActionCache.Entry(data, sequence), age--));
+        }
+        return actions;
+    }
+
+    private static void chunksSplitAtChunkSize()
+    {
+        int size = HistoryDownloader.CHUNK_SIZE;
+        List<HistoryDownloader.Chunk> chunks = HistoryDownloader.plan(
+                Collections.singletonList(summary(1, new int[]{1, 2 * size + 500})), 1);
+        equal(3, chunks.size(), "chunks");
+        equal("1:1-" + size, chunks.get(0).toString(), "first chunk");
+        equal("1:" + (size + 1) + "-" + 2 * size, chunks.get(1).toString(), "second chunk");
+        equal("1:" + (2 * size + 1) + "-" + (2 * size + 500), chunks.get(2).toString(), "last chunk");
+        equal(size, chunks.get(0).getMissing(), "numbers to fetch in a full chunk");
+        equal(500, chunks.get(2).getMissing(), "numbers to fetch in the last chunk");
+    }
+
+    private static void overlappingPeersShareChunks()
+    {
+        Map<Integer, List<int[]>> a = summary(1, new int[]{1, 1500});
+        Map<Integer, List<int[]>> b = summary(1, new int[]{1000, 2500});
+        b.put(2, Collections.singletonList(new int[]{10, 20}));
+        List<HistoryDownloader.Chunk> chunks = HistoryDownloader.plan(Arrays.asList(a, b), 2);
+        equal(3, chunks.size(), "chunks");
+        equal("1:1-2000", chunks.get(0).toString(), "first chunk");
+        equal("1:2001-2500", chunks.get(1).toString(), "second chunk");
+        equal("2:10-20", chunks.get(2).toString(), "other originator");
+        int total = 0;
+        for (HistoryDownloader.Chunk chunk : chunks)
+        {
+            total += chunk.getMissing();
+        }
+        equal(2500 + 11, total, "each number is fetched once");
+    }
+
+    private static void gapsAreNotExpected()
+    {
+        List<HistoryDownloader.Chunk> chunks = HistoryDownloader.plan(
+                Collections.singletonList(summary(1, new int[]{1, 100}, new int[]{200, 300})), 1);
+        equal(1, chunks.size(), "chunks");
+        //Numbers nobody holds are never waited for.
+        equal(201, chunks.get(0).getMissing(), "numbers to fetch");
+        equal(new int[]{1, 300}, chunks.get(0).getMissingSpan(), "span");
+    }
+
+    private static void checkOffAndMissing()
+    {
+        HistoryDownloader.Chunk chunk = HistoryDownloader.plan(
+                Collections.singletonList(summary(1, new int[]{1, 50})), 1).get(0);
+        equal(30, chunk.receive(actions(1, 1, 30, 100)), "new actions");
+        equal(0, chunk.receive(actions(1, 10, 20, 100)), "duplicates");
+        equal(0, chunk.receive(actions(1, 51, 60, 100)), "outside the chunk");
+        equal(20, chunk.getMissing(), "still missing");
+        equal(new int[]{31, 50}, chunk.getMissingSpan(), "missing span");
+
+        //A peer that sent only part of its range leaves a hole to ask for again.
+        chunk.receive(actions(1, 31, 40, 100));
+        chunk.receive(actions(1, 45, 50, 100));
+        equal(4, chunk.getMissing(), "hole");
+        equal(new int[]{41, 44}, chunk.getMissingSpan(), "hole span");
+        chunk.receive(actions(1, 41, 44, 100));
+        equal(0, chunk.getMissing(), "all checked off");
+        check(chunk.getMissingSpan() == null, "span when nothing is missing");
+        equal(50, chunk.getReceived().size(), "received");
+    }
+
+    private static void countHeld()
+    {
+        HistoryDownloader.Chunk chunk = HistoryDownloader.plan(
+                Collections.singletonList(summary(1, new int[]{1, 100})), 2).get(0);
+        chunk.receive(actions(1, 1, 40, 100));
+        equal(60, chunk.countHeld(Collections.singletonList(new int[]{1, 100})), "held by a full peer");
+        equal(10, chunk.countHeld(Collections.singletonList(new int[]{31, 50})), "held by a partial peer");
+        equal(0, chunk.countHeld(null), "held by a peer without the originator");
+    }
+
+    private static void drawingOrder()
+    {
+        //Two originators drawn in turn: 1 drew first, then 2, then 1 again.
+        Map<Integer, List<int[]>> held = summary(1, new int[]{1, 2});
+        held.put(2, Collections.singletonList(new int[]{1, 1}));
+        List<HistoryDownloader.Chunk> chunks = HistoryDownloader.plan(Collections.singletonList(held), 1);
+        equal(2, chunks.size(), "chunks");
+        List<HistoryClient.Received> fromOne = new ArrayList<>(), fromTwo = new ArrayList<>();
+        //Ranges can arrive out of sequence order.
+        fromOne.add(new HistoryClient.Received(new ActionCache.Entry(new int[]{1, Draw.CLEAR}, 2), 0));
+        fromOne.add(new HistoryClient.Received(new ActionCache.Entry(new int[]{1, Draw.CLEAR}, 1), 2));
+        fromTwo.add(new HistoryClient.Received(new ActionCache.Entry(new int[]{2, Draw.CLEAR}, 1), 1));
+        chunks.get(0).receive(fromOne);
+        chunks.get(1).receive(fromTwo);
+
+        List<HistoryClient.Received> ordered = HistoryDownloader.order(chunks);
+        equal(3, ordered.size(), "ordered actions");
+        equal("1:1", describe(ordered.get(0)), "first");
+        equal("2:1", describe(ordered.get(1)), "second");
+        equal("1:2", describe(ordered.get(2)), "third");
+    }
+
+    private static String describe(HistoryClient.Received received)
+    {
+        return received.getEntry().getData()[0] + ":" + received.getEntry().getSequence();
+    }
+}
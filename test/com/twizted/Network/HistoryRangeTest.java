@@ -0,0 +1,166 @@
+/**
+ * Peer to peer whiteboard
+ * Distributed computing.
+ * CMPSMC34
+ */
+
+package com.twizted.Network;
+
+import com.twizted.Cache.ActionCache;
+import com.twizted.Utility.Draw;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.twizted.Check.check;
+import static com.twizted.Check.equal;
+
+/**
+ * @author Ian Weeks 6204848
+ *         <p>
+ *         HistoryRangeTest class.
+ *         <p>
+ *         Checks a range written by {@link HistoryServer} is read back by
+ *         {@link HistoryClient} with the right actions, sequence numbers
+ *         and ages, across several frames, and that a range holding
+ *         actions that were not asked for or a bad frame is refused.
+ */
+public class HistoryRangeTest
+{
+    private static final int ORIGIN = 7, OTHER = -3;
+
+    /**
+     * Run the tests.
+     *
+     * @param args Not used.
+     * @throws IOException If a range can't be written or read back.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        readsBackOnlyTheRange();
+        spansSeveralFrames();
+        emptyRange();
+        refusesActionsNotAskedFor();
+        refusesBadFrameLength();
+        collapsesRuns();
+        System.out.println("HistoryRangeTest passed.");
+    }
+
+    /**
+     * A history of lines alternating between two originators, with every
+     * fifth action from origin 7 unsequenced.
+     */
+    private static List<ActionCache.Entry> history(int size)
+    {
+        List<ActionCache.Entry> history = new ArrayList<>();
+        for (int i = 0; i < size; i++)
+        {
+            int origin = i % 2 == 0 ? ORIGIN : OTHER;
+            int sequence = i % 10 == 8 ? 0 : 100 + i / 2;
+            history.add(new ActionCache.Entry(new int[]{origin, Draw.DRAW, i, i, i + 3, i - 3, 0xFF00FF00, 4},
+                                              sequence));
+        }
+        return history;
+    }
+
+    private static byte[] write(List<ActionCache.Entry> history, int first, int last, int expected)
+            throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        equal(expected, HistoryServer.writeRange(history, ORIGIN, first, last, out), "actions written");
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static List<HistoryClient.Received> read(byte[] bytes, int first, int last) throws IOException
+    {
+        List<HistoryClient.Received> received = new ArrayList<>();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        HistoryClient.readRange(in, ORIGIN, first, last, received);
+        equal(-1, in.read(), "bytes after the empty frame");
+        return received;
+    }
+
+    private static void readsBackOnlyTheRange() throws IOException
+    {
+        List<ActionCache.Entry> history = history(40);
+        //Origin 7 holds the even positions as sequences 100-119, less every fifth, which is unsequenced.
+        List<HistoryClient.Received> received = read(write(history, 105, 112, 7), 105, 112);
+        int[] expected = {105, 106, 107, 108, 110, 111, 112};
+        equal(expected.length, received.size(), "actions read");
+        for (int i = 0; i < expected.length; i++)
+        {
+            ActionCache.Entry entry = received.get(i).getEntry();
+            equal(expected[i], entry.getSequence(), "sequence");
+            int position = (expected[i] - 100) * 2;
+            equal(history.get(position).getData(), entry.getData(), "action");
+            equal(history.size() - 1 - position, received.get(i).getAge(), "age");
+        }
+    }
+
+    private static void spansSeveralFrames() throws IOException
+    {
+        //Big enough that the range runs over several frames.
+        List<ActionCache.Entry> history = history(10000);
+        byte[] bytes = write(history, 0, Integer.MAX_VALUE, 4000);
+        check(bytes.length > 2 * HistoryServer.FRAME_SIZE, "only " + bytes.length + " bytes written");
+        List<HistoryClient.Received> received = read(bytes, 0, Integer.MAX_VALUE);
+        equal(4000, received.size(), "actions read");
+        for (int i = 1; i < received.size(); i++)
+        {
+            check(received.get(i).getAge() < received.get(i - 1).getAge(), "ages out of order at " + i);
+            check(received.get(i).getEntry().getSequence() > received.get(i - 1).getEntry().getSequence(),
+                  "sequences out of order at " + i);
+        }
+    }
+
+    private static void emptyRange() throws IOException
+    {
+        byte[] bytes = write(history(40), 500, 600, 0);
+        equal(4, bytes.length, "bytes for an empty range");
+        equal(0, read(bytes, 500, 600).size(), "actions read");
+    }
+
+    private static void refusesActionsNotAskedFor() throws IOException
+    {
+        byte[] bytes = write(history(40), 100, 119, 16);
+        try
+        {
+            read(bytes, 105, 119);
+            throw new AssertionError("action outside the range accepted");
+        } catch (IOException e)
+        {
+            check(e.getMessage().contains("not asked for"), e.getMessage());
+        }
+    }
+
+    private static void refusesBadFrameLength() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeInt(Integer.MAX_VALUE);
+        try
+        {
+            read(bytes.toByteArray(), 0, 10);
+            throw new AssertionError("bad frame length accepted");
+        } catch (IOException e)
+        {
+            check(e.getMessage().contains("frame length"), e.getMessage());
+        }
+    }
+
+    private static void collapsesRuns()
+    {
+        List<int[]> runs = HistoryServer.toRuns(new ArrayList<>(Arrays.asList(9, 3, 4, 5, 5, 11, 10, 20)));
+        equal(3, runs.size(), "runs");
+        equal(new int[]{3, 5}, runs.get(0), "first run");
+        equal(new int[]{9, 11}, runs.get(1), "second run");
+        equal(new int[]{20, 20}, runs.get(2), "single number run");
+    }
+}
@@ -0,0 +1,156 @@
+/**
+ * Peer to peer whiteboard
+ * Distributed computing.
+ * CMPSMC34
+ */
+
+package com.twizted.Network;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.twizted.Check.check;
+import static com.twizted.Check.equal;
+
+/**
+ * @author Ian Weeks 6204848
+ *         <p>
+ *         ImageAssemblerTest class.
+ *         <p>
+ *         Feeds an image's chunks and parity to an assembling image with
+ *         some chunks lost.  Checks a single lost chunk in a group is
+ *         rebuilt from the parity whichever order they arrive in, including
+ *         the short last chunk, and that a group missing two chunks waits.
+ */
+public class ImageAssemblerTest
+{
+    //Three full groups and a short one ending in a part chunk.
+    private static final int LENGTH = ImageMulticaster.CHUNK_SIZE * (3 * ImageMulticaster.GROUP_SIZE + 2) + 300;
+    private static final int CHUNKS = (LENGTH + ImageMulticaster.CHUNK_SIZE - 1) / ImageMulticaster.CHUNK_SIZE;
+    private static final int GROUPS = (CHUNKS + ImageMulticaster.GROUP_SIZE - 1) / ImageMulticaster.GROUP_SIZE;
+
+    /**
+     * Run the tests.
+     *
+     * @param args Not used.
+     */
+    public static void main(String[] args)
+    {
+        byte[] file = new byte[LENGTH];
+        new Random(1).nextBytes(file);
+        byte[][] parity = parity(file);
+        nothingLost(file, parity);
+        oneLostPerGroup(file, parity);
+        parityFirst(file, parity);
+        twoLost(file, parity);
+        System.out.println("ImageAssemblerTest passed.");
+    }
+
+    /**
+     * Work out each group's parity as the multicaster does.
+     */
+    private static byte[][] parity(byte[] file)
+    {
+        byte[][] parity = new byte[GROUPS][ImageMulticaster.CHUNK_SIZE];
+        for (int chunk = 0; chunk < CHUNKS; chunk++)
+        {
+            int offset = chunk * ImageMulticaster.CHUNK_SIZE;
+            for (int i = 0; i < ImageMulticaster.CHUNK_SIZE && offset + i < LENGTH; i++)
+            {
+                parity[chunk / ImageMulticaster.GROUP_SIZE][i] ^= file[offset + i];
+            }
+        }
+        return parity;
+    }
+
+    private static ImageAssembler.Image image()
+    {
+        return new ImageAssembler.Image(1L, 600, 300, 256, 6, LENGTH);
+    }
+
+    private static boolean chunk(ImageAssembler.Image image, byte[] file, int chunk)
+    {
+        int offset = chunk * ImageMulticaster.CHUNK_SIZE;
+        int size = Math.min(ImageMulticaster.CHUNK_SIZE, LENGTH - offset);
+        image.putChunk(chunk, ByteBuffer.wrap(file, offset, size));
+        return image.rebuild(chunk / ImageMulticaster.GROUP_SIZE);
+    }
+
+    private static boolean parity(ImageAssembler.Image image, byte[][] parity, int group)
+    {
+        image.putParity(group, ByteBuffer.wrap(parity[group]));
+        return image.rebuild(group);
+    }
+
+    private static void nothingLost(byte[] file, byte[][] parity)
+    {
+        ImageAssembler.Image image = image();
+        equal(CHUNKS, image.getMissing(), "chunks missing at the start");
+        for (int chunk = 0; chunk < CHUNKS; chunk++)
+        {
+            check(!chunk(image, file, chunk), "rebuilt a chunk that arrived");
+        }
+        for (int group = 0; group < GROUPS; group++)
+        {
+            check(!parity(image, parity, group), "rebuilt a complete group");
+        }
+        equal(0, image.getMissing(), "chunks missing");
+        check(Arrays.equals(file, image.getData()), "image changed");
+    }
+
+    private static void oneLostPerGroup(byte[] file, byte[][] parity)
+    {
+        ImageAssembler.Image image = image();
+        int rebuilt = 0;
+        for (int chunk = 0; chunk < CHUNKS; chunk++)
+        {
+            //Lose a different chunk from each group, and the short last chunk from the last.
+            int group = chunk / ImageMulticaster.GROUP_SIZE;
+            int lost = group == GROUPS - 1 ? CHUNKS - 1 : group * ImageMulticaster.GROUP_SIZE + group * 3;
+            if (chunk != lost)
+            {
+                chunk(image, file, chunk);
+            }
+            if (chunk == Math.min(CHUNKS, (group + 1) * ImageMulticaster.GROUP_SIZE) - 1)
+            {
+                rebuilt += parity(image, parity, group) ? 1 : 0;
+            }
+        }
+        equal(GROUPS, rebuilt, "chunks rebuilt");
+        equal(0, image.getMissing(), "chunks missing");
+        check(Arrays.equals(file, image.getData()), "rebuilt image differs");
+        //A lost chunk arriving late changes nothing.
+        check(!chunk(image, file, 0), "rebuilt a chunk twice");
+        equal(0, image.getMissing(), "chunks missing after a late chunk");
+    }
+
+    private static void parityFirst(byte[] file, byte[][] parity)
+    {
+        ImageAssembler.Image image = image();
+        check(!parity(image, parity, 0), "rebuilt from parity alone");
+        for (int chunk = 1; chunk < ImageMulticaster.GROUP_SIZE - 1; chunk++)
+        {
+            check(!chunk(image, file, chunk), "rebuilt with two chunks lost");
+        }
+        check(chunk(image, file, ImageMulticaster.GROUP_SIZE - 1), "not rebuilt when the group was done");
+        equal(CHUNKS - ImageMulticaster.GROUP_SIZE, image.getMissing(), "chunks missing");
+        check(Arrays.equals(Arrays.copyOf(file, ImageMulticaster.CHUNK_SIZE),
+                            Arrays.copyOf(image.getData(), ImageMulticaster.CHUNK_SIZE)), "rebuilt chunk differs");
+    }
+
+    private static void twoLost(byte[] file, byte[][] parity)
+    {
+        ImageAssembler.Image image = image();
+        for (int chunk = 2; chunk < ImageMulticaster.GROUP_SIZE; chunk++)
+        {
+            chunk(image, file, chunk);
+        }
+        check(!parity(image, parity, 0), "rebuilt with two chunks lost");
+        equal(CHUNKS - ImageMulticaster.GROUP_SIZE + 2, image.getMissing(), "chunks missing");
+        check(chunk(image, file, 1), "not rebuilt once one chunk was left");
+        equal(CHUNKS - ImageMulticaster.GROUP_SIZE, image.getMissing(), "chunks missing once rebuilt");
+        check(Arrays.equals(Arrays.copyOf(file, 2 * ImageMulticaster.CHUNK_SIZE),
+                            Arrays.copyOf(image.getData(), 2 * ImageMulticaster.CHUNK_SIZE)), "rebuilt chunk differs");
+    }
+}
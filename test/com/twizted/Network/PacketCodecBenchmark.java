@@ -0,0 +1,139 @@
+/**
+ * Peer to peer whiteboard
+ * Distributed computing.
+ * CMPSMC34
+ */
+
+package com.twizted.Network;
+
+import com.twizted.Utility.DrawRobot;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * @author Ian Weeks 6204848
+ *         <p>
+ *         PacketCodecBenchmark class.
+ *         <p>
+ *         Compares {@link PacketCodec} with the object streams each op was
+ *         serialized with before it.  The same {@link DrawRobot} ops are
+ *         written one per packet both ways and read back, and the bytes
+ *         per op and ops per second each way are reported.
+ *         <p>
+ *         Run with {@code java com.twizted.Network.PacketCodecBenchmark [ops]}.
+ */
+public class PacketCodecBenchmark
+{
+    private static final int WARM_UP = 5, RUNS = 10;
+
+    /**
+     * Run the benchmark.
+     *
+     * @param args The number of ops.  20000 if not given.
+     * @throws IOException            If an op can't be serialized.
+     * @throws ClassNotFoundException If a serialized op can't be read back.
+     */
+    public static void main(String[] args) throws IOException, ClassNotFoundException
+    {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        DrawRobot robot = new DrawRobot(1);
+        int[][] ops = new int[count][];
+        for (int i = 0; i < count; i++)
+        {
+            ops[i] = robot.nextOp(12345, 800, 600, 12);
+        }
+        System.out.printf("%-8s %10s %12s %12s%n", "Codec", "Bytes/op", "Enc ops/s", "Dec ops/s");
+        measureObjects(ops);
+        measureCodec(ops);
+    }
+
+    private static void measureObjects(int[][] ops) throws IOException, ClassNotFoundException
+    {
+        long bytes = 0, encodeNanos = 0, decodeNanos = 0;
+        byte[][] packets = new byte[ops.length][];
+        for (int run = 0; run < WARM_UP + RUNS; run++)
+        {
+            bytes = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < ops.length; i++)
+            {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                try (ObjectOutputStream oos = new ObjectOutputStream(baos))
+                {
+                    oos.writeObject(ops[i]);
+                }
+                packets[i] = baos.toByteArray();
+                bytes += packets[i].length;
+            }
+            long middle = System.nanoTime();
+            for (int i = 0; i < ops.length; i++)
+            {
+                try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(packets[i])))
+                {
+                    check(ops[i], (int[]) ois.readObject());
+                }
+            }
+            long end = System.nanoTime();
+            if (run >= WARM_UP)
+            {
+                encodeNanos += middle - start;
+                decodeNanos += end - middle;
+            }
+        }
+        report("objects", ops.length, bytes, encodeNanos, decodeNanos);
+    }
+
+    private static void measureCodec(int[][] ops)
+    {
+        long bytes = 0, encodeNanos = 0, decodeNanos = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(PacketCodec.MAX_PACKET_SIZE);
+        byte[][] packets = new byte[ops.length][];
+        for (int run = 0; run < WARM_UP + RUNS; run++)
+        {
+            bytes = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < ops.length; i++)
+            {
+                PacketCodec.encodePacket(ops[i], buffer);
+                packets[i] = new byte[buffer.remaining()];
+                buffer.get(packets[i]);
+                bytes += packets[i].length;
+            }
+            long middle = System.nanoTime();
+            for (int i = 0; i < ops.length; i++)
+            {
+                ByteBuffer packet = ByteBuffer.wrap(packets[i]);
+                PacketCodec.readHeader(packet);
+                check(ops[i], PacketCodec.decode(packet));
+            }
+            long end = System.nanoTime();
+            if (run >= WARM_UP)
+            {
+                encodeNanos += middle - start;
+                decodeNanos += end - middle;
+            }
+        }
+        report("codec", ops.length, bytes, encodeNanos, decodeNanos);
+    }
+
+    private static void check(int[] expected, int[] actual)
+    {
+        if (!Arrays.equals(expected, actual))
+        {
+            throw new IllegalStateException("Read back " + Arrays.toString(actual) + " for "
+                                                    + Arrays.toString(expected));
+        }
+    }
+
+    private static void report(String name, int count, long bytes, long encodeNanos, long decodeNanos)
+    {
+        System.out.printf("%-8s %10.1f %12.0f %12.0f%n", name, (double) bytes / count,
+                          count * 1e9 * RUNS / encodeNanos, count * 1e9 * RUNS / decodeNanos);
+    }
+}
@@ -0,0 +1,228 @@
+/**
+ * Peer to peer whiteboard
+ * Distributed computing.
+ * CMPSMC34
+ */
+
+package com.twizted.Network;
+
+import com.twizted.Utility.Draw;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import static com.twizted.Check.check;
+import static com.twizted.Check.equal;
+
+/**
+ * @author Ian Weeks 6204848
+ *         <p>
+ *         PacketCodecTest class.
+ *         <p>
+ *         Round trips varints, zigzag fields and every op type through
+ *         {@link PacketCodec}.
+ */
+public class PacketCodecTest
+{
+    private static final int[] EDGES = {0, 1, -1, 63, -64, 64, 127, 128, 16383, 16384, Integer.MAX_VALUE,
+                                        Integer.MIN_VALUE, Integer.MAX_VALUE - 1, Integer.MIN_VALUE + 1};
+
+    /**
+     * Run the tests.
+     *
+     * @param args Not used.
+     */
+    public static void main(String[] args)
+    {
+        varIntRoundTrip();
+        varIntLength();
+        malformedVarInt();
+        everyOpRoundTrip();
+        zigzagFields();
+        sequenceRoundTrip();
+        packedOps();
+        longestPolylineFits();
+        wrongVersion();
+        badFieldCount();
+        System.out.println("PacketCodecTest passed.");
+    }
+
+    private static void varIntRoundTrip()
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        for (int value : EDGES)
+        {
+            buffer.clear();
+            PacketCodec.writeVarInt(buffer, value);
+            buffer.flip();
+            equal(value, PacketCodec.readVarInt(buffer), "varint " + value);
+            check(!buffer.hasRemaining(), "varint " + value + " left bytes behind");
+        }
+    }
+
+    private static void varIntLength()
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        int[][] lengths = {{0, 1}, {127, 1}, {128, 2}, {16383, 2}, {16384, 3}, {-1, 5}};
+        for (int[] length : lengths)
+        {
+            buffer.clear();
+            PacketCodec.writeVarInt(buffer, length[0]);
+            equal(length[1], buffer.position(), "bytes for varint " + length[0]);
+        }
+    }
+
+    private static void malformedVarInt()
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[]{(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80,
+                                                       (byte) 0x80, 0});
+        try
+        {
+            PacketCodec.readVarInt(buffer);
+            throw new AssertionError("Six byte varint was read");
+        } catch (IllegalArgumentException e)
+        {
+            //Expected.
+        }
+    }
+
+    private static void everyOpRoundTrip()
+    {
+        int[][] ops = {
+                {7, Draw.DRAW, 10, 20, 13, 18, 0xFF123456, 3},
+                {7, Draw.CLEAR},
+                {7, Draw.TEXT, 100, 200, 'q', 0xFF000000, 9},
+                {7, Draw.CIRCLE, 5, 6, 19, 0x80FFFFFF, 1},
+                {7, Draw.IMAGE, 40, 50, 0x12345678, 0x9ABCDEF0, 192, 168, 0, 1},
+                {7, Draw.POLYLINE, 0xFFFF0000, 4, 1, 1, 2, 3, 5, 2, 1, 0},
+                {7, UdpReceiver.REQ_IP},
+                {7, UdpReceiver.ANS_IP, 10, 0, 0, 5, 1234},
+                {7, UdpReceiver.LEAVE_NOTE},
+                {7, UdpReceiver.CLEAR_REQ},
+                {7, UdpReceiver.NACK, 99, 1000, 1010}
+        };
+        ByteBuffer buffer = ByteBuffer.allocate(PacketCodec.MAX_PACKET_SIZE);
+        for (int[] op : ops)
+        {
+            PacketCodec.encodePacket(op, buffer);
+            PacketCodec.readHeader(buffer);
+            equal(op, PacketCodec.decode(buffer), "round trip of type " + op[1]);
+            check(!buffer.hasRemaining(), "type " + op[1] + " left bytes behind");
+        }
+    }
+
+    private static void zigzagFields()
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(PacketCodec.MAX_PACKET_SIZE);
+        for (int a : EDGES)
+        {
+            for (int b : EDGES)
+            {
+                //Deltas between extremes overflow and must still come back exactly.
+                int[] op = {a, Draw.DRAW, a, b, b, a, a, b};
+                PacketCodec.encodePacket(op, buffer);
+                PacketCodec.readHeader(buffer);
+                equal(op, PacketCodec.decode(buffer), "line " + a + " " + b);
+            }
+        }
+
+        //A short line is small on the wire.  One byte of the packet is the header.
+        PacketCodec.encodePacket(new int[]{7, Draw.DRAW, 300, 200, 302, 199, 0xFF000000, 2}, buffer);
+        check(buffer.remaining() - 1 <= 15, "short line took " + (buffer.remaining() - 1) + " bytes");
+    }
+
+    private static void sequenceRoundTrip()
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        int[] op = {-5, Draw.TEXT, 1, 2, 'x', 0xFF00FF00, 4};
+        int[] sequence = new int[1];
+        for (int number : new int[]{0, 1, 1 << 27, Integer.MAX_VALUE})
+        {
+            buffer.clear();
+            PacketCodec.encode(op, number, buffer);
+            buffer.flip();
+            equal(op, PacketCodec.decode(buffer, sequence), "op with sequence " + number);
+            equal(number, sequence[0], "sequence");
+        }
+    }
+
+    private static void packedOps()
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(PacketCodec.MAX_PACKET_SIZE);
+        PacketCodec.writeHeader(buffer);
+        int count = 0;
+        while (true)
+        {
+            buffer.mark();
+            try
+            {
+                PacketCodec.encode(new int[]{3, Draw.DRAW, count, count, count + 1, count + 2, 0xFF000000, 1},
+                                   buffer);
+                count++;
+            } catch (BufferOverflowException e)
+            {
+                buffer.reset();
+                break;
+            }
+        }
+        check(count > 50, "only " + count + " lines fit in a packet");
+        buffer.flip();
+        PacketCodec.readHeader(buffer);
+        for (int i = 0; i < count; i++)
+        {
+            equal(new int[]{3, Draw.DRAW, i, i, i + 1, i + 2, 0xFF000000, 1}, PacketCodec.decode(buffer),
+                  "packed op " + i);
+        }
+        check(!buffer.hasRemaining(), "packet left bytes behind");
+    }
+
+    private static void longestPolylineFits()
+    {
+        //OpQueue joins at most 256 points.  Strokes move a few pixels a point.
+        int[] op = new int[4 + 2 * 256];
+        op[0] = 1;
+        op[1] = Draw.POLYLINE;
+        op[2] = 0xFF00FF00;
+        op[3] = 10;
+        for (int i = 4; i < op.length; i += 2)
+        {
+            op[i] = 400 + (i % 7) * 5 - 15;
+            op[i + 1] = 300 + (i % 5) * 6 - 12;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(PacketCodec.MAX_PACKET_SIZE);
+        PacketCodec.encodePacket(op, buffer);
+        PacketCodec.readHeader(buffer);
+        equal(op, PacketCodec.decode(buffer), "longest polyline");
+    }
+
+    private static void wrongVersion()
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[]{(byte) (PacketCodec.VERSION + 1), 0});
+        try
+        {
+            PacketCodec.readHeader(buffer);
+            throw new AssertionError("Unknown version was read");
+        } catch (IllegalArgumentException e)
+        {
+            //Expected.
+        }
+    }
+
+    private static void badFieldCount()
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        PacketCodec.writeVarInt(buffer, Draw.DRAW);
+        PacketCodec.writeVarInt(buffer, 2);
+        PacketCodec.writeVarInt(buffer, 0);
+        PacketCodec.writeVarInt(buffer, 1000);
+        buffer.flip();
+        try
+        {
+            PacketCodec.decode(buffer);
+            throw new AssertionError("Field count past the end of the packet was read");
+        } catch (IllegalArgumentException e)
+        {
+            //Expected.
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Peer to peer whiteboard
+ * Distributed computing.
+ * CMPSMC34
+ */
+
+package com.twizted.Network;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static com.twizted.Check.check;
+import static com.twizted.Check.equal;
+
+/**
+ * @author Ian Weeks 6204848
+ *         <p>
+ *         SequenceBlockTest class.
+ *         <p>
+ *         Checks sequence numbers carry on past everything used before a
+ *         restart, however far through a block the last run got.
+ */
+public class SequenceBlockTest
+{
+    /**
+     * Run the tests.
+     *
+     * @param args Not used.
+     * @throws IOException If a temp file can't be made.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        randomStart();
+        restartCarriesOn();
+        restartAfterManyBlocks();
+        unreadableFile();
+        System.out.println("SequenceBlockTest passed.");
+    }
+
+    private static File tempFile() throws IOException
+    {
+        File file = File.createTempFile("sequence", ".test");
+        file.deleteOnExit();
+        if (!file.delete())
+        {
+            throw new IOException("Could not clear " + file);
+        }
+        return file;
+    }
+
+    private static void randomStart() throws IOException
+    {
+        SequenceBlock block = new SequenceBlock(tempFile());
+        int first = block.peek();
+        check(first >= (1 << 24) && first < (1 << 27), "random start " + first);
+        equal(first, block.advance(), "advance hands out what peek showed");
+        equal(first + 1, block.peek(), "next number");
+    }
+
+    private static void restartCarriesOn() throws IOException
+    {
+        File file = tempFile();
+        SequenceBlock block = new SequenceBlock(file);
+        int last = 0;
+        for (int i = 0; i < 10; i++)
+        {
+            last = block.advance();
+        }
+        //A crash part way through a block skips the rest of it.
+        SequenceBlock restarted = new SequenceBlock(file);
+        check(restarted.peek() > last, "restart at " + restarted.peek() + " reuses " + last);
+        check(restarted.peek() - last <= 4096, "restart skipped more than a block");
+    }
+
+    private static void restartAfterManyBlocks() throws IOException
+    {
+        File file = tempFile();
+        SequenceBlock block = new SequenceBlock(file);
+        int last = 0;
+        for (int i = 0; i < 10000; i++)
+        {
+            last = block.advance();
+        }
+        SequenceBlock restarted = new SequenceBlock(file);
+        check(restarted.peek() > last, "restart at " + restarted.peek() + " reuses " + last);
+    }
+
+    private static void unreadableFile() throws IOException
+    {
+        File file = tempFile();
+        Files.write(file.toPath(), "not a number".getBytes(StandardCharsets.US_ASCII));
+        int first = new SequenceBlock(file).peek();
+        check(first >= (1 << 24) && first < (1 << 27), "start after a bad file " + first);
+        Files.write(file.toPath(), "5000".getBytes(StandardCharsets.US_ASCII));
+        equal(5000, new SequenceBlock(file).peek(), "start from saved number");
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * Peer to peer whiteboard
+ * Distributed computing.
+ * CMPSMC34
+ */
+
+package com.twizted.Network;
+
+import java.util.List;
+
+import static com.twizted.Check.check;
+import static com.twizted.Check.equal;
+
+/**
+ * @author Ian Weeks 6204848
+ *         <p>
+ *         SequenceTrackerTest class.
+ *         <p>
+ *         Checks gaps are found, collapsed into NACK ranges, asked for
+ *         again only once the retry window has passed and given up on
+ *         after a few attempts.
+ */
+public class SequenceTrackerTest
+{
+    //A little over the tracker's retry interval.
+    private static final long RETRY_MILLIS = 120;
+
+    /**
+     * Run the tests.
+     *
+     * @param args Not used.
+     * @throws InterruptedException If interrupted while waiting out a retry window.
+     */
+    public static void main(String[] args) throws InterruptedException
+    {
+        inOrderAndDuplicates();
+        unsequencedAlwaysAccepted();
+        gapsBecomeRanges();
+        retryWindow();
+        givesUp();
+        largeJumpResyncs();
+        resetForgetsPeer();
+        System.out.println("SequenceTrackerTest passed.");
+    }
+
+    private static void inOrderAndDuplicates()
+    {
+        SequenceTracker tracker = new SequenceTracker();
+        for (int sequence = 100; sequence < 110; sequence++)
+        {
+            check(tracker.accept(1, sequence), "new op " + sequence);
+        }
+        check(!tracker.accept(1, 105), "duplicate accepted");
+        check(!tracker.accept(1, 109), "duplicate accepted");
+        check(!tracker.hasMissing(), "in order ops left a gap");
+        //Peers are tracked apart.
+        check(tracker.accept(2, 105), "same number from another peer");
+    }
+
+    private static void unsequencedAlwaysAccepted()
+    {
+        SequenceTracker tracker = new SequenceTracker();
+        check(tracker.accept(1, 0), "unsequenced op");
+        check(tracker.accept(1, 0), "second unsequenced op");
+        check(!tracker.hasMissing(), "unsequenced ops left a gap");
+    }
+
+    private static void gapsBecomeRanges()
+    {
+        SequenceTracker tracker = new SequenceTracker();
+        tracker.accept(1, 10);
+        tracker.accept(1, 14);
+        tracker.accept(1, 16);
+        tracker.accept(1, 20);
+        check(tracker.hasMissing(), "gap not found");
+        check(tracker.accept(1, 12), "gap filled");
+        check(!tracker.accept(1, 12), "gap filled twice");
+
+        List<int[]> ranges = tracker.dueRanges();
+        equal(4, ranges.size(), "ranges");
+        equal(new int[]{1, 11, 11}, ranges.get(0), "first range");
+        equal(new int[]{1, 13, 13}, ranges.get(1), "second range");
+        equal(new int[]{1, 15, 15}, ranges.get(2), "third range");
+        equal(new int[]{1, 17, 19}, ranges.get(3), "fourth range");
+    }
+
+    private static void retryWindow() throws InterruptedException
+    {
+        SequenceTracker tracker = new SequenceTracker();
+        tracker.accept(1, 1);
+        tracker.accept(1, 5);
+        equal(1, tracker.dueRanges().size(), "first NACK");
+        equal(0, tracker.dueRanges().size(), "NACK again inside the retry window");
+        Thread.sleep(RETRY_MILLIS);
+        List<int[]> ranges = tracker.dueRanges();
+        equal(1, ranges.size(), "NACK after the retry window");
+        equal(new int[]{1, 2, 4}, ranges.get(0), "range");
+
+        //Repairs shrink what is asked for next time.
+        tracker.accept(1, 2);
+        tracker.accept(1, 4);
+        Thread.sleep(RETRY_MILLIS);
+        ranges = tracker.dueRanges();
+        equal(new int[]{1, 3, 3}, ranges.get(0), "range after repairs");
+        tracker.accept(1, 3);
+        check(!tracker.hasMissing(), "repaired gap still missing");
+    }
+
+    private static void givesUp() throws InterruptedException
+    {
+        SequenceTracker tracker = new SequenceTracker();
+        tracker.accept(1, 1);
+        tracker.accept(1, 3);
+        int nacks = 0;
+        for (int i = 0; i < 10 && tracker.hasMissing(); i++)
+        {
+            nacks += tracker.dueRanges().size();
+            Thread.sleep(RETRY_MILLIS);
+        }
+        check(!tracker.hasMissing(), "never gave up");
+        equal(5, nacks, "NACKs before giving up");
+        //Late arrivals of a given up number are taken as duplicates.
+        check(!tracker.accept(1, 2), "given up number accepted");
+    }
+
+    private static void largeJumpResyncs()
+    {
+        SequenceTracker tracker = new SequenceTracker();
+        tracker.accept(1, 10);
+        check(tracker.accept(1, 10 + 5000), "jump forward");
+        check(!tracker.hasMissing(), "jump forward left a gap");
+        check(tracker.accept(1, 5016), "next after jump");
+        //A peer that restarted far below where it was.
+        check(tracker.accept(1, 3), "jump back");
+        check(tracker.accept(1, 4), "next after jump back");
+        check(!tracker.hasMissing(), "jump back left a gap");
+    }
+
+    private static void resetForgetsPeer()
+    {
+        SequenceTracker tracker = new SequenceTracker();
+        tracker.accept(1, 10);
+        tracker.accept(1, 20);
+        tracker.reset(1);
+        check(!tracker.hasMissing(), "reset peer still missing ops");
+        check(tracker.accept(1, 10), "op after reset");
+        tracker.accept(2, 1);
+        tracker.accept(2, 3);
+        tracker.clear();
+        check(!tracker.hasMissing(), "cleared tracker still missing ops");
+    }
+}
@@ -0,0 +1,241 @@
+/**
+ * Peer to peer whiteboard
+ * Distributed computing.
+ * CMPSMC34
+ */
+
+package com.twizted.Network;
+
+import com.twizted.Cache.TiledImage;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static com.twizted.Check.check;
+import static com.twizted.Check.equal;
+
+/**
+ * @author Ian Weeks 6204848
+ *         <p>
+ *         TcpClientTest class.
+ *         <p>
+ *         Fetches an image from a stand in for {@link TcpServer} that
+ *         answers one request with set bytes.  Checks whole and resumed
+ *         fetches hand over every tile in order, and that a tile that does
+ *         not match its digest, a bad tile length or a bad header stops
+ *         the fetch with only the good tiles before it handed over.
+ */
+public class TcpClientTest
+{
+    private static final long KEY = 0x1234567890ABCDEFL;
+
+    /**
+     * Run the tests.
+     *
+     * @param args Not used.
+     * @throws Exception If the stand in server fails.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        BufferedImage image = new BufferedImage(600, 300, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(1);
+        for (int y = 0; y < image.getHeight(); y++)
+        {
+            for (int x = 0; x < image.getWidth(); x++)
+            {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        TiledImage tiles = TiledImage.encode(image, "png");
+        try
+        {
+            byte[] file = Files.readAllBytes(tiles.getFile().toPath());
+            wholeImage(tiles, file);
+            resumed(tiles, file);
+            notHeld();
+            corruptTile(tiles, file);
+            badTileLength(tiles, file);
+            badHeader(tiles, file);
+            cutShort(tiles, file);
+        } finally
+        {
+            tiles.delete();
+        }
+        System.out.println("TcpClientTest passed.");
+    }
+
+    /**
+     * Records what the client hands over.
+     */
+    private static class Recorder implements TcpClient.Receiver
+    {
+        private int[] header;
+        private final List<Integer> indexes = new ArrayList<>();
+        private final List<byte[]> tiles = new ArrayList<>();
+
+        @Override
+        public void header(int width, int height, int tileSize, int tiles)
+        {
+            header = new int[]{width, height, tileSize, tiles};
+        }
+
+        @Override
+        public void tile(int index, byte[] tile)
+        {
+            indexes.add(index);
+            tiles.add(tile);
+        }
+    }
+
+    /**
+     * Answer the next request with the given bytes, as the image server would.
+     *
+     * @param response    The bytes to answer with.
+     * @param wantedFirst The first tile the request should ask for.
+     * @return The thread serving the request.
+     * @throws IOException If the port can't be bound.
+     */
+    private static Thread serve(final byte[] response, final int wantedFirst) throws IOException
+    {
+        final ServerSocket server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(TcpServer.PORT));
+        Thread thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try (ServerSocket s = server; Socket socket = s.accept())
+                {
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    if (in.readLong() != KEY || in.readInt() != wantedFirst)
+                    {
+                        System.out.println("Unexpected image request.");
+                        return;
+                    }
+                    socket.getOutputStream().write(response);
+                    socket.getOutputStream().flush();
+                } catch (IOException e)
+                {
+                    System.out.println("Stand in server failed.");
+                    System.out.println(e.getMessage());
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static byte[] response(int[] header, byte[] file, long from, long to) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int value : header)
+        {
+            out.writeInt(value);
+        }
+        out.write(file, (int) from, (int) (to - from));
+        return bytes.toByteArray();
+    }
+
+    private static int[] header(TiledImage tiles)
+    {
+        return new int[]{tiles.getWidth(), tiles.getHeight(), tiles.getTileSize(), tiles.getTileCount()};
+    }
+
+    private static byte[] tile(byte[] file, TiledImage tiles, int index)
+    {
+        return Arrays.copyOfRange(file, (int) tiles.getOffset(index) + 12, (int) tiles.getOffset(index + 1));
+    }
+
+    private static Recorder fetch(byte[] response, int first, boolean expectFailure) throws Exception
+    {
+        Thread server = serve(response, first);
+        Recorder recorder = new Recorder();
+        try
+        {
+            boolean held = new TcpClient("127.0.0.1", KEY, first, recorder).call();
+            check(!expectFailure, "bad image accepted");
+            recorder.header = held ? recorder.header : null;
+        } catch (IOException e)
+        {
+            check(expectFailure, "fetch failed: " + e.getMessage());
+        }
+        server.join(5000);
+        return recorder;
+    }
+
+    private static void wholeImage(TiledImage tiles, byte[] file) throws Exception
+    {
+        int count = tiles.getTileCount();
+        Recorder recorder = fetch(response(header(tiles), file, 0, file.length), 0, false);
+        equal(header(tiles), recorder.header, "header");
+        equal(count, recorder.tiles.size(), "tiles handed over");
+        for (int i = 0; i < count; i++)
+        {
+            equal(i, (long) recorder.indexes.get(i), "tile index");
+            equal(Arrays.toString(tile(file, tiles, i)), Arrays.toString(recorder.tiles.get(i)), "tile " + i);
+        }
+    }
+
+    private static void resumed(TiledImage tiles, byte[] file) throws Exception
+    {
+        Recorder recorder = fetch(response(header(tiles), file, tiles.getOffset(4), file.length), 4, false);
+        equal(2, recorder.tiles.size(), "tiles handed over after resuming");
+        equal(4, (long) recorder.indexes.get(0), "first tile after resuming");
+        check(Arrays.equals(tile(file, tiles, 5), recorder.tiles.get(1)), "last tile after resuming");
+    }
+
+    private static void notHeld() throws Exception
+    {
+        Thread server = serve(new byte[16], 0);
+        Recorder recorder = new Recorder();
+        check(!new TcpClient("127.0.0.1", KEY, 0, recorder).call(), "image not held was fetched");
+        check(recorder.header == null, "header handed over for an image not held");
+        server.join(5000);
+    }
+
+    private static void corruptTile(TiledImage tiles, byte[] file) throws Exception
+    {
+        byte[] corrupt = file.clone();
+        corrupt[(int) tiles.getOffset(3) + 30] ^= 0x40;
+        Recorder recorder = fetch(response(header(tiles), corrupt, 0, corrupt.length), 0, true);
+        equal(3, recorder.tiles.size(), "tiles handed over before the corrupt one");
+    }
+
+    private static void badTileLength(TiledImage tiles, byte[] file) throws Exception
+    {
+        byte[] bad = file.clone();
+        int at = (int) tiles.getOffset(2);
+        bad[at] = (byte) 0x7F;
+        Recorder recorder = fetch(response(header(tiles), bad, 0, bad.length), 0, true);
+        equal(2, recorder.tiles.size(), "tiles handed over before the bad length");
+    }
+
+    private static void badHeader(TiledImage tiles, byte[] file) throws Exception
+    {
+        int[] header = header(tiles);
+        header[3]++;
+        Recorder recorder = fetch(response(header, file, 0, file.length), 0, true);
+        check(recorder.header == null, "bad header handed over");
+        equal(0, recorder.tiles.size(), "tiles handed over after a bad header");
+    }
+
+    private static void cutShort(TiledImage tiles, byte[] file) throws Exception
+    {
+        Recorder recorder = fetch(response(header(tiles), file, 0, tiles.getOffset(5) - 1), 0, true);
+        equal(4, recorder.tiles.size(), "tiles handed over before the connection dropped");
+    }
+}
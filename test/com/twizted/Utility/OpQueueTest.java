@@ -0,0 +1,283 @@
+/**
+ * Peer to peer whiteboard
+ * Distributed computing.
+ * CMPSMC34
+ */
+
+package com.twizted.Utility;
+
+import com.twizted.Network.UdpReceiver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.twizted.Check.check;
+import static com.twizted.Check.equal;
+
+/**
+ * @author Ian Weeks 6204848
+ *         <p>
+ *         OpQueueTest class.
+ *         <p>
+ *         Checks the order lanes are emptied in, joining line segments
+ *         into polylines up to the point limit, what each policy does
+ *         when the data lane is full, and that a consumer asleep in take
+ *         is woken by an op published to the ring.
+ */
+public class OpQueueTest
+{
+    //Most points OpQueue joins into one polyline.
+    private static final int MAX_POINTS = 256;
+
+    /**
+     * Run the tests.
+     *
+     * @param args Not used.
+     * @throws InterruptedException If interrupted while waiting on a queue.
+     */
+    public static void main(String[] args) throws InterruptedException
+    {
+        laneOrder();
+        joinsContinuingSegments();
+        doesNotJoinBrokenSegments();
+        joinStopsAtMaxPoints();
+        joinsFromRing();
+        ringWakesConsumer();
+        dropOldest();
+        blockWaitsForRoom();
+        drainToKeepsOrder();
+        pollTimesOut();
+        System.out.println("OpQueueTest passed.");
+    }
+
+    private static int[] segment(int id, int x, int y, int endX, int endY)
+    {
+        return new int[]{id, Draw.DRAW, x, y, endX, endY, 0xFF000000, 2};
+    }
+
+    private static int[] text(int id, int c)
+    {
+        return new int[]{id, Draw.TEXT, 0, 0, c, 0xFF000000, 2};
+    }
+
+    private static void laneOrder() throws InterruptedException
+    {
+        OpRing ring = new OpRing(8, 8, OpQueue.Policy.BLOCK);
+        OpQueue queue = new OpQueue(10, OpQueue.Policy.BLOCK);
+        queue.attach(ring.newCursor());
+        int[] data1 = text(1, 'a'), data2 = text(1, 'b'), local = text(2, 'c'), back = text(1, 'd');
+        int[] control = {1, UdpReceiver.NACK, 2, 5, 6};
+        queue.put(data1);
+        queue.put(data2);
+        queue.put(control);
+        ring.publish(local);
+        queue.putFirst(back);
+        equal(5, queue.size(), "size");
+        check(queue.take() == control, "control first");
+        check(queue.take() == back, "put back op next");
+        check(queue.take() == local, "ring before data lane");
+        check(queue.take() == data1, "data lane in order");
+        check(queue.take() == data2, "data lane in order");
+        equal(0, queue.size(), "size when empty");
+        equal(3, queue.getHighWater(), "high water");
+    }
+
+    private static void joinsContinuingSegments() throws InterruptedException
+    {
+        OpQueue queue = new OpQueue(10, OpQueue.Policy.COALESCE);
+        queue.put(segment(1, 0, 0, 1, 1));
+        queue.put(segment(1, 1, 1, 2, 3));
+        queue.put(segment(1, 2, 3, 5, 5));
+        equal(1, queue.size(), "joined ops");
+        equal(2, queue.getCoalesced(), "coalesced");
+        equal(new int[]{1, Draw.POLYLINE, 0xFF000000, 2, 0, 0, 1, 1, 2, 3, 5, 5}, queue.take(), "polyline");
+    }
+
+    private static void doesNotJoinBrokenSegments() throws InterruptedException
+    {
+        OpQueue queue = new OpQueue(10, OpQueue.Policy.COALESCE);
+        queue.put(segment(1, 0, 0, 1, 1));
+        //Does not start where the last one ended.
+        queue.put(segment(1, 2, 2, 3, 3));
+        //Another peer.
+        queue.put(segment(2, 3, 3, 4, 4));
+        //Another colour.
+        queue.put(new int[]{2, Draw.DRAW, 4, 4, 5, 5, 0xFFFF0000, 2});
+        //Another thickness.
+        queue.put(new int[]{2, Draw.DRAW, 5, 5, 6, 6, 0xFFFF0000, 3});
+        //Not a line.
+        queue.put(text(2, 'x'));
+        equal(6, queue.size(), "nothing joined");
+        equal(0, queue.getCoalesced(), "coalesced");
+    }
+
+    private static void joinStopsAtMaxPoints() throws InterruptedException
+    {
+        OpQueue queue = new OpQueue(10, OpQueue.Policy.COALESCE);
+        int segments = 300;
+        for (int i = 0; i < segments; i++)
+        {
+            queue.put(segment(1, i, i, i + 1, i + 1));
+        }
+        int[] first = queue.take(), second = queue.take();
+        equal(Draw.POLYLINE, first[1], "first type");
+        equal(MAX_POINTS, (first.length - 4) / 2, "points in a full polyline");
+        equal(Draw.POLYLINE, second[1], "second type");
+        //The full polyline's last point starts the next one.
+        equal(segments + 1 - MAX_POINTS + 1, (second.length - 4) / 2, "points in the rest");
+        equal(first[first.length - 2], second[4], "second starts where the first ended");
+        equal(segments, second[second.length - 2], "last point");
+        equal(0, queue.size(), "size");
+    }
+
+    private static void joinsFromRing() throws InterruptedException
+    {
+        OpRing ring = new OpRing(64, 64, OpQueue.Policy.BLOCK);
+        OpQueue queue = new OpQueue(10, OpQueue.Policy.COALESCE);
+        queue.attach(ring.newCursor());
+        for (int i = 0; i < 10; i++)
+        {
+            ring.publish(segment(1, i, 0, i + 1, 0));
+        }
+        ring.publish(text(1, 'z'));
+        int[] line = queue.take();
+        equal(Draw.POLYLINE, line[1], "joined from ring");
+        equal(11, (line.length - 4) / 2, "points");
+        equal(Draw.TEXT, queue.take()[1], "op after the line");
+    }
+
+    private static void ringWakesConsumer() throws InterruptedException
+    {
+        OpRing ring = new OpRing(8, 8, OpQueue.Policy.BLOCK);
+        final OpQueue queue = new OpQueue(10, OpQueue.Policy.BLOCK);
+        queue.attach(ring.newCursor());
+        final int[][] taken = new int[1][];
+        Thread consumer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    taken[0] = queue.take();
+                } catch (InterruptedException e)
+                {
+                    System.out.println("Consumer interrupted.");
+                }
+            }
+        });
+        consumer.start();
+        while (consumer.getState() != Thread.State.WAITING)
+        {
+            Thread.sleep(1);
+        }
+        //The consumer lets go of the lock while it sleeps so other callers are not held up.
+        equal(0, queue.size(), "size while the consumer waits");
+        int[] local = text(2, 'a');
+        ring.publish(local);
+        consumer.join(5000);
+        check(!consumer.isAlive(), "consumer not woken by the ring");
+        check(taken[0] == local, "op taken from the ring");
+
+        //An interrupted consumer stops waiting.
+        consumer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    queue.take();
+                    taken[0] = null;
+                } catch (InterruptedException e)
+                {
+                    taken[0] = new int[0];
+                }
+            }
+        });
+        consumer.start();
+        while (consumer.getState() != Thread.State.WAITING)
+        {
+            Thread.sleep(1);
+        }
+        consumer.interrupt();
+        consumer.join(5000);
+        check(taken[0] != null && taken[0].length == 0, "interrupt not seen");
+    }
+
+    private static void dropOldest() throws InterruptedException
+    {
+        OpQueue queue = new OpQueue(3, OpQueue.Policy.DROP_OLDEST);
+        for (int i = 0; i < 5; i++)
+        {
+            queue.put(text(1, i));
+        }
+        equal(2, queue.getDropped(), "dropped");
+        equal(2, queue.take()[4], "oldest kept");
+        equal(3, queue.take()[4], "next");
+        equal(4, queue.take()[4], "newest");
+        //Control ops are never limited or dropped.
+        for (int i = 0; i < 10; i++)
+        {
+            queue.put(new int[]{1, UdpReceiver.REQ_IP});
+        }
+        equal(10, queue.size(), "control ops");
+        equal(2, queue.getDropped(), "dropped after control ops");
+    }
+
+    private static void blockWaitsForRoom() throws InterruptedException
+    {
+        final OpQueue queue = new OpQueue(2, OpQueue.Policy.BLOCK);
+        queue.put(text(1, 0));
+        queue.put(text(1, 1));
+        Thread producer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    queue.put(text(1, 2));
+                } catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        producer.setDaemon(true);
+        producer.start();
+        producer.join(200);
+        check(producer.isAlive(), "put into a full queue did not wait");
+        equal(0, queue.take()[4], "first");
+        producer.join(2000);
+        check(!producer.isAlive(), "put did not carry on once there was room");
+        equal(1, queue.take()[4], "second");
+        equal(2, queue.take()[4], "waited for op");
+        equal(0, queue.getDropped(), "dropped");
+    }
+
+    private static void drainToKeepsOrder() throws InterruptedException
+    {
+        OpRing ring = new OpRing(8, 8, OpQueue.Policy.BLOCK);
+        OpQueue queue = new OpQueue(10, OpQueue.Policy.BLOCK);
+        queue.attach(ring.newCursor());
+        queue.put(text(1, 'd'));
+        ring.publish(text(2, 'r'));
+        queue.put(new int[]{1, UdpReceiver.LEAVE_NOTE});
+        List<int[]> ops = new ArrayList<>();
+        equal(2, queue.drainTo(ops, 2), "drained up to max");
+        equal(UdpReceiver.LEAVE_NOTE, ops.get(0)[1], "control first");
+        equal('r', ops.get(1)[4], "ring next");
+        equal(1, queue.drainTo(ops, 10), "rest drained");
+        equal('d', ops.get(2)[4], "data last");
+    }
+
+    private static void pollTimesOut() throws InterruptedException
+    {
+        OpQueue queue = new OpQueue(10, OpQueue.Policy.BLOCK);
+        long start = System.nanoTime();
+        check(queue.poll(50, TimeUnit.MILLISECONDS) == null, "op from an empty queue");
+        check(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(40), "poll returned early");
+    }
+}
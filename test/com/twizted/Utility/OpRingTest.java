@@ -0,0 +1,272 @@
+/**
+ * Peer to peer whiteboard
+ * Distributed computing.
+ * CMPSMC34
+ */
+
+package com.twizted.Utility;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.twizted.Check.check;
+import static com.twizted.Check.equal;
+
+/**
+ * @author Ian Weeks 6204848
+ *         <p>
+ *         OpRingTest class.
+ *         <p>
+ *         Checks the ring wraps and counts its backlog, that every cursor
+ *         reads every op, and that offers to a full ring overflow as their
+ *         policy says while keeping ops in order.
+ */
+public class OpRingTest
+{
+    /**
+     * Run the tests.
+     *
+     * @param args Not used.
+     * @throws InterruptedException If interrupted while publishing.
+     */
+    public static void main(String[] args) throws InterruptedException
+    {
+        rejectsBadSize();
+        wrapsAround();
+        countsBacklog();
+        everyCursorReadsEverything();
+        newCursorStartsAtTheEnd();
+        listenerTold();
+        publishWaitsForSlowestCursor();
+        overflowKeepsOrder();
+        overflowDropsOldest();
+        overflowBlockTurnsAway();
+        overflowCoalesces();
+        System.out.println("OpRingTest passed.");
+    }
+
+    private static int[] op(int value)
+    {
+        return new int[]{1, Draw.TEXT, 0, 0, value, 0xFF000000, 2};
+    }
+
+    private static void rejectsBadSize()
+    {
+        try
+        {
+            new OpRing(6, 6, OpQueue.Policy.BLOCK);
+            throw new AssertionError("size that is not a power of two accepted");
+        } catch (IllegalArgumentException e)
+        {
+            //Expected.
+        }
+    }
+
+    private static void wrapsAround() throws InterruptedException
+    {
+        OpRing ring = new OpRing(4, 4, OpQueue.Policy.BLOCK);
+        OpRing.Cursor cursor = ring.newCursor();
+        for (int i = 0; i < 100; i++)
+        {
+            ring.publish(op(i));
+            if (i % 3 == 2)
+            {
+                //Read in bursts so the ring goes round partly full.
+                for (int j = i - 2; j <= i; j++)
+                {
+                    equal(j, cursor.poll()[4], "op after wrapping");
+                }
+            }
+        }
+        equal(99, cursor.poll()[4], "last op");
+        check(cursor.poll() == null, "op read twice");
+    }
+
+    private static void countsBacklog() throws InterruptedException
+    {
+        OpRing ring = new OpRing(4, 4, OpQueue.Policy.BLOCK);
+        OpRing.Cursor cursor = ring.newCursor();
+        equal(0, cursor.backlog(), "empty backlog");
+        for (int i = 0; i < 4; i++)
+        {
+            ring.publish(op(i));
+            equal(i + 1, cursor.backlog(), "backlog while filling");
+        }
+        check(cursor.peek() == cursor.peek(), "peek moved on");
+        equal(4, cursor.backlog(), "backlog after peek");
+        for (int i = 3; i >= 0; i--)
+        {
+            cursor.poll();
+            equal(i, cursor.backlog(), "backlog while reading");
+        }
+    }
+
+    private static void everyCursorReadsEverything() throws InterruptedException
+    {
+        OpRing ring = new OpRing(8, 8, OpQueue.Policy.BLOCK);
+        OpRing.Cursor first = ring.newCursor(), second = ring.newCursor();
+        for (int i = 0; i < 8; i++)
+        {
+            ring.publish(op(i));
+        }
+        for (int i = 0; i < 8; i++)
+        {
+            equal(i, first.poll()[4], "first cursor");
+        }
+        //The slower cursor still holds every slot.
+        check(ring.offer(op(8)), "offer to the overflow turned away");
+        equal(1, ring.getOverflowSize(), "overflowed while a cursor is behind");
+        for (int i = 0; i < 8; i++)
+        {
+            equal(i, second.poll()[4], "second cursor");
+        }
+        equal(0, ring.getOverflowSize(), "overflow published once the slow cursor read");
+        equal(8, first.poll()[4], "first cursor gets the overflowed op");
+        equal(8, second.poll()[4], "second cursor gets the overflowed op");
+    }
+
+    private static void newCursorStartsAtTheEnd() throws InterruptedException
+    {
+        OpRing ring = new OpRing(8, 8, OpQueue.Policy.BLOCK);
+        OpRing.Cursor early = ring.newCursor();
+        ring.publish(op(0));
+        OpRing.Cursor late = ring.newCursor();
+        equal(0, late.backlog(), "late cursor backlog");
+        ring.publish(op(1));
+        equal(1, late.poll()[4], "late cursor reads from when it was added");
+        equal(0, early.poll()[4], "early cursor");
+    }
+
+    private static void listenerTold() throws InterruptedException
+    {
+        OpRing ring = new OpRing(8, 8, OpQueue.Policy.BLOCK);
+        OpRing.Cursor cursor = ring.newCursor();
+        final AtomicInteger told = new AtomicInteger();
+        cursor.setListener(new OpRing.Listener()
+        {
+            @Override
+            public void published()
+            {
+                told.incrementAndGet();
+            }
+        });
+        ring.publish(op(0));
+        ring.offer(op(1));
+        equal(2, told.get(), "listener calls");
+    }
+
+    private static void publishWaitsForSlowestCursor() throws InterruptedException
+    {
+        final OpRing ring = new OpRing(2, 2, OpQueue.Policy.BLOCK);
+        OpRing.Cursor cursor = ring.newCursor();
+        ring.publish(op(0));
+        ring.publish(op(1));
+        Thread publisher = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    ring.publish(op(2));
+                } catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        publisher.setDaemon(true);
+        publisher.start();
+        publisher.join(200);
+        check(publisher.isAlive(), "publish into a full ring did not wait");
+        equal(0, cursor.poll()[4], "first");
+        publisher.join(2000);
+        check(!publisher.isAlive(), "publish did not carry on once there was room");
+        equal(1, cursor.poll()[4], "second");
+        equal(2, cursor.poll()[4], "waited for op");
+    }
+
+    /**
+     * Offer ops numbered from zero to a ring that nobody reads until the end.
+     *
+     * @param ring  The ring.
+     * @param count The number of ops to offer.
+     * @return A cursor added before the first offer.
+     */
+    private static OpRing.Cursor overfill(OpRing ring, int count)
+    {
+        OpRing.Cursor cursor = ring.newCursor();
+        for (int i = 0; i < count; i++)
+        {
+            ring.offer(op(i));
+        }
+        return cursor;
+    }
+
+    private static String readAll(OpRing.Cursor cursor)
+    {
+        StringBuilder read = new StringBuilder();
+        int[] op;
+        while ((op = cursor.poll()) != null)
+        {
+            read.append(op[4]);
+        }
+        return read.toString();
+    }
+
+    private static void overflowKeepsOrder()
+    {
+        OpRing ring = new OpRing(4, 4, OpQueue.Policy.BLOCK);
+        OpRing.Cursor cursor = overfill(ring, 6);
+        equal(2, ring.getOverflowSize(), "overflow size");
+        equal(2, ring.getOverflowed(), "overflowed");
+        equal("012345", readAll(cursor), "overflowed ops after the ring's");
+        equal(0, ring.getOverflowSize(), "overflow drained by reading");
+        ring.offer(op(6));
+        equal("6", readAll(cursor), "op offered after the overflow drained");
+        equal(0, ring.getDropped(), "dropped");
+    }
+
+    private static void overflowDropsOldest()
+    {
+        OpRing ring = new OpRing(4, 2, OpQueue.Policy.DROP_OLDEST);
+        OpRing.Cursor cursor = overfill(ring, 8);
+        equal(2, ring.getDropped(), "dropped");
+        equal("012367", readAll(cursor), "ops read");
+    }
+
+    private static void overflowBlockTurnsAway()
+    {
+        OpRing ring = new OpRing(4, 2, OpQueue.Policy.BLOCK);
+        OpRing.Cursor cursor = ring.newCursor();
+        for (int i = 0; i < 6; i++)
+        {
+            check(ring.offer(op(i)), "offer with room turned away");
+        }
+        check(!ring.offer(op(6)), "offer to a full overflow accepted");
+        check(!ring.offer(op(7)), "offer to a full overflow accepted");
+        equal(2, ring.getDropped(), "turned away");
+        equal("012345", readAll(cursor), "ops read");
+    }
+
+    private static void overflowCoalesces()
+    {
+        OpRing ring = new OpRing(4, 2, OpQueue.Policy.COALESCE);
+        OpRing.Cursor cursor = ring.newCursor();
+        for (int i = 0; i < 20; i++)
+        {
+            ring.offer(new int[]{1, Draw.DRAW, i, 0, i + 1, 0, 0xFF000000, 2});
+        }
+        equal(1, ring.getOverflowSize(), "overflowed segments joined");
+        equal(15, ring.getCoalesced(), "coalesced");
+        equal(0, ring.getDropped(), "dropped");
+        for (int i = 0; i < 4; i++)
+        {
+            equal(i, cursor.poll()[2], "segment in the ring");
+        }
+        int[] line = cursor.poll();
+        equal(Draw.POLYLINE, line[1], "joined op");
+        equal(new int[]{4, 0}, new int[]{line[4], line[5]}, "line starts at the first overflowed segment");
+        equal(17, (line.length - 4) / 2, "points");
+        check(cursor.poll() == null, "ops after the line");
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Peer to peer whiteboard
+ * Distributed computing.
+ * CMPSMC34
+ */
+
+package com.twizted.Utility;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.twizted.Check.check;
+import static com.twizted.Check.equal;
+
+/**
+ * @author Ian Weeks 6204848
+ *         <p>
+ *         TasksTest class.
+ *         <p>
+ *         Checks a group runs no more than its limit at once, turns away
+ *         tasks once its queue is full, runs everything it accepted, and
+ *         that started services are listed.
+ */
+public class TasksTest
+{
+    /**
+     * Run the tests.
+     *
+     * @param args Not used.
+     * @throws InterruptedException If interrupted while waiting on a task.
+     */
+    public static void main(String[] args) throws InterruptedException
+    {
+        boundedQueue();
+        listsServices();
+        System.out.println("TasksTest passed.");
+    }
+
+    private static void boundedQueue() throws InterruptedException
+    {
+        Tasks.Group group = Tasks.getInstance().newGroup("test", 2, 3);
+        equal(3, group.getMaxQueued(), "queue limit");
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(5);
+        final AtomicInteger running = new AtomicInteger(), most = new AtomicInteger();
+        Runnable task = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                int now = running.incrementAndGet();
+                most.set(Math.max(most.get(), now));
+                try
+                {
+                    release.await();
+                } catch (InterruptedException e)
+                {
+                    System.out.println("Task interrupted.");
+                }
+                running.decrementAndGet();
+                done.countDown();
+            }
+        };
+        for (int i = 0; i < 5; i++)
+        {
+            group.execute(task);
+        }
+        equal(3, group.getQueued(), "queued");
+        try
+        {
+            group.execute(task);
+            check(false, "task accepted by a full queue");
+        } catch (RejectedExecutionException e)
+        {
+            equal(1, group.getRejected(), "rejected");
+        }
+        equal(3, group.getQueued(), "queued after a rejection");
+        release.countDown();
+        check(done.await(5, TimeUnit.SECONDS), "accepted tasks not run");
+        check(most.get() <= 2, "group ran more than its limit");
+        equal(0, group.getQueued(), "queued once done");
+        //Room again once the queue has emptied.
+        final CountDownLatch again = new CountDownLatch(1);
+        group.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                again.countDown();
+            }
+        });
+        check(again.await(5, TimeUnit.SECONDS), "task not run after the queue emptied");
+    }
+
+    private static void listsServices() throws InterruptedException
+    {
+        Thread service = Tasks.getInstance().startService("test service", new Runnable()
+        {
+            @Override
+            public void run()
+            {
+            }
+        });
+        service.join(5000);
+        check(Tasks.getInstance().getServices().contains(service), "service not listed");
+        check(!service.isAlive(), "service still running");
+    }
+}
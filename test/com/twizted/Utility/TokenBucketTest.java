@@ -0,0 +1,78 @@
+/**
+ * Peer to peer whiteboard
+ * Distributed computing.
+ * CMPSMC34
+ */
+
+package com.twizted.Utility;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.twizted.Check.check;
+import static com.twizted.Check.equal;
+
+/**
+ * @author Ian Weeks 6204848
+ *         <p>
+ *         TokenBucketTest class.
+ *         <p>
+ *         Checks a full bucket is taken at once and that taking more
+ *         waits about as long as the rate says.
+ */
+public class TokenBucketTest
+{
+    /**
+     * Run the tests.
+     *
+     * @param args Not used.
+     * @throws InterruptedException If interrupted while taking tokens.
+     */
+    public static void main(String[] args) throws InterruptedException
+    {
+        burstIsImmediate();
+        waitsForTokens();
+        rateChanges();
+        System.out.println("TokenBucketTest passed.");
+    }
+
+    private static long millisSince(long start)
+    {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private static void burstIsImmediate() throws InterruptedException
+    {
+        TokenBucket bucket = new TokenBucket(1000, 5000);
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; i++)
+        {
+            bucket.take(1000);
+        }
+        check(millisSince(start) < 100, "burst waited " + millisSince(start) + " ms");
+    }
+
+    private static void waitsForTokens() throws InterruptedException
+    {
+        TokenBucket bucket = new TokenBucket(10000, 1000);
+        bucket.take(1000);
+        long start = System.nanoTime();
+        //Two thousand tokens at ten thousand a second is 200 ms.
+        bucket.take(2000);
+        long waited = millisSince(start);
+        check(waited >= 180 && waited < 1000, "waited " + waited + " ms for 200 ms of tokens");
+    }
+
+    private static void rateChanges() throws InterruptedException
+    {
+        TokenBucket bucket = new TokenBucket(1000, 100);
+        equal(1000, bucket.getRate(), "rate");
+        bucket.setRate(100000);
+        equal(100000, bucket.getRate(), "changed rate");
+        bucket.take(100);
+        long start = System.nanoTime();
+        //At the old rate this would be ten seconds.
+        bucket.take(10000);
+        long waited = millisSince(start);
+        check(waited >= 80 && waited < 1000, "waited " + waited + " ms for 100 ms of tokens");
+    }
+}